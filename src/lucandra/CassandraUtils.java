@@ -178,9 +178,16 @@ public class CassandraUtils
     public static final String           finalToken             = new String("\ufffe\ufffe");
     public static final ByteBuffer       finalTokenBytes        = ByteBufferUtil.bytes(finalToken);
 
+    // sorts after every term so it can't be mistaken for one
+    private static final byte[]          normsRowBytes          = ByteBufferUtil.bytes(finalToken + normsKey).array();
+
     public static final String           documentMetaField      = delimeter + "META" + delimeter;
     public static final ByteBuffer       documentMetaFieldBytes = ByteBufferUtil.bytes(documentMetaField);
 
+    // per field digests of a document, used to diff updates
+    public static final String           documentDigestField      = delimeter + "DIGEST" + delimeter;
+    public static final ByteBuffer       documentDigestFieldBytes = ByteBufferUtil.bytes(documentDigestField);
+
     public static final boolean          indexHashingEnabled    = Boolean.valueOf(System.getProperty("index.hashing",
                                                                         "true"));
 
@@ -281,6 +288,10 @@ public class CassandraUtils
             daemon.getStartedLatch().await(1, TimeUnit.HOURS);
 
             createCassandraSchema();
+
+            // writes buffered but not flushed before the last shutdown
+            if (MutationJournal.enabled)
+                MutationJournal.replay();
         }
         catch (InterruptedException e1)
         {
@@ -658,6 +669,24 @@ public class CassandraUtils
         return hashBuf;
     }
 
+    /**
+     * Row of the field cache family holding the norms of a field, one byte
+     * column per document
+     */
+    public static ByteBuffer normsRowKey(byte[] indexNameBytes, byte[] fieldNameBytes)
+    {
+        return hashKeyBytes(indexNameBytes, delimeterBytes, fieldNameBytes, delimeterBytes, normsRowBytes);
+    }
+
+    /**
+     * Row of the field cache family naming the fields of an index that have
+     * norms, one empty column per field
+     */
+    public static ByteBuffer normFieldsRowKey(byte[] indexNameBytes)
+    {
+        return hashKeyBytes(indexNameBytes, delimeterBytes, normsRowBytes);
+    }
+
     public static ByteBuffer hashKeyBytes(byte[]... keys)
     {
         byte hashedKey[] = null;
@@ -776,6 +805,56 @@ public class CassandraUtils
         return buf;
     }
 
+    /**
+     * Writes a VInt at the buffer's current position
+     */
+    public static void writeVInt(int i, ByteBuffer buf)
+    {
+        while ((i & ~0x7F) != 0)
+        {
+            buf.put((byte) ((i & 0x7f) | 0x80));
+            i >>>= 7;
+        }
+        buf.put((byte) i);
+    }
+
+    /**
+     * Reads a VInt starting at the absolute index without moving the buffer's
+     * position. Use {@link #vIntSize(int)} on the result to step past it.
+     */
+    public static int readVInt(ByteBuffer buf, int index)
+    {
+        int limit = buf.limit();
+
+        if (index >= limit)
+            return 0;
+
+        byte b = buf.get(index);
+        int i = b & 0x7F;
+        for (int pos = index + 1, shift = 7; (b & 0x80) != 0 && pos < limit; shift += 7, pos++)
+        {
+            b = buf.get(pos);
+            i |= (b & 0x7F) << shift;
+        }
+
+        return i;
+    }
+
+    /**
+     * The number of bytes writeVInt will use for this value
+     */
+    public static int vIntSize(int i)
+    {
+        int length = 1;
+        while ((i & ~0x7F) != 0)
+        {
+            i >>>= 7;
+            length++;
+        }
+
+        return length;
+    }
+
     public static byte[] compress(byte[] input) throws IOException
     {
 
@@ -26,8 +26,6 @@ import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 
 import lucandra.cluster.CassandraIndexManager;
-import lucandra.serializers.thrift.DocumentMetadata;
-import lucandra.serializers.thrift.ThriftTerm;
 
 import com.google.common.collect.MapMaker;
 
@@ -38,8 +36,6 @@ import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.SimpleAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 import org.apache.lucene.document.*;
-import org.apache.lucene.document.Field.Index;
-import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.IndexWriter.MaxFieldLength;
 import org.apache.lucene.index.IndexWriter;
@@ -59,6 +55,10 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
 {
     private final static int                                numDocs       = CassandraIndexManager.maxDocsPerShard;
     private final static byte                               defaultNorm   = Similarity.encodeNorm(1.0f);
+    private final static int                                normsPageSize = Integer.valueOf(CassandraUtils.properties
+                                                                                  .getProperty("solandra.norms.page.size", "16384"));
+    private final static int                                enumReadAhead = Integer.valueOf(CassandraUtils.properties
+                                                                                  .getProperty("solandra.term.read.ahead.enum", "32"));
 
     private final static Directory                          mockDirectory = new RAMDirectory();
     static
@@ -190,10 +190,10 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     public int docFreq(Term term) throws IOException
     {
 
-        LucandraTermInfo[] docs = getCache().termCache.get(term);
+        TermPostings docs = getCache().termCache.get(term);
 
         if (docs != null)
-            return docs.length;
+            return docs.size();
 
         LucandraTermEnum termEnum = new LucandraTermEnum(this);
 
@@ -308,6 +308,9 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
                 {
                     for (IColumn col : row.cf.getSortedColumns())
                     {
+                        // fields removed by an update
+                        if (col.isMarkedForDelete())
+                            continue;
 
                         Field field = null;
                         String fieldName = ByteBufferUtil.string(col.name());
@@ -319,41 +322,8 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
                             continue;
                         }
 
-                        DocumentMetadata dm = lucandra.IndexWriter.fromBytesUsingThrift(col.value());
-                                       
-                        for(ThriftTerm term : dm.getTerms())
-                        {
-                            Fieldable f = null; 
-                            
-                            if( term.isSetLongVal() )
-                            {
-                                f =  new NumericField(term.getField()).setLongValue(term.getLongVal());            
-                            }
-                            else if(term.isSetDoubleVal())
-                            {
-                                f =  new NumericField(term.getField()).setDoubleValue(term.getDoubleVal());
-                            }
-                            else if(term.isSetIntVal())
-                            {
-                                f =  new NumericField(term.getField()).setIntValue(term.getIntVal());
-                            }
-                            else if(term.isSetFloatVal())
-                            {
-                                f =  new NumericField(term.getField()).setFloatValue((float)term.getFloatVal());
-                            }
-                            else if(term.isSetIs_binary())
-                            {
-                                if(term.is_binary)
-                                    f = new Field(term.getField(), term.getText());
-                                else 
-                                    f = new Field(term.getField(), new String(term.getText(),"UTF-8"), Store.YES, Index.ANALYZED);
-                            }
-                            else
-                                throw new RuntimeException("Malformed term");
-                            
+                        for (Fieldable f : StoredFieldCodec.decode(fieldName, col.value()))
                             cacheDoc.add(f);
-
-                        }                      
                     } 
                 }
 
@@ -467,7 +437,113 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     @Override
     public byte[] norms(String field) throws IOException
     {
-        return getCache().fieldNorms.get(field);
+        ReaderCache cache = getCache();
+        byte[] norms = cache.fieldNorms.get(field);
+
+        if (norms != null)
+            return norms;
+
+        // omitNorms and unknown fields have none to load
+        if (!normFields(cache).contains(field))
+            return null;
+
+        return loadNorms(field, cache);
+    }
+
+    /**
+     * The fields the writer stored norms for, read once per cache
+     */
+    private Set<String> normFields(ReaderCache cache) throws IOException
+    {
+        Set<String> fields = cache.normFields;
+
+        if (fields != null)
+            return fields;
+
+        fields = new HashSet<String>();
+
+        ReadCommand rc = new SliceFromReadCommand(CassandraUtils.keySpace, CassandraUtils
+                .normFieldsRowKey(getIndexName().getBytes("UTF-8")), new ColumnParent(
+                CassandraUtils.fieldCacheColumnFamily), ByteBufferUtil.EMPTY_BYTE_BUFFER,
+                ByteBufferUtil.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE);
+
+        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, rc);
+
+        if (!rows.isEmpty() && rows.get(0).cf != null)
+        {
+            for (IColumn col : rows.get(0).cf.getSortedColumns())
+            {
+                if (!col.isMarkedForDelete())
+                    fields.add(ByteBufferUtil.string(col.name(), CassandraUtils.UTF_8));
+            }
+        }
+
+        cache.normFields = fields;
+
+        return fields;
+    }
+
+    /**
+     * Reads every norm of a field from its norms row, a page of columns at a
+     * time. Documents without one keep the default norm.
+     */
+    private byte[] loadNorms(String field, ReaderCache cache) throws IOException
+    {
+        byte[] norms = new byte[maxDoc()];
+        Arrays.fill(norms, defaultNorm);
+
+        ByteBuffer key = CassandraUtils.normsRowKey(getIndexName().getBytes("UTF-8"), field.getBytes("UTF-8"));
+        ColumnParent columnParent = new ColumnParent(CassandraUtils.fieldCacheColumnFamily);
+
+        long start = System.currentTimeMillis();
+        int loaded = 0;
+
+        ByteBuffer startColumn = ByteBufferUtil.EMPTY_BYTE_BUFFER;
+        while (true)
+        {
+            ByteBuffer lastColumn = null;
+
+            ReadCommand rc = new SliceFromReadCommand(CassandraUtils.keySpace, key, columnParent, startColumn,
+                    ByteBufferUtil.EMPTY_BYTE_BUFFER, false, normsPageSize);
+
+            List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, rc);
+
+            if (rows.isEmpty() || rows.get(0).cf == null)
+                break;
+
+            Collection<IColumn> columns = rows.get(0).cf.getSortedColumns();
+            for (IColumn col : columns)
+            {
+                // the first column of a page ends the one before
+                if (col.name().equals(startColumn))
+                    continue;
+
+                lastColumn = col.name();
+
+                if (col.isMarkedForDelete() || !col.value().hasRemaining())
+                    continue;
+
+                int idx = CassandraUtils.readVInt(col.name());
+                if (idx < norms.length)
+                {
+                    norms[idx] = col.value().get(col.value().position());
+                    loaded++;
+                }
+            }
+
+            if (columns.size() < normsPageSize || lastColumn == null)
+                break;
+
+            startColumn = lastColumn;
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Loaded " + loaded + " norms of " + field + " in " + (System.currentTimeMillis() - start)
+                    + "ms");
+
+        byte[] existing = cache.fieldNorms.putIfAbsent(field, norms);
+
+        return existing == null ? norms : existing;
     }
 
     @Override
@@ -510,52 +586,73 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     @Override
     public TermEnum terms() throws IOException
     {
-        return new LucandraTermEnum(this);
+        return new LucandraTermEnum(this, enumReadAhead);
     }
 
     @Override
     public TermEnum terms(Term term) throws IOException
     {
 
-        LucandraTermEnum termEnum = new LucandraTermEnum(this);
+        // callers walk these, prefix, wildcard, range and fuzzy rewrites as
+        // well as faceting, unlike the single term seeks of term docs
+        LucandraTermEnum termEnum = new LucandraTermEnum(this, enumReadAhead);
 
         termEnum.skipTo(term);
 
         return termEnum;
     }
 
-    public void addDocumentNormalizations(LucandraTermInfo[] allDocs, String field, ReaderCache cache)
+    public void addDocumentNormalizations(TermPostings postings, String field, ReaderCache cache)
     {
 
-        byte[] norms = cache.fieldNorms.get(field);
+        byte[] norms = null;
         OpenBitSet docHits = cache.docHits;
 
-        for (LucandraTermInfo docInfo : allDocs)
+        for (int i = 0; i < postings.size(); i++)
         {
 
-            int idx = docInfo.docId;
+            int idx = postings.docIds[i];
 
             if (idx > numDocs)
                 throw new IllegalStateException("numDocs reached");
 
-            Byte norm = docInfo.norm;
+            docHits.fastSet(idx);
 
-            if (norm == null)
-                norm = defaultNorm;
+            // postings written before norms had their own row carry them
+            if (postings.hasNorm != null && postings.hasNorm[i])
+            {
+                if (norms == null)
+                    norms = legacyNorms(field, cache);
 
-            // Check for cached reads
-            if (norms != null && norms.length > idx && norms[idx] == norm)
-                continue;
+                norms[idx] = postings.norms[i];
+            }
+        }
+    }
 
-            docHits.fastSet(idx);
+    private byte[] legacyNorms(String field, ReaderCache cache)
+    {
+        byte[] norms = cache.fieldNorms.get(field);
 
-            if (norms == null)
-                norms = new byte[numDocs];
+        if (norms != null)
+            return norms;
 
-            norms[idx] = norm;
+        try
+        {
+            // newer documents of the field have theirs in the norms row
+            if (normFields(cache).contains(field))
+                return loadNorms(field, cache);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
         }
 
-        cache.fieldNorms.put(field, norms);
+        norms = new byte[maxDoc()];
+        Arrays.fill(norms, defaultNorm);
+
+        byte[] existing = cache.fieldNorms.putIfAbsent(field, norms);
+
+        return existing == null ? norms : existing;
     }
 
     public String getIndexName()
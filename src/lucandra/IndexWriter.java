@@ -21,23 +21,29 @@ package lucandra;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import lucandra.cluster.CassandraIndexManager;
+import lucandra.compression.CompressionCodecs;
 import lucandra.serializers.thrift.DocumentMetadata;
 import lucandra.serializers.thrift.ThriftTerm;
 
 import com.google.common.collect.MapMaker;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.db.filter.QueryPath;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.utils.ByteBufferUtil;
-import org.apache.cassandra.utils.Pair;
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
@@ -60,39 +66,389 @@ import org.apache.thrift.transport.TTransport;
 
 public class IndexWriter
 {
-    private static final ConcurrentMap<String, Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>>> mutationList    = new MapMaker()
+    private static final ConcurrentMap<String, PendingWrites>                                         mutationList    = new MapMaker()
                                                                                                                               .makeMap();
+
+    // upper bound on the buffered mutations of each index
+    private static final long                                                                         maxQueueBytes   = Long
+                                                                                                                              .valueOf(CassandraUtils.properties
+                                                                                                                                      .getProperty(
+                                                                                                                                              "solandra.write.buffer.max.bytes",
+                                                                                                                                              "67108864"));
+
+    // what to do when an index's buffer is full: block or reject
+    private static final boolean                                                                      rejectWhenFull  = "reject"
+                                                                                                                              .equalsIgnoreCase(CassandraUtils.properties
+                                                                                                                                      .getProperty(
+                                                                                                                                              "solandra.write.buffer.full.policy",
+                                                                                                                                              "block"));
     private Similarity                                                                                similarity      = Similarity
                                                                                                                               .getDefault();
     private static final Logger                                                                       logger          = Logger.getLogger(IndexWriter.class);
     private static TProtocolFactory                                                                   protocolFactory = new TBinaryProtocol.Factory();
 
-    static final Map<ByteBuffer, List<Number>> emptyTermMap = new ConcurrentSkipListMap<ByteBuffer, List<Number>>();
+    // serializers hold a reusable output buffer
+    private static final ThreadLocal<TSerializer>                                                     serializer      = new ThreadLocal<TSerializer>() {
+                                                                                                                          protected TSerializer initialValue()
+                                                                                                                          {
+                                                                                                                              return new TSerializer(
+                                                                                                                                      protocolFactory);
+                                                                                                                          }
+                                                                                                                      };
+
+    // commit time merge ratio: mutations taken off the queues vs rows written
+    private static final AtomicLong                                                                   mutationsQueued = new AtomicLong(0);
+    private static final AtomicLong                                                                   mutationsWritten = new AtomicLong(0);
+
+    // max number of queued mutations sent to cassandra in one call
+    private static final int                                                                          writeBatchSize  = Integer
+                                                                                                                              .valueOf(CassandraUtils.properties
+                                                                                                                                      .getProperty(
+                                                                                                                                              "solandra.write.batch.size",
+                                                                                                                                              "4096"));
+
+    // how long a non blocking commit waits for more writes before flushing
+    private static final int                                                                          writeLingerMillis = Integer
+                                                                                                                              .valueOf(CassandraUtils.properties
+                                                                                                                                      .getProperty(
+                                                                                                                                              "solandra.write.linger.ms",
+                                                                                                                                              "0"));
+
+    private static final ScheduledThreadPoolExecutor                                                  writers;
+
+    // analyzes the documents of batch adds, callers run the overflow
+    private static final ThreadPoolExecutor                                                           analyzers;
+
     static
     {
-        emptyTermMap.put(CassandraUtils.termFrequencyKeyBytes, CassandraUtils.emptyArray);
-        emptyTermMap.put(CassandraUtils.positionVectorKeyBytes, CassandraUtils.emptyArray);
+        int threads = Integer.valueOf(CassandraUtils.properties.getProperty("solandra.write.threads", "4"));
+
+        writers = new ScheduledThreadPoolExecutor(threads, new NamedThreadFactory("SolandraWriter"));
+        writers.setKeepAliveTime(60, TimeUnit.SECONDS);
+        writers.allowCoreThreadTimeOut(true);
+
+        threads = Integer.valueOf(CassandraUtils.properties.getProperty("solandra.analysis.threads", String
+                .valueOf(Runtime.getRuntime().availableProcessors())));
+
+        analyzers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                threads * 64), new NamedThreadFactory("SolandraAnalyzer"), new ThreadPoolExecutor.CallerRunsPolicy());
+        analyzers.allowCoreThreadTimeOut(true);
+    }
+
+    // number of term list entries per index known to be written
+    private static final int                                                                          seenTermsSize   = Integer
+                                                                                                                              .valueOf(CassandraUtils.properties
+                                                                                                                                      .getProperty(
+                                                                                                                                              "solandra.write.terms.cache.size",
+                                                                                                                                              "65536"));
+
+    private static final AtomicLong                                                                   termListWritesSkipped = new AtomicLong(0);
+
+    // updates only rewrite the fields that changed, see updateDocument
+    private static final boolean                                                                      diffUpdates     = Boolean
+                                                                                                                              .valueOf(CassandraUtils.properties
+                                                                                                                                      .getProperty(
+                                                                                                                                              "solandra.update.diff",
+                                                                                                                                              "true"));
+
+    private static final AtomicLong                                                                   diffUpdateCount = new AtomicLong(0);
+    private static final AtomicLong                                                                   fullUpdateCount = new AtomicLong(0);
+    private static final AtomicLong                                                                   unchangedFieldsSkipped = new AtomicLong(0);
+
+    // number of matches a delete by query loads and tombstones at a time
+    private static final int                                                                          deletePageSize  = Integer
+                                                                                                                              .valueOf(CassandraUtils.properties
+                                                                                                                                      .getProperty(
+                                                                                                                                              "solandra.delete.page.size",
+                                                                                                                                              "1024"));
+
+    /**
+     * The buffered writes of one index. Only one flush per index writes at a
+     * time, and at most one is waiting to start.
+     */
+    private static final class PendingWrites
+    {
+        final MutationQueue              queue     = new MutationQueue(maxQueueBytes);
+        final ReentrantLock              writeLock = new ReentrantLock();
+        final AtomicReference<FlushTask> scheduled = new AtomicReference<FlushTask>();
+        final SeenTerms                  seenTerms = new SeenTerms(seenTermsSize);
+        final ByteBuffer                 termsKey;
+        // fields known to be listed in the norm fields row
+        final Set<ByteBuffer>            normFields = Collections
+                                                            .newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+        final ByteBuffer                 normFieldsKey;
+
+        // null unless solandra.journal.enabled. Queueing holds the read lock
+        // so a flush can note what is both journaled and queued
+        final MutationJournal            journal;
+        final ReadWriteLock              journalLock = new ReentrantReadWriteLock();
+
+        PendingWrites(String indexName)
+        {
+            try
+            {
+                termsKey = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes,
+                        "terms".getBytes("UTF-8"));
+                normFieldsKey = CassandraUtils.normFieldsRowKey(indexName.getBytes("UTF-8"));
+
+                journal = MutationJournal.enabled ? new MutationJournal(indexName) : null;
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                throw new RuntimeException(e);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException("Unable to open the write journal of " + indexName, e);
+            }
+        }
+    }
+
+    /**
+     * LRU of term list (TL) column names that are already stored, so
+     * documents only write the terms that are new to the index.
+     *
+     * Names are only added once their write succeeded and are matched
+     * exactly, a wrong hit would leave a term out of the term list for good.
+     * The names are split over stripes with their own lock and share of the
+     * size, so documents analyzed in parallel rarely wait on each other.
+     */
+    private static final class SeenTerms
+    {
+        private static final int                stripes = 16;
+
+        private final Map<ByteBuffer, Boolean>[] terms;
+
+        @SuppressWarnings("unchecked")
+        SeenTerms(int maxSize)
+        {
+            final int stripeSize = Math.max(1, maxSize / stripes);
+
+            terms = new Map[stripes];
+
+            for (int i = 0; i < stripes; i++)
+            {
+                terms[i] = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+                    protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest)
+                    {
+                        return size() > stripeSize;
+                    }
+                };
+            }
+        }
+
+        private Map<ByteBuffer, Boolean> stripe(ByteBuffer column)
+        {
+            int h = column.hashCode();
+
+            // spread the high bits down, as HashMap does
+            h ^= (h >>> 20) ^ (h >>> 12);
+            h ^= (h >>> 7) ^ (h >>> 4);
+
+            return terms[h & (stripes - 1)];
+        }
+
+        boolean contains(ByteBuffer column)
+        {
+            Map<ByteBuffer, Boolean> stripe = stripe(column);
+
+            synchronized (stripe)
+            {
+                return stripe.get(column) != null;
+            }
+        }
+
+        void addAll(Collection<ByteBuffer> columns)
+        {
+            for (ByteBuffer column : columns)
+            {
+                Map<ByteBuffer, Boolean> stripe = stripe(column);
+
+                synchronized (stripe)
+                {
+                    stripe.put(column, Boolean.TRUE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes out what an index has queued. Anything queued before the task
+     * starts running is covered by it, so waiting on it is a commit.
+     */
+    private static final class FlushTask implements Callable<Integer>
+    {
+        private final String              indexName;
+        private final PendingWrites       writes;
+
+        final FutureTask<Integer>         future = new FutureTask<Integer>(this) {
+                                                     protected void done()
+                                                     {
+                                                         if (isCancelled())
+                                                             return;
+
+                                                         try
+                                                         {
+                                                             get();
+                                                         }
+                                                         catch (InterruptedException e)
+                                                         {
+
+                                                         }
+                                                         catch (ExecutionException e)
+                                                         {
+                                                             logger.error("Write failed for " + indexName
+                                                                     + ", mutations re-queued", e.getCause());
+                                                         }
+                                                     }
+                                                 };
+
+        FlushTask(String indexName, PendingWrites writes)
+        {
+            this.indexName = indexName;
+            this.writes = writes;
+        }
+
+        public Integer call()
+        {
+            // make room for the next flush before taking anything, anything
+            // queued after this point is left to it
+            writes.scheduled.compareAndSet(this, null);
+
+            return writeQueued(indexName, writes);
+        }
     }
-    
+
     public IndexWriter()
     {
 
     }
 
-    @SuppressWarnings("unchecked")
     public void addDocument(String indexName, Document doc, Analyzer analyzer, int docNumber, boolean autoCommit,
             RowMutation rms[]) throws CorruptIndexException, IOException
     {
+        Map<ByteBuffer, RowMutation> workingMutations = invertDocument(indexName, doc, analyzer, docNumber);
+
+        if (rms != null)
+        {
+            List<RowMutation> rows = new ArrayList<RowMutation>(rms.length + workingMutations.size());
+
+            for (RowMutation rm : rms)
+            {
+                if (rm != null)
+                    rows.add(rm);
+            }
+
+            rows.addAll(workingMutations.values());
+
+            enqueue(indexName, rows);
+        }
+        else
+        {
+            appendMutations(indexName, workingMutations);
+        }
+
+        if (autoCommit)
+            commit(indexName, true);
+    }
+
+    /**
+     * Adds a batch of documents to one index. Documents are analyzed in
+     * parallel, then queued together with the extra mutations (like id
+     * bookkeeping), so a failed batch leaves nothing queued.
+     */
+    public void addDocuments(final String indexName, List<Document> docs, final Analyzer analyzer,
+            int[] docNumbers, boolean autoCommit, RowMutation rms[]) throws CorruptIndexException, IOException
+    {
+        if (docs.size() != docNumbers.length)
+            throw new IllegalArgumentException("docs and docNumbers must be the same length");
+
+        List<Future<Map<ByteBuffer, RowMutation>>> inverted = new ArrayList<Future<Map<ByteBuffer, RowMutation>>>(
+                docs.size());
+
+        for (int i = 0; i < docNumbers.length; i++)
+        {
+            final Document doc = docs.get(i);
+            final int docNumber = docNumbers[i];
+
+            inverted.add(analyzers.submit(new Callable<Map<ByteBuffer, RowMutation>>() {
+                public Map<ByteBuffer, RowMutation> call() throws IOException
+                {
+                    return invertDocument(indexName, doc, analyzer, docNumber);
+                }
+            }));
+        }
+
+        List<RowMutation> rows = new ArrayList<RowMutation>();
+        if (rms != null)
+            rows.addAll(Arrays.asList(rms));
+
+        try
+        {
+            for (Future<Map<ByteBuffer, RowMutation>> doc : inverted)
+                rows.addAll(doc.get().values());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted adding documents to " + indexName);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            throw new IOException(e.getCause());
+        }
+        finally
+        {
+            // don't leave analysis running for a failed batch
+            for (Future<Map<ByteBuffer, RowMutation>> doc : inverted)
+                doc.cancel(false);
+        }
+
+        enqueue(indexName, rows);
+
+        if (autoCommit)
+            commit(indexName, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<ByteBuffer, RowMutation> invertDocument(String indexName, Document doc, Analyzer analyzer,
+            int docNumber) throws IOException
+    {
+        // digests are only of use to diff updates
+        return invertDocument(indexName, doc, analyzer, docNumber, null, diffUpdates ? fieldDigests(doc) : null);
+    }
 
-       
+    /**
+     * Builds the mutations that write a document.
+     * 
+     * @param changedFields
+     *            if set only these fields are written. The other fields are
+     *            still analyzed, but only so the document metadata lists
+     *            every term, their stored postings are left as they are.
+     * @param digests
+     *            per field digests of the document, stored to diff later
+     *            updates against, or null to store none
+     */
+    private Map<ByteBuffer, RowMutation> invertDocument(String indexName, Document doc, Analyzer analyzer,
+            int docNumber, Set<String> changedFields, Map<String, ByteBuffer> digests) throws IOException
+    {
         Map<ByteBuffer, RowMutation> workingMutations = new HashMap<ByteBuffer, RowMutation>();
+        PendingWrites writes = getMutationQueue(indexName);
+        SeenTerms seenTerms = writes.seenTerms;
 
         byte[] indexNameBytes = indexName.getBytes("UTF-8");
         ByteBuffer indexTermsKey = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes,
                 "terms".getBytes("UTF-8"));
 
         DocumentMetadata allIndexedTerms = new DocumentMetadata();
-        Map<String, DocumentMetadata> fieldCache = new HashMap<String, DocumentMetadata>(1024);
+        Map<String, List<Fieldable>> storedFields = new HashMap<String, List<Fieldable>>();
+        Map<String, FieldInvertState> fieldStates = new HashMap<String, FieldInvertState>();
 
         // By default we don't handle indexSharding
         // We round robin replace the index
@@ -105,6 +461,7 @@ public class IndexWriter
         {
 
             ThriftTerm firstTerm = null;
+            boolean changed = changedFields == null || changedFields.contains(field.name());
 
             // Indexed field
             if (field.isIndexed() && field.isTokenized())
@@ -122,7 +479,8 @@ public class IndexWriter
                 }
 
                 // collect term information per field
-                Map<Term, Map<ByteBuffer, List<Number>>> allTermInformation = new HashMap<Term, Map<ByteBuffer, List<Number>>>();
+                TermInverter inverter = TermInverter.get();
+                inverter.reset();
 
                 int lastOffset = 0;
                 if (position > 0)
@@ -136,9 +494,13 @@ public class IndexWriter
 
                 // set up token attributes we are working on
 
+                // freqs, positions and offsets are dropped when the field
+                // omits them, each term then only records the doc
+                boolean docOnly = field.getOmitTermFreqAndPositions();
+
                 // offsets
                 OffsetAttribute offsetAttribute = null;
-                if (field.isStoreOffsetWithTermVector())
+                if (field.isStoreOffsetWithTermVector() && !docOnly)
                     offsetAttribute = (OffsetAttribute) tokens.addAttribute(OffsetAttribute.class);
 
                 // positions
@@ -149,117 +511,66 @@ public class IndexWriter
                 // term as string
                 CharTermAttribute termAttribute = (CharTermAttribute) tokens.addAttribute(CharTermAttribute.class);
 
-                // store normalizations of field per term per document rather
-                // than per field.
-                // this adds more to write but less to read on other side
-                Integer tokensInField = new Integer(0);
+                int tokensInField = 0;
+                int overlaps = 0;
 
                 while (tokens.incrementToken())
                 {
                     tokensInField++;
-                    Term term = new Term(field.name(), termAttribute.toString());
-
-                    ThriftTerm tterm = new ThriftTerm(term.field()).setText(
-                            ByteBuffer.wrap(term.text().getBytes("UTF-8"))).setIs_binary(false);
-
-                    if (firstTerm == null)
-                        firstTerm = tterm;
-
-                    allIndexedTerms.addToTerms(tterm);
-
-                    // fetch all collected information for this term
-                    Map<ByteBuffer, List<Number>> termInfo = allTermInformation.get(term);
-
-                    if (termInfo == null)
-                    {
-                        termInfo = new HashMap<ByteBuffer, List<Number>>();
-                        allTermInformation.put(term, termInfo);
-                    }
-
-                    // term frequency
-                    {
-                        List<Number> termFrequency = termInfo.get(CassandraUtils.termFrequencyKeyBytes);
 
-                        if (termFrequency == null)
-                        {
-                            termFrequency = new ArrayList<Number>();
-                            termFrequency.add(new Integer(0));
-                            termInfo.put(CassandraUtils.termFrequencyKeyBytes, termFrequency);
-                        }
+                    if (posIncrAttribute.getPositionIncrement() == 0)
+                        overlaps++;
 
-                        // increment
-                        termFrequency.set(0, termFrequency.get(0).intValue() + 1);
-                    }
+                    position += (posIncrAttribute.getPositionIncrement() - 1);
+                    position++;
 
-                    // position vector
+                    if (offsetAttribute != null)
                     {
-                        position += (posIncrAttribute.getPositionIncrement() - 1);
-
-                        List<Number> positionVector = termInfo.get(CassandraUtils.positionVectorKeyBytes);
-
-                        if (positionVector == null)
-                        {
-                            positionVector = new ArrayList<Number>();
-                            termInfo.put(CassandraUtils.positionVectorKeyBytes, positionVector);
-                        }
-
-                        positionVector.add(++position);
+                        inverter.add(termAttribute.buffer(), termAttribute.length(), position, lastOffset
+                                + offsetAttribute.startOffset(), lastOffset + offsetAttribute.endOffset());
                     }
-
-                    // term offsets
-                    if (field.isStoreOffsetWithTermVector())
+                    else
                     {
-
-                        List<Number> offsetVector = termInfo.get(CassandraUtils.offsetVectorKeyBytes);
-                        if (offsetVector == null)
-                        {
-                            offsetVector = new ArrayList<Number>();
-                            termInfo.put(CassandraUtils.offsetVectorKeyBytes, offsetVector);
-                        }
-
-                        offsetVector.add(lastOffset + offsetAttribute.startOffset());
-                        offsetVector.add(lastOffset + offsetAttribute.endOffset());
-
+                        inverter.add(termAttribute.buffer(), termAttribute.length(), position);
                     }
                 }
 
-                List<Number> bnorm = null;
                 if (!field.getOmitNorms())
+                    addFieldLength(fieldStates, doc, field, tokensInField, overlaps);
+
+                byte[] fieldNameBytes = field.name().getBytes("UTF-8");
+
+                for (int termId = 0; termId < inverter.size(); termId++)
                 {
-                    bnorm = new ArrayList<Number>();
+                    String text = inverter.term(termId);
+                    byte[] textBytes = text.getBytes("UTF-8");
 
-                    final FieldInvertState invertState = new FieldInvertState();
-                    invertState.setBoost(doc.getBoost() * field.getBoost());
-                    invertState.setLength(tokensInField);
-                    final float norm = similarity.computeNorm(field.name(), invertState);
+                    ThriftTerm tterm = new ThriftTerm(field.name()).setText(ByteBuffer.wrap(textBytes)).setIs_binary(
+                            false);
 
-                    bnorm.add(Similarity.getDefault().encodeNormValue(norm));
-                }
+                    if (firstTerm == null)
+                        firstTerm = tterm;
 
-                for (Map.Entry<Term, Map<ByteBuffer, List<Number>>> term : allTermInformation.entrySet())
-                {
+                    allIndexedTerms.addToTerms(tterm);
+
+                    if (!changed)
+                        continue;
 
                     // Terms are stored within a unique key combination
                     // This is required since cassandra loads all columns
                     // in a key/column family into memory
-                    ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, term
-                            .getKey().field().getBytes("UTF-8"), CassandraUtils.delimeterBytes, term.getKey().text()
-                            .getBytes("UTF-8"));
+                    ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes,
+                            fieldNameBytes, CassandraUtils.delimeterBytes, textBytes);
 
-                    // Mix in the norm for this field alongside each term
-                    // more writes but faster on read side.
-                    if (!field.getOmitNorms())
-                    {
-                        term.getValue().put(CassandraUtils.normsKeyBytes, bnorm);
-                    }
+                    LucandraTermInfo termInfo = docOnly ? new LucandraTermInfo(docNumber, 1, null, null, null)
+                            : inverter.termInfo(termId, docNumber, null);
 
                     CassandraUtils.addMutations(workingMutations, CassandraUtils.termVecColumnFamily, docId, key,
-                            new LucandraTermInfo(docNumber, term.getValue()).serialize());
+                            termInfo.serialize());
 
                     // Store all terms under a row
-                    CassandraUtils.addMutations(workingMutations, CassandraUtils.metaInfoColumnFamily,
-                            CassandraUtils.createColumnName(term.getKey()), indexTermsKey,
-                            ByteBufferUtil.EMPTY_BYTE_BUFFER);
+                    addTermListMutation(workingMutations, seenTerms, ByteBuffer.wrap(CassandraUtils
+                            .createColumnName(field.name(), text)), indexTermsKey);
                 }
             }
 
@@ -274,53 +585,42 @@ public class IndexWriter
 
                 allIndexedTerms.addToTerms(tterm);
 
-                ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"),
-                        CassandraUtils.delimeterBytes, field.name().getBytes("UTF-8"), CassandraUtils.delimeterBytes,
-                        field.stringValue().getBytes("UTF-8"));
+                if (!field.getOmitNorms())
+                    addFieldLength(fieldStates, doc, field, 1, 0);
 
-                
-                CassandraUtils.addMutations(workingMutations, CassandraUtils.termVecColumnFamily, docId, key,
-                        new LucandraTermInfo(docNumber, emptyTermMap).serialize());
+                if (changed)
+                {
+                    ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"),
+                            CassandraUtils.delimeterBytes, field.name().getBytes("UTF-8"),
+                            CassandraUtils.delimeterBytes, field.stringValue().getBytes("UTF-8"));
 
-                // Store all terms under a row
-                CassandraUtils.addMutations(workingMutations, CassandraUtils.metaInfoColumnFamily,
-                        CassandraUtils.createColumnName(field), indexTermsKey, ByteBufferUtil.EMPTY_BYTE_BUFFER);
+                    int freq = field.getOmitTermFreqAndPositions() ? 1 : 0;
+
+                    CassandraUtils.addMutations(workingMutations, CassandraUtils.termVecColumnFamily, docId, key,
+                            new LucandraTermInfo(docNumber, freq, null, null, null).serialize());
+
+                    // Store all terms under a row
+                    addTermListMutation(workingMutations, seenTerms, CassandraUtils.createColumnName(field),
+                            indexTermsKey);
+                }
             }
 
             // Stores each field as a column under this doc key
             if (field.isStored())
             {
-                ThriftTerm tt = new ThriftTerm(field.name());
-
-                if (field instanceof NumericField)
-                {
-                    Number n = ((NumericField) field).getNumericValue();
-                    switch(((NumericField) field).getDataType())
-                    {
-                    case LONG: tt.setLongVal(n.longValue()); break;
-                    case INT: tt.setIntVal(n.intValue()); break;
-                    case FLOAT: tt.setFloatVal(n.floatValue()); break;
-                    case DOUBLE: tt.setDoubleVal(n.doubleValue()); break;
-                    default: throw new IllegalStateException("Unknown numeric type in field: "+field);
-                    };
-                }
-
-                byte[] value = field.isBinary() ? field.getBinaryValue() : field.stringValue().getBytes("UTF-8");
-                tt.setText(ByteBuffer.wrap(value)).setIs_binary(field.isBinary());
-
                 // logic to handle multiple fields w/ same name
-                DocumentMetadata currentValue = fieldCache.get(field.name());
-                if (currentValue == null)
+                List<Fieldable> values = storedFields.get(field.name());
+                if (values == null)
                 {
-                    currentValue = new DocumentMetadata();
-                    fieldCache.put(field.name(), currentValue);
+                    values = new ArrayList<Fieldable>(1);
+                    storedFields.put(field.name(), values);
                 }
 
-                currentValue.addToTerms(tt);
+                values.add(field);
             }
 
             // Store for field cache
-            if (firstTerm != null)
+            if (firstTerm != null && changed)
             {
                 ByteBuffer fieldCacheKey = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes,
                         firstTerm.field.getBytes());
@@ -332,38 +632,210 @@ public class IndexWriter
             }
         }
 
+        // One norm per field, all of a field's norms share a row so a reader
+        // loads them in one go
+        for (Map.Entry<String, FieldInvertState> field : fieldStates.entrySet())
+        {
+            if (changedFields != null && !changedFields.contains(field.getKey()))
+                continue;
+
+            byte norm = Similarity.getDefault().encodeNormValue(
+                    similarity.computeNorm(field.getKey(), field.getValue()));
+
+            CassandraUtils.addMutations(workingMutations, CassandraUtils.fieldCacheColumnFamily,
+                    CassandraUtils.writeVInt(docNumber), CassandraUtils.normsRowKey(indexNameBytes, field.getKey()
+                            .getBytes("UTF-8")), new byte[] { norm });
+
+            // readers only look for the norms of fields listed here
+            ByteBuffer fieldName = ByteBuffer.wrap(field.getKey().getBytes("UTF-8"));
+
+            if (!writes.normFields.contains(fieldName))
+                CassandraUtils.addMutations(workingMutations, CassandraUtils.fieldCacheColumnFamily, fieldName,
+                        writes.normFieldsKey, ByteBufferUtil.EMPTY_BYTE_BUFFER);
+        }
+
         ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, Integer
                 .toHexString(docNumber).getBytes("UTF-8"));
 
         // Store each field as a column under this docId
-        for (Map.Entry<String, DocumentMetadata> field : fieldCache.entrySet())
+        for (Map.Entry<String, List<Fieldable>> field : storedFields.entrySet())
         {
+            if (changedFields != null && !changedFields.contains(field.getKey()))
+                continue;
+
             CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily,
-                    field.getKey().getBytes("UTF-8"), key, toBytesUsingThrift(field.getValue()));
+                    field.getKey().getBytes("UTF-8"), key, StoredFieldCodec.encode(field.getValue(),
+                            CompressionCodecs.forField(indexName, field.getKey())));
         }
 
         // Finally, Store meta-data so we can delete this document
         CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily,
                 CassandraUtils.documentMetaFieldBytes, key, toBytesUsingThrift(allIndexedTerms));
 
-        if (rms != null)
+        if (digests != null)
+            CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily,
+                    CassandraUtils.documentDigestFieldBytes, key, toBytesUsingThrift(toDigestMetadata(digests)));
+
+        return workingMutations;
+    }
+
+    /**
+     * Digests the values and indexing options of each field, fields with the
+     * same name are digested together. A token stream field is digested by its
+     * stored value, as Solr's numeric fields are built. Fields with reader
+     * values, or token streams and nothing stored, can't be digested and are
+     * left out so they always count as changed.
+     */
+    private static Map<String, ByteBuffer> fieldDigests(Document doc) throws IOException
+    {
+        Map<String, MessageDigest> digests = new HashMap<String, MessageDigest>();
+        Set<String> undigestable = new HashSet<String>();
+
+        for (Fieldable field : doc.getFields())
         {
-            Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> mutationQ = getMutationQueue(indexName);
+            if (undigestable.contains(field.name()))
+                continue;
 
-            List<RowMutation> rows = new ArrayList(Arrays.asList(rms));
-            rows.addAll(workingMutations.values());
+            byte[] value = null;
+            int offset = 0;
+            int length = 0;
+
+            if (field instanceof NumericField
+                    || (field.readerValue() == null && (field.isStored() || field.tokenStreamValue() == null)))
+            {
+                if (field.isBinary())
+                {
+                    value = field.getBinaryValue();
+                    offset = field.getBinaryOffset();
+                    length = field.getBinaryLength();
+                }
+                else if (field.stringValue() != null)
+                {
+                    value = field.stringValue().getBytes("UTF-8");
+                    length = value.length;
+                }
+            }
+
+            if (value == null)
+            {
+                undigestable.add(field.name());
+                continue;
+            }
+
+            MessageDigest digest = digests.get(field.name());
+            if (digest == null)
+            {
+                digest = newDigest();
+                digests.put(field.name(), digest);
+
+                digest.update(ByteBuffer.allocate(4).putFloat(0, doc.getBoost()));
+            }
+
+            int flags = (field.isIndexed() ? 1 : 0) | (field.isTokenized() ? 2 : 0) | (field.isStored() ? 4 : 0)
+                    | (field.isBinary() ? 8 : 0) | (field.getOmitNorms() ? 16 : 0)
+                    | (field.isStoreOffsetWithTermVector() ? 32 : 0);
+
+            ByteBuffer header = ByteBuffer.allocate(9);
+            header.put((byte) flags).putFloat(field.getBoost());
 
-            mutationQ.right.addAll(rows);
+            if (field instanceof NumericField)
+                header.putInt(((NumericField) field).getDataType().ordinal());
+
+            header.flip();
+            digest.update(header);
+
+            digest.update(CassandraUtils.writeVInt(length));
+            digest.update(value, offset, length);
         }
-        else
+
+        Map<String, ByteBuffer> result = new HashMap<String, ByteBuffer>(digests.size());
+
+        for (Map.Entry<String, MessageDigest> e : digests.entrySet())
         {
-            appendMutations(indexName, workingMutations);
+            if (!undigestable.contains(e.getKey()))
+                result.put(e.getKey(), ByteBuffer.wrap(e.getValue().digest()));
         }
 
-        if (autoCommit)
-            commit(indexName, false);
+        return result;
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException("JVM doesn't support MD5", e);
+        }
+    }
+
+    private static DocumentMetadata toDigestMetadata(Map<String, ByteBuffer> digests)
+    {
+        DocumentMetadata dm = new DocumentMetadata();
+
+        for (Map.Entry<String, ByteBuffer> e : digests.entrySet())
+            dm.addToTerms(new ThriftTerm(e.getKey()).setText(e.getValue()).setIs_binary(true));
+
+        return dm;
+    }
+
+    private static Map<String, ByteBuffer> fromDigestMetadata(DocumentMetadata dm)
+    {
+        Map<String, ByteBuffer> digests = new HashMap<String, ByteBuffer>();
+
+        if (dm.getTerms() != null)
+        {
+            for (ThriftTerm term : dm.getTerms())
+                digests.put(term.getField(), term.bufferForText());
+        }
+
+        return digests;
+    }
+
+    /**
+     * Adds the tokens of one instance of a field to the length the field's
+     * norm is computed from. Instances of the same field share a norm.
+     */
+    private static void addFieldLength(Map<String, FieldInvertState> fieldStates, Document doc, Fieldable field,
+            int length, int overlaps)
+    {
+        FieldInvertState state = fieldStates.get(field.name());
+
+        if (state == null)
+        {
+            state = new FieldInvertState();
+            state.setBoost(doc.getBoost());
+            fieldStates.put(field.name(), state);
+        }
+
+        state.setLength(state.getLength() + length);
+        state.setNumOverlap(state.getNumOverlap() + overlaps);
+        state.setBoost(state.getBoost() * field.getBoost());
+    }
+
+    private static void addTermListMutation(Map<ByteBuffer, RowMutation> workingMutations, SeenTerms seenTerms,
+            ByteBuffer column, ByteBuffer indexTermsKey)
+    {
+        if (seenTerms.contains(column))
+        {
+            termListWritesSkipped.incrementAndGet();
+            return;
+        }
+
+        CassandraUtils.addMutations(workingMutations, CassandraUtils.metaInfoColumnFamily, column, indexTermsKey,
+                ByteBufferUtil.EMPTY_BYTE_BUFFER);
     }
 
+    /**
+     * Deletes every document matching the query. Matches are streamed from the
+     * search in pages of solandra.delete.page.size, each page loads the
+     * metadata of its documents in one read and queues their tombstones, so
+     * memory use doesn't grow with the number of matches.
+     * 
+     * @return the number of documents deleted
+     */
     public long deleteDocuments(final String indexName, Query query, final boolean autoCommit)
             throws CorruptIndexException, IOException
     {
@@ -372,15 +844,14 @@ public class IndexWriter
         IndexSearcher searcher = new IndexSearcher(reader);
         final AtomicLong numRemoved = new AtomicLong(0);
 
-        // Also delete the id lookup
-        final ByteBuffer idKey = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes,
-                "ids".getBytes("UTF-8"));
-        
-        final Map<ByteBuffer, RowMutation> workingMutations = new HashMap<ByteBuffer, RowMutation>();
-        final RowMutation rm = new RowMutation(CassandraUtils.keySpace, idKey);
-        workingMutations.put(idKey, rm);
-        
-        Collector collector = new Collector() {
+        final byte[] indexNameBytes = indexName.getBytes("UTF-8");
+        final int[] page = new int[deletePageSize];
+        final long startTime = System.currentTimeMillis();
+
+        class PagedDeleter extends Collector
+        {
+            private int docBase = 0;
+            private int pageSize = 0;
 
             @Override
             public void setScorer(Scorer scorer) throws IOException
@@ -391,18 +862,17 @@ public class IndexWriter
             @Override
             public void setNextReader(org.apache.lucene.index.IndexReader reader, int docBase) throws IOException
             {
-          
+                flush();
+                this.docBase = docBase;
             }
 
             @Override
             public void collect(int docNumber) throws IOException
             {
-                deleteLucandraDocument(indexName, docNumber, autoCommit);
-                numRemoved.incrementAndGet();
-                
-                //delete the id reference
-                rm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBufferUtil.bytes(Integer.toString(docNumber))), System.currentTimeMillis()-1);
-               
+                page[pageSize++] = docBase + docNumber;
+
+                if (pageSize == page.length)
+                    flush();
             }
 
             @Override
@@ -410,29 +880,98 @@ public class IndexWriter
             {
                 return false;
             }
-        };
+
+            void flush() throws IOException
+            {
+                if (pageSize == 0)
+                    return;
+
+                deleteLucandraDocuments(indexName, indexNameBytes, page, pageSize);
+
+                long removed = numRemoved.addAndGet(pageSize);
+                pageSize = 0;
+
+                if (removed % (deletePageSize * 100L) < deletePageSize)
+                    logger.info("Deleted " + removed + " documents from " + indexName + " in "
+                            + (System.currentTimeMillis() - startTime) + "ms");
+            }
+        }
 
         //collector will perform deletes
-        searcher.search(query, collector);   
-        
-        appendMutations(indexName, workingMutations);
-        
+        PagedDeleter collector = new PagedDeleter();
+        searcher.search(query, collector);
+
+        // last partial page
+        collector.flush();
+
         if(autoCommit)
-            commit(indexName, false);
+            commit(indexName, true);
 
         return numRemoved.get();
     }
 
-    public void deleteDocuments(String indexName, Term term, boolean autoCommit) throws CorruptIndexException,
-            IOException
+    /**
+     * Tombstones a page of documents, reading all their metadata at once
+     */
+    private void deleteLucandraDocuments(String indexName, byte[] indexNameBytes, int[] docNumbers, int count)
+            throws IOException
     {
-        ColumnParent cp = new ColumnParent(CassandraUtils.termVecColumnFamily);
+        ColumnParent columnParent = new ColumnParent(CassandraUtils.docColumnFamily);
+        List<ByteBuffer> metaColumn = Arrays.asList(CassandraUtils.documentMetaFieldBytes);
 
-        ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes, term
-                .field().getBytes("UTF-8"), CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8"));
+        ReadCommand[] readCommands = new ReadCommand[count];
+        Map<ByteBuffer, Integer> docNumberByKey = new HashMap<ByteBuffer, Integer>(count);
 
-        ReadCommand rc = new SliceFromReadCommand(CassandraUtils.keySpace, key, cp, ByteBufferUtil.EMPTY_BYTE_BUFFER,
-                ByteBufferUtil.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE);
+        for (int i = 0; i < count; i++)
+        {
+            ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, Integer
+                    .toHexString(docNumbers[i]).getBytes("UTF-8"));
+
+            readCommands[i] = new SliceByNamesReadCommand(CassandraUtils.keySpace, key, columnParent, metaColumn);
+            docNumberByKey.put(key, docNumbers[i]);
+        }
+
+        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, readCommands);
+
+        Map<ByteBuffer, RowMutation> workingMutations = new HashMap<ByteBuffer, RowMutation>();
+
+        // Also delete the id lookup
+        ByteBuffer idKey = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, "ids"
+                .getBytes("UTF-8"));
+        RowMutation idRow = new RowMutation(CassandraUtils.keySpace, idKey);
+        workingMutations.put(idKey, idRow);
+
+        for (Row row : rows)
+        {
+            if (row.cf == null)
+                continue;
+
+            IColumn metaCol = row.cf.getColumn(CassandraUtils.documentMetaFieldBytes);
+            if (metaCol == null || metaCol.isMarkedForDelete())
+                continue;
+
+            int docNumber = docNumberByKey.get(row.key.key);
+
+            addDeleteMutations(workingMutations, indexNameBytes, docNumber, row.key.key,
+                    fromBytesUsingThrift(metaCol.value()));
+
+            idRow.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBufferUtil.bytes(Integer
+                    .toString(docNumber))), System.currentTimeMillis() - 1);
+        }
+
+        appendMutations(indexName, workingMutations);
+    }
+
+    public void deleteDocuments(String indexName, Term term, boolean autoCommit) throws CorruptIndexException,
+            IOException
+    {
+        ColumnParent cp = new ColumnParent(CassandraUtils.termVecColumnFamily);
+
+        ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes, term
+                .field().getBytes("UTF-8"), CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8"));
+
+        ReadCommand rc = new SliceFromReadCommand(CassandraUtils.keySpace, key, cp, ByteBufferUtil.EMPTY_BYTE_BUFFER,
+                ByteBufferUtil.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE);
 
         List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, rc);
 
@@ -471,8 +1010,24 @@ public class IndexWriter
         if (metaCol == null)
             return;
 
-        DocumentMetadata terms = fromBytesUsingThrift(metaCol.value());
+        addDeleteMutations(workingMutations, indexNameBytes, docNumber, key, fromBytesUsingThrift(metaCol.value()));
+
+        if (logger.isDebugEnabled())
+            logger.debug("Deleted all terms for: " + docNumber);
+
+        appendMutations(indexName, workingMutations);
 
+        if (autoCommit)
+            commit(indexName, true);
+    }
+
+    /**
+     * Adds the tombstones of a document's terms, field cache entries and
+     * stored fields
+     */
+    private static void addDeleteMutations(Map<ByteBuffer, RowMutation> workingMutations, byte[] indexNameBytes,
+            int docNumber, ByteBuffer docKey, DocumentMetadata terms)
+    {
         Set<String> fields = new HashSet<String>();
 
         for (ThriftTerm term : terms.getTerms())
@@ -486,9 +1041,14 @@ public class IndexWriter
                 CassandraUtils.addMutations(workingMutations, CassandraUtils.fieldCacheColumnFamily,
                         CassandraUtils.writeVInt(docNumber), fieldCacheKey, (ByteBuffer) null);
 
+                CassandraUtils.addMutations(workingMutations, CassandraUtils.fieldCacheColumnFamily,
+                        CassandraUtils.writeVInt(docNumber), CassandraUtils.normsRowKey(indexNameBytes, term
+                                .getField().getBytes(CassandraUtils.UTF_8)), (ByteBuffer) null);
+
                 fields.add(term.getField());
             }
 
+            ByteBuffer key;
             try
             {
                 key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, term.getField()
@@ -504,25 +1064,173 @@ public class IndexWriter
         }
                 
         // finally delete ourselves
-        ByteBuffer selfKey = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, docId);
-        CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily, (ByteBuffer) null, selfKey,
+        CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily, (ByteBuffer) null, docKey,
                 (ByteBuffer) null);
+    }
 
-        if (logger.isDebugEnabled())
-            logger.debug("Deleted all terms for: " + docNumber);
+    /**
+     * Replaces the document stored under docNumber.
+     * 
+     * Unless solandra.update.diff is off, the fields are compared to the stored
+     * document using per field digests and only the changed ones are
+     * rewritten: their terms that are gone get tombstoned, the rest are
+     * overwritten in place. Documents written before digests were stored, or
+     * if nothing is stored under docNumber, are deleted by updateTerm and
+     * added again.
+     */
+    public void updateDocument(String indexName, Term updateTerm, Document doc, Analyzer analyzer, int docNumber,
+            boolean autoCommit) throws CorruptIndexException, IOException
+    {
+        Map<ByteBuffer, RowMutation> mutations = diffUpdates ? diffDocument(indexName, doc, analyzer, docNumber)
+                : null;
 
-        appendMutations(indexName, workingMutations);
+        if (mutations == null)
+        {
+            fullUpdateCount.incrementAndGet();
+
+            deleteDocuments(indexName, updateTerm, false);
+            addDocument(indexName, doc, analyzer, docNumber, autoCommit, null);
+            return;
+        }
+
+        diffUpdateCount.incrementAndGet();
+
+        appendMutations(indexName, mutations);
 
         if (autoCommit)
-            commit(indexName, false);
+            commit(indexName, true);
     }
 
-    public void updateDocument(String indexName, Term updateTerm, Document doc, Analyzer analyzer, int docNumber,
-            boolean autoCommit) throws CorruptIndexException, IOException
+    /**
+     * @return the mutations turning the stored version of the document into
+     *         doc, or null if there are no digests to compare against
+     */
+    private Map<ByteBuffer, RowMutation> diffDocument(String indexName, Document doc, Analyzer analyzer,
+            int docNumber) throws IOException
     {
+        docNumber = docNumber % CassandraIndexManager.maxDocsPerShard;
+
+        byte[] indexNameBytes = indexName.getBytes("UTF-8");
+        ByteBuffer key = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, Integer
+                .toHexString(docNumber).getBytes("UTF-8"));
+
+        List<Row> rows = CassandraUtils.robustRead(key, CassandraUtils.metaColumnPath, Arrays.asList(
+                CassandraUtils.documentMetaFieldBytes, CassandraUtils.documentDigestFieldBytes),
+                CassandraUtils.consistency);
 
-        deleteDocuments(indexName, updateTerm, false);
-        addDocument(indexName, doc, analyzer, docNumber, autoCommit, null);     
+        if (rows.isEmpty() || rows.get(0).cf == null)
+            return null;
+
+        IColumn metaCol = rows.get(0).cf.getColumn(CassandraUtils.documentMetaFieldBytes);
+        IColumn digestCol = rows.get(0).cf.getColumn(CassandraUtils.documentDigestFieldBytes);
+
+        if (metaCol == null || digestCol == null)
+            return null;
+
+        DocumentMetadata oldTerms = fromBytesUsingThrift(metaCol.value());
+        Map<String, ByteBuffer> oldDigests = fromDigestMetadata(fromBytesUsingThrift(digestCol.value()));
+        Map<String, ByteBuffer> newDigests = fieldDigests(doc);
+
+        // fields added, removed, changed or without a digest
+        Set<String> changedFields = new HashSet<String>();
+        Set<String> storedFields = new HashSet<String>();
+
+        for (Fieldable field : doc.getFields())
+        {
+            ByteBuffer digest = newDigests.get(field.name());
+
+            if (digest == null || !digest.equals(oldDigests.get(field.name())))
+                changedFields.add(field.name());
+
+            if (field.isStored())
+                storedFields.add(field.name());
+        }
+
+        for (String field : oldDigests.keySet())
+        {
+            if (!newDigests.containsKey(field))
+                changedFields.add(field);
+        }
+
+        if (oldTerms.getTerms() != null)
+        {
+            for (ThriftTerm term : oldTerms.getTerms())
+            {
+                if (!newDigests.containsKey(term.getField()))
+                    changedFields.add(term.getField());
+            }
+        }
+
+        for (String field : newDigests.keySet())
+        {
+            if (!changedFields.contains(field))
+                unchangedFieldsSkipped.incrementAndGet();
+        }
+
+        Map<ByteBuffer, RowMutation> workingMutations = invertDocument(indexName, doc, analyzer, docNumber,
+                changedFields, newDigests);
+
+        ByteBuffer docId = ByteBuffer.wrap(CassandraUtils.writeVInt(docNumber));
+
+        // Remove what the changed fields no longer have, anything still there
+        // was just overwritten
+        if (oldTerms.getTerms() != null)
+        {
+            for (ThriftTerm term : oldTerms.getTerms())
+            {
+                if (!changedFields.contains(term.getField()))
+                    continue;
+
+                byte[] fieldNameBytes = term.getField().getBytes("UTF-8");
+
+                ByteBuffer termKey = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes,
+                        fieldNameBytes, CassandraUtils.delimeterBytes, term.getText());
+
+                if (!workingMutations.containsKey(termKey))
+                    CassandraUtils.addMutations(workingMutations, CassandraUtils.termVecColumnFamily, docId, termKey,
+                            (ByteBuffer) null);
+
+                ByteBuffer fieldCacheKey = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes,
+                        term.getField().getBytes());
+
+                if (!workingMutations.containsKey(fieldCacheKey))
+                    CassandraUtils.addMutations(workingMutations, CassandraUtils.fieldCacheColumnFamily,
+                            CassandraUtils.writeVInt(docNumber), fieldCacheKey, (ByteBuffer) null);
+
+                ByteBuffer normsKey = CassandraUtils.normsRowKey(indexNameBytes, fieldNameBytes);
+
+                if (!workingMutations.containsKey(normsKey))
+                    CassandraUtils.addMutations(workingMutations, CassandraUtils.fieldCacheColumnFamily,
+                            CassandraUtils.writeVInt(docNumber), normsKey, (ByteBuffer) null);
+            }
+        }
+
+        for (String field : changedFields)
+        {
+            if (!storedFields.contains(field))
+                CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily, field
+                        .getBytes("UTF-8"), key, (ByteBuffer) null);
+        }
+
+        return workingMutations;
+    }
+
+    /** Number of updates that only rewrote the changed fields */
+    public static long getDiffUpdates()
+    {
+        return diffUpdateCount.get();
+    }
+
+    /** Number of updates that deleted and re-added the whole document */
+    public static long getFullUpdates()
+    {
+        return fullUpdateCount.get();
+    }
+
+    /** Number of fields left untouched by updates because they didn't change */
+    public static long getUnchangedFieldsSkipped()
+    {
+        return unchangedFieldsSkipped.get();
     }
 
     public int docCount()
@@ -532,97 +1240,394 @@ public class IndexWriter
 
     }
 
-    // write completed mutations
+    /**
+     * Writes out everything buffered for the index.
+     *
+     * @param blocked
+     *            wait until the write is done, otherwise it is handed off to
+     *            a writer thread
+     */
     public void commit(String indexName, boolean blocked)
     {
+        Future<Integer> handle = scheduleFlush(indexName, blocked);
+
+        if (!blocked)
+            return;
+
+        try
+        {
+            handle.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted committing " + indexName, e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
 
-        Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> mutationQ = getMutationQueue(indexName);
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
-        boolean success = false;
+    /**
+     * Hands the index's buffered writes to a writer thread.
+     *
+     * @return a handle that completes, with the number of mutations written,
+     *         once everything queued before this call is written
+     */
+    public Future<Integer> commitAsync(String indexName)
+    {
+        return scheduleFlush(indexName, false);
+    }
 
-        List<RowMutation> rows = new ArrayList<RowMutation>();
+    private Future<Integer> scheduleFlush(String indexName, boolean now)
+    {
+        PendingWrites writes = getMutationQueue(indexName);
 
-        // Take and write
-        try
+        while (true)
         {
-            while (blocked && mutationQ.left.get() > 0)
+            FlushTask task = writes.scheduled.get();
+
+            if (task == null)
+            {
+                task = new FlushTask(indexName, writes);
+
+                if (!writes.scheduled.compareAndSet(null, task))
+                    continue;
+
+                if (now || writeLingerMillis <= 0)
+                    writers.execute(task.future);
+                else
+                    writers.schedule(task.future, writeLingerMillis, TimeUnit.MILLISECONDS);
+            }
+            else if (now)
             {
-                Thread.sleep(20);
+                // don't wait out the linger, the task only runs once
+                writers.execute(task.future);
             }
 
-            // marked active write
-            mutationQ.left.incrementAndGet();
+            return task.future;
+        }
+    }
 
-            Iterator<RowMutation> it = mutationQ.right.iterator();
-            while(it.hasNext())
-                rows.add(it.next());
+    private static int writeQueued(String indexName, PendingWrites writes)
+    {
+        writes.writeLock.lock();
+        try
+        {
+            int remaining;
+            long journaled = 0;
 
-            
-            if (rows.isEmpty())
+            if (writes.journal != null)
             {
-                if (logger.isDebugEnabled())
-                    logger.debug("Nothing to write for :" + indexName);
-                return;
+                writes.journalLock.writeLock().lock();
+                try
+                {
+                    remaining = writes.queue.depth();
+                    journaled = writes.journal.position();
+                }
+                finally
+                {
+                    writes.journalLock.writeLock().unlock();
+                }
             }
+            else
+            {
+                remaining = writes.queue.depth();
+            }
+
+            int written = 0;
+
+            while (remaining > 0)
+            {
+                List<RowMutation> batch = writes.queue.drain(Math.min(remaining, writeBatchSize));
+
+                if (batch.isEmpty())
+                    break;
+
+                remaining -= batch.size();
 
-            mutationQ.right.removeAll(rows);
-            CassandraUtils.robustInsert(CassandraUtils.consistency, rows.toArray(new RowMutation[] {}));
-            
-            success = true;
+                List<RowMutation> rows = coalesce(batch);
+
+                try
+                {
+                    CassandraUtils.robustInsert(CassandraUtils.consistency, rows.toArray(new RowMutation[] {}));
+                }
+                catch (RuntimeException e)
+                {
+                    // add them back for another attempt
+                    writes.queue.force(rows);
+                    throw e;
+                }
+
+                mutationsQueued.addAndGet(batch.size());
+                mutationsWritten.addAndGet(rows.size());
+                written += batch.size();
+
+                rememberTerms(writes, rows);
+            }
+
+            // everything journaled before we started is written now
+            if (writes.journal != null)
+                writes.journal.discard(journaled);
+
+            if (logger.isDebugEnabled())
+                logger.debug("wrote " + written + " for " + indexName);
+
+            return written;
         }
-        catch (InterruptedException e)
+        finally
         {
-            // handled below
+            writes.writeLock.unlock();
         }
-        finally
+    }
+
+    // after a successful write, note which term list entries and norm
+    // fields are stored
+    private static void rememberTerms(PendingWrites writes, List<RowMutation> rows)
+    {
+        for (RowMutation rm : rows)
         {
+            if (rm.key().equals(writes.normFieldsKey))
+            {
+                for (ColumnFamily cf : rm.getColumnFamilies())
+                    writes.normFields.addAll(cf.getColumnNames());
+
+                continue;
+            }
 
-            // If write failed, add them back for another attempt
-            if (!success)
+            if (!rm.key().equals(writes.termsKey))
+                continue;
+
+            for (ColumnFamily cf : rm.getColumnFamilies())
             {
-                if (rows != null)
-                    mutationQ.right.addAll(rows);
+                if (cf.metadata().cfName.equals(CassandraUtils.metaInfoColumnFamily))
+                    writes.seenTerms.addAll(cf.getColumnNames());
             }
-            else
+        }
+    }
+
+    /** Number of term list writes skipped because the term was known */
+    public static long getTermListWritesSkipped()
+    {
+        return termListWritesSkipped.get();
+    }
+
+    /**
+     * Folds all mutations for the same row key into a single RowMutation,
+     * merging the column families they touch. Rows keep the order in which
+     * their key was first seen.
+     */
+    static List<RowMutation> coalesce(List<RowMutation> rows)
+    {
+        Map<ByteBuffer, RowMutation> byKey = new LinkedHashMap<ByteBuffer, RowMutation>(rows.size());
+
+        // queued mutations are only copied once a second one shows up for the
+        // same key, so unique rows go out as is
+        Set<RowMutation> merged = null;
+        List<RowMutation> otherTables = null;
+
+        for (RowMutation rm : rows)
+        {
+            RowMutation existing = byKey.get(rm.key());
+
+            if (existing == null)
             {
-                if (logger.isDebugEnabled())
-                    logger.debug("wrote " + rows.size());
+                byKey.put(rm.key(), rm);
+                continue;
             }
 
-            // Mark we are done.
-            mutationQ.left.decrementAndGet();
+            if (!existing.getTable().equals(rm.getTable()))
+            {
+                if (otherTables == null)
+                    otherTables = new ArrayList<RowMutation>();
+
+                otherTables.add(rm);
+                continue;
+            }
+
+            if (merged == null)
+                merged = Collections.newSetFromMap(new IdentityHashMap<RowMutation, Boolean>());
+
+            if (!merged.contains(existing))
+            {
+                RowMutation copy = new RowMutation(existing.getTable(), existing.key());
+                mergeInto(copy, existing);
+
+                merged.add(copy);
+                byKey.put(copy.key(), copy);
+                existing = copy;
+            }
+
+            mergeInto(existing, rm);
         }
 
+        List<RowMutation> coalesced = new ArrayList<RowMutation>(byKey.values());
+
+        if (otherTables != null)
+            coalesced.addAll(otherTables);
+
+        return coalesced;
     }
 
-    // append complete mutations to the list
-    private void appendMutations(String indexName, Map<ByteBuffer, RowMutation> mutations)
+    private static void mergeInto(RowMutation target, RowMutation source)
     {
+        for (ColumnFamily cf : source.getColumnFamilies())
+        {
+            ColumnFamily targetCf = target.getColumnFamily(cf.id());
 
-        Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> mutationQ = getMutationQueue(indexName);
+            if (targetCf == null)
+            {
+                targetCf = cf.cloneMeShallow();
+                target.add(targetCf);
+            }
 
-        mutationQ.right.addAll(mutations.values());
+            targetCf.addAll(cf);
+        }
+    }
+
+    /** Number of mutations committed before coalescing */
+    public static long getMutationsQueued()
+    {
+        return mutationsQueued.get();
+    }
+
+    /** Number of row mutations actually sent after coalescing */
+    public static long getMutationsWritten()
+    {
+        return mutationsWritten.get();
+    }
+
+    // append complete mutations to the list
+    private void appendMutations(String indexName, Map<ByteBuffer, RowMutation> mutations) throws IOException
+    {
+        enqueue(indexName, mutations.values());
     }
 
     // append complete mutations to the list
-    public void appendMutations(String indexName, RowMutation... mutations)
+    public void appendMutations(String indexName, RowMutation... mutations) throws IOException
+    {
+        enqueue(indexName, Arrays.asList(mutations));
+    }
+
+    /**
+     * Adds the mutations to the index's buffer. If the buffer is full the
+     * caller either gets an IOException or, by default, writes out what is
+     * queued itself and then waits for room.
+     */
+    private void enqueue(String indexName, Collection<RowMutation> mutations) throws IOException
+    {
+        if (mutations.isEmpty())
+            return;
+
+        PendingWrites writes = getMutationQueue(indexName);
+
+        if (writes.journal != null)
+        {
+            enqueueJournaled(indexName, writes, mutations);
+            return;
+        }
+
+        MutationQueue queue = writes.queue;
+
+        if (queue.offer(mutations))
+            return;
+
+        if (rejectWhenFull)
+            throw new IOException("Write buffer for " + indexName + " is full (" + queue.bytes() + " of "
+                    + queue.maxBytes() + " bytes), try again later");
+
+        if (logger.isDebugEnabled())
+            logger.debug("Write buffer for " + indexName + " is full, committing");
+
+        try
+        {
+            while (!queue.offer(mutations, 0, TimeUnit.MILLISECONDS))
+            {
+                commit(indexName, false);
+
+                if (queue.offer(mutations, CassandraUtils.retryAttemptSleep, TimeUnit.MILLISECONDS))
+                    return;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException("Interrupted waiting on write buffer for " + indexName);
+        }
+    }
+
+    /**
+     * Like enqueue, but the mutations are journaled before returning. They
+     * are journaled and queued under the journal read lock so a flush sees
+     * them in both or neither, which means it can't wait for room while
+     * holding it.
+     */
+    private void enqueueJournaled(String indexName, PendingWrites writes, Collection<RowMutation> mutations)
+            throws IOException
+    {
+        MutationQueue queue = writes.queue;
+
+        try
+        {
+            while (true)
+            {
+                writes.journalLock.readLock().lock();
+                try
+                {
+                    // journaled first, so a failed append leaves nothing
+                    // queued for the caller's retry to queue again. Racing
+                    // writers can overshoot the limit by a batch each
+                    if (queue.hasRoomFor(mutations))
+                    {
+                        writes.journal.append(mutations);
+                        queue.force(mutations);
+                        return;
+                    }
+                }
+                finally
+                {
+                    writes.journalLock.readLock().unlock();
+                }
+
+                if (rejectWhenFull)
+                    throw new IOException("Write buffer for " + indexName + " is full (" + queue.bytes() + " of "
+                            + queue.maxBytes() + " bytes), try again later");
+
+                commit(indexName, false);
+                queue.awaitRoom(CassandraUtils.retryAttemptSleep, TimeUnit.MILLISECONDS);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException("Interrupted waiting on write buffer for " + indexName);
+        }
+    }
+
+    /** Bytes of buffered mutations held in the write journals */
+    public static long getJournalBytes()
     {
-        Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> mutationQ = getMutationQueue(indexName);
+        long bytes = 0;
+        for (PendingWrites mutationQ : mutationList.values())
+        {
+            if (mutationQ.journal != null)
+                bytes += mutationQ.journal.bytes();
+        }
 
-        mutationQ.right.addAll(Arrays.asList(mutations));
+        return bytes;
     }
-    
-    private Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> getMutationQueue(String indexName)
+
+    private PendingWrites getMutationQueue(String indexName)
     {
 
-        Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> mutationQ = mutationList.get(indexName);
+        PendingWrites mutationQ = mutationList.get(indexName);
 
         if (mutationQ == null)
         {
-            mutationQ = new Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>>(new AtomicInteger(0),
-                    new ConcurrentLinkedQueue<RowMutation>());
-            Pair<AtomicInteger, ConcurrentLinkedQueue<RowMutation>> liveQ = mutationList
-                    .putIfAbsent(indexName, mutationQ);
+            mutationQ = new PendingWrites(indexName);
+            PendingWrites liveQ = mutationList.putIfAbsent(indexName, mutationQ);
 
             if (liveQ != null)
                 mutationQ = liveQ;
@@ -631,13 +1636,33 @@ public class IndexWriter
         return mutationQ;
     }
 
+    /** Number of row mutations buffered across all indexes */
+    public static int getQueuedMutations()
+    {
+        int depth = 0;
+        for (PendingWrites mutationQ : mutationList.values())
+            depth += mutationQ.queue.depth();
+
+        return depth;
+    }
+
+    /** Approximate size in bytes of the row mutations buffered across all indexes */
+    public static long getQueuedBytes()
+    {
+        long bytes = 0;
+        for (PendingWrites mutationQ : mutationList.values())
+            bytes += mutationQ.queue.bytes();
+
+        return bytes;
+    }
+
     /** Write all terms to bytes using thrift serialization */
     public static ByteBuffer toBytesUsingThrift(DocumentMetadata data) throws IOException
     {
 
         try
         {
-            return ByteBuffer.wrap(CassandraUtils.compress(new TSerializer(protocolFactory).serialize(data)));
+            return ByteBuffer.wrap(CassandraUtils.compress(serializer.get().serialize(data)));
         }
         catch (TException e)
         {
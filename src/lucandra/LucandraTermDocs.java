@@ -31,10 +31,12 @@ public class LucandraTermDocs implements TermDocs, TermPositions
 
     private IndexReader         indexReader;
     private LucandraTermEnum    termEnum;
-    private LucandraTermInfo[]  termDocs;
+    private TermPostings        termDocs;
     private int                 docPosition;
-    private int[]               termPositionArray;
+    // byte cursor into the encoded positions of the current doc
     private int                 termPosition;
+    private int                 termPositionEnd;
+    private int                 lastPosition;
     private static final Logger logger = Logger.getLogger(LucandraTermDocs.class);
 
     public LucandraTermDocs(IndexReader indexReader) throws IOException
@@ -53,16 +55,16 @@ public class LucandraTermDocs implements TermDocs, TermPositions
         if (docPosition < 0)
             docPosition = 0;
 
-        return termDocs[docPosition].docId;
+        return termDocs.docIds[docPosition];
     }
 
     public int freq()
     {
-        Integer freq = termDocs[docPosition].freq;
-        termPositionArray = termDocs[docPosition].positions;
-        termPosition = 0;
+        termPosition = termDocs.positionStart(docPosition);
+        termPositionEnd = termDocs.positionEnd(docPosition);
+        lastPosition = 0;
 
-        return freq;
+        return termDocs.freqs[docPosition];
     }
 
     public boolean next() throws IOException
@@ -71,14 +73,14 @@ public class LucandraTermDocs implements TermDocs, TermPositions
         if (termDocs == null)
             return false;
 
-        return ++docPosition < termDocs.length;
+        return ++docPosition < termDocs.size();
     }
 
     public int read(int[] docs, int[] freqs) throws IOException
     {
 
         int i = 0;
-        for (; (termDocs != null && docPosition < termDocs.length && i < docs.length); i++, docPosition++)
+        for (; (termDocs != null && docPosition < termDocs.size() && i < docs.length); i++, docPosition++)
         {
             docs[i] = doc();
             freqs[i] = freq();
@@ -119,12 +121,12 @@ public class LucandraTermDocs implements TermDocs, TermPositions
         termDocs = this.termEnum.getTermDocFreq();
 
         if (logger.isDebugEnabled())
-            logger.debug("seeked out " + termDocs.length);
+            logger.debug("seeked out " + termDocs.size());
 
         docPosition = -1;
     }
 
-    public LucandraTermInfo[] filteredSeek(Term term, List<ByteBuffer> docNums) throws IOException
+    public TermPostings filteredSeek(Term term, List<ByteBuffer> docNums) throws IOException
     {
 
         termDocs = termEnum.loadFilteredTerms(term, docNums);
@@ -140,15 +142,15 @@ public class LucandraTermDocs implements TermDocs, TermPositions
         if (termDocs == null)
             return false;
 
-        docPosition = 0;
-        
-        while (target > doc())
-        {
-            if (!next())
-                return false;
-        }
+        // docs before the current one are all smaller unless the target went
+        // backwards, in which case search from the start
+        int from = docPosition;
+        if (from < 0 || from >= termDocs.size() || termDocs.docIds[from] > target)
+            from = 0;
 
-        return true;
+        docPosition = termDocs.advance(from, target);
+
+        return docPosition < termDocs.size();
     }
 
     public byte[] getPayload(byte[] data, int offset) throws IOException
@@ -168,11 +170,14 @@ public class LucandraTermDocs implements TermDocs, TermPositions
 
     public int nextPosition() throws IOException
     {
-        if (termPositionArray == null)
+        if (termPosition == termPositionEnd)
             return -1;
 
-        int pos = termPositionArray[termPosition];
-        termPosition++;
+        int gap = termDocs.positionGap(termPosition);
+        termPosition += CassandraUtils.vIntSize(gap);
+
+        lastPosition += gap;
+        int pos = lastPosition;
 
         if (logger.isDebugEnabled())
             logger.debug("Doc: " + doc() + ", Position: " + pos);
@@ -43,14 +43,31 @@ public class LucandraTermEnum extends TermEnum
     private final TermCache                                  termCache;
 
     // Local info this enum
-    private Map.Entry<Term, LucandraTermInfo[]>              currentTermEntry;
-    private ConcurrentNavigableMap<Term, LucandraTermInfo[]> termView;
+    private Map.Entry<Term, TermPostings>                    currentTermEntry;
+    // postings of the current term, read before the term is exposed
+    private TermPostings                                     currentPostings;
+    private ConcurrentNavigableMap<Term, TermPostings>       termView;
+    // terms to buffer when the enum runs past the cached ones, doubled each
+    // time so a long walk takes few round trips. Only the term list is read
+    // that far ahead, postings are read once asked for
+    private int                                              readAhead;
 
     private static final Logger                              logger = Logger.getLogger(LucandraTermEnum.class);
 
     public LucandraTermEnum(IndexReader indexReader) throws IOException
+    {
+        this(indexReader, TermCache.defaultReadAhead);
+    }
+
+    /**
+     * @param expectedTerms
+     *            roughly how many terms the caller will walk, the first read
+     *            buffers that many
+     */
+    public LucandraTermEnum(IndexReader indexReader, int expectedTerms) throws IOException
     {
         this.indexReader = indexReader;
+        readAhead = Math.max(expectedTerms, TermCache.defaultReadAhead);
         indexName = indexReader.getIndexName();
         readerCache = indexReader.getCache();
         termCache = readerCache.termCache;
@@ -61,10 +78,17 @@ public class LucandraTermEnum extends TermEnum
         if (term == null)
             return false;
 
-        termView = termCache.skipTo(term);
+        if (readAhead > TermCache.defaultReadAhead)
+            termView = termCache.skipTo(term, readAhead);
+        else
+            termView = termCache.skipTo(term);
+
         currentTermEntry = termView.firstEntry();
 
-        return currentTermEntry != null;
+        if (currentTermEntry == null)
+            return false;
+
+        return loadPostings() || next();
     }
 
     @Override
@@ -76,15 +100,36 @@ public class LucandraTermEnum extends TermEnum
     @Override
     public int docFreq()
     {
+        return currentTermEntry == null ? 0 : currentPostings.size();
+    }
+
+    /**
+     * Reads the postings of the current term
+     * 
+     * @return false if all of its documents were deleted, the term is skipped
+     */
+    private boolean loadPostings() throws IOException
+    {
+        currentPostings = termCache.postings(currentTermEntry.getKey(), currentTermEntry.getValue());
 
-        int freq = currentTermEntry == null ? 0 : currentTermEntry.getValue().length;
-        return freq;
+        return currentPostings.size() > 0;
     }
 
     @Override
     public boolean next() throws IOException
     {
-        if(termView.size() == 0)
+        while (advance())
+        {
+            if (loadPostings())
+                return true;
+        }
+
+        return false;
+    }
+
+    private boolean advance() throws IOException
+    {
+        if(currentTermEntry == null || termView.size() == 0)
             return false;
         
         // current term is in tree
@@ -95,7 +140,10 @@ public class LucandraTermEnum extends TermEnum
         if (termView.size() == 0)
         {         
             //logger.info("Rebuffering terms");                 
-            termView = termCache.skipTo(currentTermEntry.getKey());
+            if (readAhead < Integer.MAX_VALUE / 2)
+                readAhead *= 2;
+
+            termView = termCache.skipTo(currentTermEntry.getKey(), readAhead);
             
             if (termView.size() == 0 || 
                  (termView.size() == 1 && termView.firstEntry().getKey().equals(currentTermEntry.getKey())))
@@ -120,22 +168,20 @@ public class LucandraTermEnum extends TermEnum
         return currentTermEntry == null ? null : currentTermEntry.getKey();
     }
 
-    public final LucandraTermInfo[] getTermDocFreq()
+    public final TermPostings getTermDocFreq() throws IOException
     {
         if (currentTermEntry == null)
             return null;
 
         Term term = currentTermEntry.getKey();
 
-        LucandraTermInfo[] docIds = currentTermEntry.getValue();
-
         // set normalizations
-        indexReader.addDocumentNormalizations(docIds, term.field(), readerCache);
+        indexReader.addDocumentNormalizations(currentPostings, term.field(), readerCache);
 
-        return docIds;
+        return currentPostings;
     }
 
-    public LucandraTermInfo[] loadFilteredTerms(Term term, List<ByteBuffer> docNums) throws IOException
+    public TermPostings loadFilteredTerms(Term term, List<ByteBuffer> docNums) throws IOException
     {
         long start = System.currentTimeMillis();
         ColumnParent parent = new ColumnParent();
@@ -156,17 +202,17 @@ public class LucandraTermEnum extends TermEnum
 
         List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, rc);
 
-        LucandraTermInfo[] termInfo = null;
+        TermPostings termInfo = null;
 
         if (rows != null && rows.size() > 0 && rows.get(0) != null && rows.get(0).cf != null)
         {
-            termInfo = TermCache.convertTermInfo(rows.get(0).cf.getSortedColumns());
+            termInfo = TermPostings.decode(rows.get(0).cf.getSortedColumns());
         }
 
         long end = System.currentTimeMillis();
 
         if (logger.isDebugEnabled())
-            logger.debug("loadFilterdTerms: " + term + "(" + termInfo == null ? 0 : termInfo.length + ") took "
+            logger.debug("loadFilterdTerms: " + term + "(" + termInfo == null ? 0 : termInfo.size() + ") took "
                     + (end - start) + "ms");
 
         return termInfo;
@@ -28,7 +28,15 @@ import org.apache.cassandra.utils.ByteBufferUtil;
 
 public class LucandraTermInfo implements Comparable<LucandraTermInfo>
 {
-    
+    // format flags, the first byte of a serialized term info
+    private static final byte normFlag      = 1;
+    private static final byte positionsFlag = 2;
+    private static final byte offsetsFlag   = 4;
+    // positions are gaps from the previous one and offsets are pairs of
+    // start gap (zigzag) and length, older columns hold absolute values
+    private static final byte deltaFlag     = 8;
+    // a lone flags byte, the doc has the term once and nothing else is kept
+    private static final byte docOnlyFlag   = 16;
     
     public final int     docId;
     public final boolean hasNorm;
@@ -41,6 +49,27 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
     public final Byte    norm;
     
     
+    public LucandraTermInfo(int docId, int freq, int[] positions, int[] offsets, Byte norm)
+    {
+        if (freq < 0)
+            throw new IllegalArgumentException("term freq is < 0");
+
+        if (positions != null && positions.length > 0 && freq != positions.length)
+            throw new IllegalArgumentException("freq != position count: " + freq + " vs " + positions.length);
+
+        if (offsets != null && offsets.length % 2 != 0)
+            throw new IllegalArgumentException("offsets are not start/end pairs: " + offsets.length);
+
+        this.docId = docId;
+        this.freq = freq;
+        this.norm = norm;
+        this.hasNorm = norm != null;
+        this.hasPositions = positions != null && positions.length > 0;
+        this.positions = hasPositions ? positions : null;
+        this.hasOffsets = offsets != null && offsets.length > 0;
+        this.offsets = hasOffsets ? offsets : null;
+    }
+
     public LucandraTermInfo(int docId, Map<ByteBuffer, List<Number>> data)
     {
         this.docId = docId;
@@ -125,30 +154,51 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
         offsets      = offsets_;
     }
 
-    public LucandraTermInfo(int docId, ByteBuffer bytes_)
+    public LucandraTermInfo(int docId, ByteBuffer bytes)
     {
         this.docId = docId;
         
-        ByteBuffer bytes = bytes_.duplicate(); //don't mutate the original
+        // read with absolute offsets so the column value is left untouched
+        int p = bytes.position();
+        
+        byte flags = bytes.get(p++);
         
-        byte flags = bytes.get();
+        if((flags & docOnlyFlag) != 0)
+        {
+            freq         = 1;
+            hasNorm      = false;
+            norm         = null;
+            hasPositions = false;
+            positions    = null;
+            hasOffsets   = false;
+            offsets      = null;
+            
+            return;
+        }
            
-        hasNorm      = (flags & 1) == 1;
-        hasPositions = (flags & 2) == 2;
-        hasOffsets   = (flags & 4) == 4;
+        hasNorm      = (flags & normFlag) != 0;
+        hasPositions = (flags & positionsFlag) != 0;
+        hasOffsets   = (flags & offsetsFlag) != 0;
+        boolean delta = (flags & deltaFlag) != 0;
         
-        freq = CassandraUtils.mreadVInt(bytes);
+        freq = CassandraUtils.readVInt(bytes, p);
+        p += CassandraUtils.vIntSize(freq);
         
-        norm = hasNorm ? bytes.get() : null;
+        norm = hasNorm ? bytes.get(p++) : null;
         
         int[] positions_ = null;
         if(hasPositions)
         {
             positions_ = new int[freq];
         
+            int last = 0;
             for(int i=0; i<freq; i++)
-                positions_[i] = CassandraUtils.mreadVInt(bytes);
-             
+            {
+                int v = CassandraUtils.readVInt(bytes, p);
+                p += CassandraUtils.vIntSize(v);
+                
+                positions_[i] = delta ? (last += v) : v;
+            }
         }
         
         positions = positions_;
@@ -156,36 +206,153 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
         int[] offsets_ = null;
         if(hasOffsets)
         {
-            int len = CassandraUtils.mreadVInt(bytes);
+            int len = CassandraUtils.readVInt(bytes, p);
+            p += CassandraUtils.vIntSize(len);
+            
             offsets_ = new int[len];
             
-            for(int i=0; i<len; i++)
-                offsets_[i] = CassandraUtils.mreadVInt(bytes);          
+            if(delta)
+            {
+                int start = 0;
+                for(int i=0; i<len; i+=2)
+                {
+                    int gap = CassandraUtils.readVInt(bytes, p);
+                    p += CassandraUtils.vIntSize(gap);
+                    int length = CassandraUtils.readVInt(bytes, p);
+                    p += CassandraUtils.vIntSize(length);
+                    
+                    start += (gap >>> 1) ^ -(gap & 1);
+                    offsets_[i] = start;
+                    offsets_[i+1] = start + length;
+                }
+            }
+            else
+            {
+                for(int i=0; i<len; i++)
+                {
+                    offsets_[i] = CassandraUtils.readVInt(bytes, p);
+                    p += CassandraUtils.vIntSize(offsets_[i]);
+                }
+            }
         }
         
         offsets = offsets_;
     }
     
+    /**
+     * Adds a serialized term info to postings being built. Only the freq and
+     * norm are decoded, positions are copied as gaps still encoded.
+     */
+    static void decodeInto(int docId, ByteBuffer bytes, TermPostings.Builder postings)
+    {
+        int p = bytes.position();
+        
+        byte flags = bytes.get(p++);
+        
+        if((flags & docOnlyFlag) != 0)
+        {
+            postings.add(docId, 1);
+            return;
+        }
+        
+        int freq = CassandraUtils.readVInt(bytes, p);
+        p += CassandraUtils.vIntSize(freq);
+        
+        postings.add(docId, freq);
+        
+        if((flags & normFlag) != 0)
+            postings.norm(bytes.get(p++));
+        
+        if((flags & positionsFlag) == 0)
+            return;
+        
+        if((flags & deltaFlag) != 0)
+        {
+            // step over the vints without decoding them
+            int start = p;
+            for(int i=0; i<freq; i++)
+            {
+                while((bytes.get(p++) & 0x80) != 0);
+            }
+            
+            postings.positionGaps(bytes, start, p - start);
+        }
+        else
+        {
+            int last = 0;
+            for(int i=0; i<freq; i++)
+            {
+                int v = CassandraUtils.readVInt(bytes, p);
+                p += CassandraUtils.vIntSize(v);
+                
+                postings.positionGap(v - last);
+                last = v;
+            }
+        }
+    }
+    
+    /**
+     * The exact number of bytes {@link #serialize()} will produce
+     */
+    public int serializedSize()
+    {
+        if(isDocOnly())
+            return 1;
+        
+        int size = 1 + CassandraUtils.vIntSize(freq) + (hasNorm ? 1 : 0);
+        
+        if(hasPositions)
+        {
+            int last = 0;
+            for(int i=0; i<positions.length; i++)
+            {
+                size += CassandraUtils.vIntSize(positions[i] - last);
+                last = positions[i];
+            }
+        }
+        
+        if(hasOffsets)
+        {
+            size += CassandraUtils.vIntSize(offsets.length);
+            
+            int start = 0;
+            for(int i=0; i<offsets.length; i+=2)
+            {
+                size += CassandraUtils.vIntSize(zigZag(offsets[i] - start));
+                size += CassandraUtils.vIntSize(offsets[i+1] - offsets[i]);
+                start = offsets[i];
+            }
+        }
+        
+        return size;
+    }
     
     public ByteBuffer serialize()
     {
-        //         flags, freq, norm, pos, numoff, off 
-        int size = 1 + 4 + (hasNorm ? 1 : 0) + (hasPositions ? positions.length*4 : 0) + (hasOffsets ? offsets.length*4+4 : 0);
-        ByteBuffer r = ByteBuffer.allocate(size);
+        // exactly sized, the value is kept by queued mutations and memtables
+        ByteBuffer r = ByteBuffer.allocate(serializedSize());
+        
+        if(isDocOnly())
+        {
+            r.put(docOnlyFlag);
+            r.flip();
+            
+            return r;
+        }
         
         //store the initial content flags in the inital byte
-        byte flags = 0;
+        byte flags = deltaFlag;
         if(hasNorm)
-            flags |= 1;
+            flags |= normFlag;
         
         if(hasPositions)
-            flags |= 2;
+            flags |= positionsFlag;
         
         if(hasOffsets)
-            flags |= 4;
+            flags |= offsetsFlag;
         
         r.put(flags);
-        r.put(CassandraUtils.writeVInt(freq));
+        CassandraUtils.writeVInt(freq, r);
         
         
         if(hasNorm)
@@ -193,19 +360,24 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
         
         if(hasPositions)
         {
+            int last = 0;
             for(int i=0; i<positions.length; i++)
             {
-                r.put(CassandraUtils.writeVInt(positions[i]));
+                CassandraUtils.writeVInt(positions[i] - last, r);
+                last = positions[i];
             }
         }
         
         if(hasOffsets)
         {
-            r.put(CassandraUtils.writeVInt(offsets.length));
+            CassandraUtils.writeVInt(offsets.length, r);
             
-            for(int i=0; i<offsets.length; i++)
+            int start = 0;
+            for(int i=0; i<offsets.length; i+=2)
             {
-                r.put(CassandraUtils.writeVInt(offsets[i]));
+                CassandraUtils.writeVInt(zigZag(offsets[i] - start), r);
+                CassandraUtils.writeVInt(offsets[i+1] - offsets[i], r);
+                start = offsets[i];
             }
         }
   
@@ -214,6 +386,20 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
         return r;
     }
 
+    /**
+     * Postings of fields that omit term freqs and positions only record the doc
+     */
+    private boolean isDocOnly()
+    {
+        return freq == 1 && !hasNorm && !hasPositions && !hasOffsets;
+    }
+
+    // tokens can go back in the text, keep small negative gaps small
+    private static int zigZag(int i)
+    {
+        return (i << 1) ^ (i >> 31);
+    }
+
     public int compareTo(LucandraTermInfo o)
     {
         if(this.docId < o.docId)
@@ -0,0 +1,379 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.net.MessagingService;
+import org.apache.log4j.Logger;
+
+/**
+ * Append only journal of the mutations buffered for one index, so writes
+ * acknowledged before a commit survive a crash.
+ *
+ * The journal is a list of memory mapped segment files:
+ *
+ * <pre>
+ * segment: long checkpoint, then records
+ * record:  int length, int crc32, int count, serialized mutations
+ * </pre>
+ *
+ * A zero length ends a segment. Records before the checkpoint offset are
+ * known to be written to cassandra. Once a flush has written everything
+ * journaled before it started, the journal is discarded up to that point:
+ * old segments are deleted and the checkpoint of the current one moved.
+ *
+ * Mapped writes survive the process dying without a sync. Surviving power
+ * loss needs solandra.journal.sync, which forces every append to disk.
+ */
+public class MutationJournal
+{
+    private static final Logger logger      = Logger.getLogger(MutationJournal.class);
+
+    public static final boolean enabled     = Boolean.valueOf(CassandraUtils.properties.getProperty(
+                                                    "solandra.journal.enabled", "false"));
+
+    private static final int    segmentSize = Integer.valueOf(CassandraUtils.properties.getProperty(
+                                                    "solandra.journal.segment.size", "33554432"));
+
+    private static final boolean sync       = Boolean.valueOf(CassandraUtils.properties.getProperty(
+                                                    "solandra.journal.sync", "false"));
+
+    private static final String suffix      = ".log";
+    private static final int    headerSize  = 8;
+    private static final int    recordHeader = 8;
+
+    private static final class Segment
+    {
+        final long             seq;
+        final File             file;
+        final MappedByteBuffer buf;
+        int                    writeOffset = headerSize;
+
+        Segment(long seq, File file, int size) throws IOException
+        {
+            this.seq = seq;
+            this.file = file;
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                raf.setLength(size);
+                buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            finally
+            {
+                raf.close();
+            }
+
+            buf.putLong(0, headerSize);
+        }
+    }
+
+    private final String              indexName;
+    private final String              prefix;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private long                      nextSeq  = 0;
+    private long                      lastFileId;
+    private long                      bytes    = 0;
+
+    public MutationJournal(String indexName) throws IOException
+    {
+        this.indexName = indexName;
+        this.prefix = URLEncoder.encode(indexName, "UTF-8") + "-";
+
+        // don't reuse the names of segments that failed to replay
+        for (File file : listSegments())
+        {
+            if (indexOf(file).equals(indexName))
+                lastFileId = Math.max(lastFileId, fileIdOf(file));
+        }
+    }
+
+    public static File getDirectory()
+    {
+        String dir = CassandraUtils.properties.getProperty("solandra.journal.directory");
+
+        if (dir == null)
+            dir = DatabaseDescriptor.getCommitLogLocation() + File.separator + "solandra";
+
+        return new File(dir);
+    }
+
+    /**
+     * Records the mutations
+     */
+    public synchronized void append(Collection<RowMutation> mutations) throws IOException
+    {
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytesOut);
+
+        out.writeInt(mutations.size());
+        for (RowMutation rm : mutations)
+            RowMutation.serializer().serialize(rm, out, MessagingService.version_);
+        out.flush();
+
+        byte[] record = bytesOut.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        Segment segment = segments.peekLast();
+
+        // leave room for the zero length that ends a segment
+        int needed = recordHeader + record.length + 4;
+        if (segment == null || segment.writeOffset + needed > segment.buf.capacity())
+            segment = newSegment(needed);
+
+        int offset = segment.writeOffset;
+        segment.buf.position(offset + recordHeader);
+        segment.buf.put(record);
+        segment.buf.putInt(offset + 4, (int) crc.getValue());
+        // the length goes last so a torn record reads as the end
+        segment.buf.putInt(offset, record.length);
+
+        segment.writeOffset += recordHeader + record.length;
+        bytes += recordHeader + record.length;
+
+        if (sync)
+            segment.buf.force();
+    }
+
+    /**
+     * @return the position following the last append
+     */
+    public synchronized long position()
+    {
+        Segment segment = segments.peekLast();
+
+        if (segment == null)
+            return nextSeq << 32;
+
+        return (segment.seq << 32) | segment.writeOffset;
+    }
+
+    /**
+     * Drops everything appended before the position, which must all be
+     * written to cassandra.
+     */
+    public synchronized void discard(long position)
+    {
+        long seq = position >>> 32;
+        int offset = (int) position;
+
+        while (!segments.isEmpty())
+        {
+            Segment segment = segments.peekFirst();
+
+            if (segment.seq > seq)
+                break;
+
+            boolean all = segment.seq < seq || offset >= segment.writeOffset;
+
+            // keep the current segment while it has room
+            if (segment.seq == seq && (!all || segment.writeOffset < segment.buf.capacity() / 2))
+            {
+                // the segment was started after the position was taken
+                if (offset <= segment.buf.getLong(0))
+                    break;
+
+                bytes -= offset - segment.buf.getLong(0);
+                segment.buf.putLong(0, offset);
+
+                if (sync)
+                    segment.buf.force();
+                break;
+            }
+
+            segments.pollFirst();
+            bytes -= segment.writeOffset - segment.buf.getLong(0);
+
+            if (!segment.file.delete())
+                logger.warn("Unable to delete journal segment " + segment.file);
+        }
+    }
+
+    /** Bytes of mutations not yet known to be written */
+    public synchronized long bytes()
+    {
+        return bytes;
+    }
+
+    private Segment newSegment(int needed) throws IOException
+    {
+        File dir = getDirectory();
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Unable to create journal directory " + dir);
+
+        lastFileId = Math.max(lastFileId + 1, System.currentTimeMillis());
+
+        Segment segment = new Segment(nextSeq++, new File(dir, prefix + lastFileId + suffix), Math.max(segmentSize,
+                headerSize + needed));
+        segments.addLast(segment);
+
+        if (logger.isDebugEnabled())
+            logger.debug("New journal segment " + segment.file + " for " + indexName);
+
+        return segment;
+    }
+
+    /**
+     * Writes out the mutations left in the journals of a previous run and
+     * deletes them. Must run once cassandra and the schema are up and
+     * before anything is written.
+     *
+     * @return the number of mutations replayed
+     */
+    public static int replay()
+    {
+        List<File> files = listSegments();
+
+        // oldest first, so later writes to the same columns win
+        Collections.sort(files, new Comparator<File>() {
+            public int compare(File a, File b)
+            {
+                long ia = fileIdOf(a), ib = fileIdOf(b);
+                return ia < ib ? -1 : (ia == ib ? 0 : 1);
+            }
+        });
+
+        int replayed = 0;
+        for (File file : files)
+        {
+            try
+            {
+                int count = replay(file);
+                replayed += count;
+
+                logger.info("Replayed " + count + " mutations for " + indexOf(file) + " from " + file);
+
+                if (!file.delete())
+                    logger.warn("Unable to delete replayed journal segment " + file);
+            }
+            catch (Exception e)
+            {
+                logger.error("Failed to replay journal segment " + file + ", it is kept for the next start", e);
+            }
+        }
+
+        return replayed;
+    }
+
+    private static int replay(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buf;
+        try
+        {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        int offset = (int) buf.getLong(0);
+        List<RowMutation> batch = new ArrayList<RowMutation>();
+        int replayed = 0;
+
+        while (offset + recordHeader <= buf.capacity())
+        {
+            int length = buf.getInt(offset);
+
+            if (length <= 0 || offset + recordHeader + length > buf.capacity())
+                break;
+
+            byte[] record = new byte[length];
+            buf.position(offset + recordHeader);
+            buf.get(record);
+
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if ((int) crc.getValue() != buf.getInt(offset + 4))
+            {
+                logger.warn("Torn record at " + offset + " in " + file + ", skipping the rest");
+                break;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+                batch.add(RowMutation.serializer().deserialize(in, MessagingService.version_));
+
+            if (batch.size() >= 1024)
+            {
+                CassandraUtils.robustInsert(CassandraUtils.consistency, batch.toArray(new RowMutation[] {}));
+                replayed += batch.size();
+                batch.clear();
+            }
+
+            offset += recordHeader + length;
+        }
+
+        if (!batch.isEmpty())
+        {
+            CassandraUtils.robustInsert(CassandraUtils.consistency, batch.toArray(new RowMutation[] {}));
+            replayed += batch.size();
+        }
+
+        return replayed;
+    }
+
+    private static List<File> listSegments()
+    {
+        File[] files = getDirectory().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name)
+            {
+                return name.endsWith(suffix) && name.lastIndexOf('-') > 0;
+            }
+        });
+
+        return files == null ? new ArrayList<File>() : new ArrayList<File>(Arrays.asList(files));
+    }
+
+    private static String indexOf(File file)
+    {
+        String name = file.getName();
+
+        try
+        {
+            return URLDecoder.decode(name.substring(0, name.lastIndexOf('-')), "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long fileIdOf(File file)
+    {
+        String name = file.getName();
+
+        return Long.valueOf(name.substring(name.lastIndexOf('-') + 1, name.length() - suffix.length()));
+    }
+}
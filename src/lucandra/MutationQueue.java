@@ -0,0 +1,298 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.RowMutation;
+
+/**
+ * Buffers the pending mutations of one index, bounded by their approximate
+ * serialized size.
+ *
+ * Mutations of a single document are added together so a document is never
+ * half queued. A batch that doesn't fit is only accepted when the queue is
+ * empty, otherwise one huge document could never be written.
+ */
+public class MutationQueue
+{
+    private final ArrayDeque<Entry> queue    = new ArrayDeque<Entry>();
+    private final ReentrantLock     lock     = new ReentrantLock();
+    private final Condition         notFull  = lock.newCondition();
+
+    private final long              maxBytes;
+    private long                    bytes    = 0;
+
+    private static class Entry
+    {
+        final RowMutation mutation;
+        final long        size;
+
+        Entry(RowMutation mutation, long size)
+        {
+            this.mutation = mutation;
+            this.size = size;
+        }
+    }
+
+    public MutationQueue(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Queues the mutations if there is room for them.
+     *
+     * @return false if the queue is full
+     */
+    public boolean offer(Collection<RowMutation> mutations)
+    {
+        long[] sizes = sizesOf(mutations);
+
+        lock.lock();
+        try
+        {
+            if (!hasRoom(sizes[sizes.length - 1]))
+                return false;
+
+            enqueue(mutations, sizes);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the mutations, waiting up to timeout for room to free up.
+     *
+     * @return false if there was still no room once timeout elapsed
+     */
+    public boolean offer(Collection<RowMutation> mutations, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long[] sizes = sizesOf(mutations);
+        long nanos = unit.toNanos(timeout);
+
+        lock.lockInterruptibly();
+        try
+        {
+            while (!hasRoom(sizes[sizes.length - 1]))
+            {
+                if (nanos <= 0)
+                    return false;
+
+                nanos = notFull.awaitNanos(nanos);
+            }
+
+            enqueue(mutations, sizes);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to timeout for the queue to drop below its limit, without
+     * queueing anything.
+     *
+     * @return false if it is still full
+     */
+    public boolean awaitRoom(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long nanos = unit.toNanos(timeout);
+
+        lock.lockInterruptibly();
+        try
+        {
+            while (!queue.isEmpty() && bytes >= maxBytes)
+            {
+                if (nanos <= 0)
+                    return false;
+
+                nanos = notFull.awaitNanos(nanos);
+            }
+
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if {@link #offer(Collection)} would take the mutations
+     *         right now
+     */
+    public boolean hasRoomFor(Collection<RowMutation> mutations)
+    {
+        long[] sizes = sizesOf(mutations);
+
+        lock.lock();
+        try
+        {
+            return hasRoom(sizes[sizes.length - 1]);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues the mutations regardless of the limit, used to put back
+     * mutations that failed to write, or ones already checked to fit.
+     */
+    public void force(Collection<RowMutation> mutations)
+    {
+        long[] sizes = sizesOf(mutations);
+
+        lock.lock();
+        try
+        {
+            enqueue(mutations, sizes);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns everything queued
+     */
+    public List<RowMutation> drain()
+    {
+        return drain(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Removes and returns up to max of the oldest queued mutations
+     */
+    public List<RowMutation> drain(int max)
+    {
+        lock.lock();
+        try
+        {
+            List<RowMutation> rows = new ArrayList<RowMutation>(Math.min(max, queue.size()));
+
+            Entry e;
+            while (rows.size() < max && (e = queue.poll()) != null)
+            {
+                rows.add(e.mutation);
+                bytes -= e.size;
+            }
+
+            notFull.signalAll();
+
+            return rows;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Number of queued row mutations */
+    public int depth()
+    {
+        lock.lock();
+        try
+        {
+            return queue.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /** Approximate serialized size of the queued row mutations */
+    public long bytes()
+    {
+        lock.lock();
+        try
+        {
+            return bytes;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long maxBytes()
+    {
+        return maxBytes;
+    }
+
+    private boolean hasRoom(long size)
+    {
+        return queue.isEmpty() || bytes + size <= maxBytes;
+    }
+
+    private void enqueue(Collection<RowMutation> mutations, long[] sizes)
+    {
+        int i = 0;
+        for (RowMutation rm : mutations)
+        {
+            queue.add(new Entry(rm, sizes[i]));
+            bytes += sizes[i++];
+        }
+    }
+
+    // per mutation sizes, with the total in the last slot
+    private static long[] sizesOf(Collection<RowMutation> mutations)
+    {
+        long[] sizes = new long[mutations.size() + 1];
+        long total = 0;
+
+        int i = 0;
+        for (RowMutation rm : mutations)
+        {
+            sizes[i] = sizeOf(rm);
+            total += sizes[i++];
+        }
+
+        sizes[i] = total;
+
+        return sizes;
+    }
+
+    public static long sizeOf(RowMutation rm)
+    {
+        long size = rm.key().remaining();
+
+        for (ColumnFamily cf : rm.getColumnFamilies())
+            size += cf.serializedSize();
+
+        return size;
+    }
+}
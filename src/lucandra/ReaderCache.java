@@ -21,6 +21,7 @@ package lucandra;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
 
 import lucandra.cluster.CassandraIndexManager;
 
@@ -38,7 +39,9 @@ public class ReaderCache
     public final String indexName;
     public final Map<Integer, Document> documents;
     public final TermCache termCache;
-    public final Map<String, byte[]>  fieldNorms;
+    public final ConcurrentMap<String, byte[]> fieldNorms;
+    // the fields with norms, null until read
+    public volatile Set<String> normFields;
     public final OpenBitSet docHits;
     public final Object fieldCacheKey;
     public final Collection<ReaderFinishedListener> readerFinishedListeners;
@@ -0,0 +1,381 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import lucandra.compression.CompressionCodec;
+import lucandra.compression.CompressionCodecs;
+import lucandra.compression.NoneCodec;
+import lucandra.serializers.thrift.DocumentMetadata;
+import lucandra.serializers.thrift.ThriftTerm;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.NumericField;
+
+/**
+ * Encodes the stored values of one field, which live in their own column
+ * under the document row.
+ *
+ * <pre>
+ * header: 0x00 'L' 'S' version codec
+ * body:   vint count, then per value a type byte and
+ *           string/binary  vint length + bytes
+ *           int/long       zigzag vint/vlong
+ *           float/double   4/8 bytes
+ * </pre>
+ *
+ * The field name is the column name so it isn't repeated. The body is
+ * compressed with the field's {@link CompressionCodec} when it is big enough
+ * to gain from it, the codec id byte says how to read it back. Columns
+ * written before this format (snappy compressed thrift) are still read.
+ */
+public final class StoredFieldCodec
+{
+    public static final byte  version           = 1;
+
+    // a snappy or thrift encoded column never starts with 0
+    private static final byte magic0            = 0x00;
+    private static final byte magic1            = 'L';
+    private static final byte magic2            = 'S';
+    private static final int  headerSize        = 5;
+
+    private static final byte STRING            = 0;
+    private static final byte BINARY            = 1;
+    private static final byte INT               = 2;
+    private static final byte LONG              = 3;
+    private static final byte FLOAT             = 4;
+    private static final byte DOUBLE            = 5;
+
+    private StoredFieldCodec()
+    {
+    }
+
+    public static ByteBuffer encode(List<Fieldable> values)
+    {
+        return encode(values, CompressionCodecs.getDefault());
+    }
+
+    /**
+     * @param values the stored values of a single field in document order
+     */
+    public static ByteBuffer encode(List<Fieldable> values, CompressionCodec codec)
+    {
+        byte[][] bytes = new byte[values.size()][];
+        int size = CassandraUtils.vIntSize(values.size());
+
+        for (int i = 0; i < values.size(); i++)
+        {
+            Fieldable field = values.get(i);
+
+            if (field instanceof NumericField)
+            {
+                Number n = ((NumericField) field).getNumericValue();
+                switch (((NumericField) field).getDataType())
+                {
+                case INT: size += 1 + CassandraUtils.vIntSize(zigZag(n.intValue())); break;
+                case LONG: size += 1 + vLongSize(zigZag(n.longValue())); break;
+                case FLOAT: size += 1 + 4; break;
+                case DOUBLE: size += 1 + 8; break;
+                default: throw new IllegalStateException("Unknown numeric type in field: " + field);
+                }
+            }
+            else if (field.isBinary())
+            {
+                size += 1 + CassandraUtils.vIntSize(field.getBinaryLength()) + field.getBinaryLength();
+            }
+            else
+            {
+                bytes[i] = field.stringValue().getBytes(CassandraUtils.UTF_8);
+                size += 1 + CassandraUtils.vIntSize(bytes[i].length) + bytes[i].length;
+            }
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(size);
+        CassandraUtils.writeVInt(values.size(), body);
+
+        for (int i = 0; i < values.size(); i++)
+        {
+            Fieldable field = values.get(i);
+
+            if (field instanceof NumericField)
+            {
+                Number n = ((NumericField) field).getNumericValue();
+                switch (((NumericField) field).getDataType())
+                {
+                case INT:
+                    body.put(INT);
+                    CassandraUtils.writeVInt(zigZag(n.intValue()), body);
+                    break;
+                case LONG:
+                    body.put(LONG);
+                    writeVLong(zigZag(n.longValue()), body);
+                    break;
+                case FLOAT:
+                    body.put(FLOAT).putFloat(n.floatValue());
+                    break;
+                case DOUBLE:
+                    body.put(DOUBLE).putDouble(n.doubleValue());
+                    break;
+                }
+            }
+            else if (field.isBinary())
+            {
+                body.put(BINARY);
+                CassandraUtils.writeVInt(field.getBinaryLength(), body);
+                body.put(field.getBinaryValue(), field.getBinaryOffset(), field.getBinaryLength());
+            }
+            else
+            {
+                body.put(STRING);
+                CassandraUtils.writeVInt(bytes[i].length, body);
+                body.put(bytes[i]);
+            }
+        }
+
+        byte codecId = NoneCodec.id;
+        byte[] payload = body.array();
+
+        if (size >= codec.minLength())
+        {
+            try
+            {
+                byte[] compressed = codec.compress(payload, 0, payload.length);
+                if (compressed.length < payload.length)
+                {
+                    payload = compressed;
+                    codecId = codec.id();
+                }
+            }
+            catch (IOException e)
+            {
+                // keep it uncompressed
+            }
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(headerSize + payload.length);
+        out.put(magic0).put(magic1).put(magic2).put(version).put(codecId).put(payload);
+        out.flip();
+
+        return out;
+    }
+
+    /**
+     * Decodes a stored field column in either the current or the old thrift
+     * format.
+     */
+    public static List<Fieldable> decode(String fieldName, ByteBuffer value) throws IOException
+    {
+        if (!isEncoded(value))
+            return fromThrift(IndexWriter.fromBytesUsingThrift(value));
+
+        int pos = value.position();
+        byte fileVersion = value.get(pos + 3);
+        if (fileVersion > version)
+            throw new IOException("Unknown stored field version " + fileVersion + " for field " + fieldName);
+
+        byte codecId = value.get(pos + 4);
+
+        ByteBuffer body = value.duplicate();
+        body.position(pos + headerSize);
+
+        if (codecId != NoneCodec.id)
+        {
+            byte[] compressed = new byte[body.remaining()];
+            body.get(compressed);
+            body = ByteBuffer.wrap(CompressionCodecs.forId(codecId).decompress(compressed, 0, compressed.length));
+        }
+        else if (!body.hasArray())
+        {
+            byte[] copy = new byte[body.remaining()];
+            body.get(copy);
+            body = ByteBuffer.wrap(copy);
+        }
+
+        int count = readVInt(body);
+        List<Fieldable> fields = new ArrayList<Fieldable>(count);
+
+        for (int i = 0; i < count; i++)
+        {
+            byte type = body.get();
+
+            switch (type)
+            {
+            case STRING:
+            {
+                int length = readVInt(body);
+                String text = new String(body.array(), body.arrayOffset() + body.position(), length,
+                        CassandraUtils.UTF_8);
+                body.position(body.position() + length);
+                fields.add(new Field(fieldName, text, Store.YES, Index.ANALYZED));
+                break;
+            }
+            case BINARY:
+            {
+                byte[] bytes = new byte[readVInt(body)];
+                body.get(bytes);
+                fields.add(new Field(fieldName, bytes));
+                break;
+            }
+            case INT:
+                fields.add(new NumericField(fieldName).setIntValue(unZigZag(readVInt(body))));
+                break;
+            case LONG:
+                fields.add(new NumericField(fieldName).setLongValue(unZigZag(readVLong(body))));
+                break;
+            case FLOAT:
+                fields.add(new NumericField(fieldName).setFloatValue(body.getFloat()));
+                break;
+            case DOUBLE:
+                fields.add(new NumericField(fieldName).setDoubleValue(body.getDouble()));
+                break;
+            default:
+                throw new IOException("Unknown stored value type " + type + " for field " + fieldName);
+            }
+        }
+
+        return fields;
+    }
+
+    public static boolean isEncoded(ByteBuffer value)
+    {
+        int pos = value.position();
+
+        return value.remaining() >= headerSize && value.get(pos) == magic0 && value.get(pos + 1) == magic1
+                && value.get(pos + 2) == magic2;
+    }
+
+    /** Converts a column written with {@link IndexWriter#toBytesUsingThrift} */
+    public static List<Fieldable> fromThrift(DocumentMetadata dm) throws IOException
+    {
+        List<Fieldable> fields = new ArrayList<Fieldable>(dm.getTermsSize());
+
+        for (ThriftTerm term : dm.getTerms())
+        {
+            Fieldable f = null;
+
+            if (term.isSetLongVal())
+            {
+                f = new NumericField(term.getField()).setLongValue(term.getLongVal());
+            }
+            else if (term.isSetDoubleVal())
+            {
+                f = new NumericField(term.getField()).setDoubleValue(term.getDoubleVal());
+            }
+            else if (term.isSetIntVal())
+            {
+                f = new NumericField(term.getField()).setIntValue(term.getIntVal());
+            }
+            else if (term.isSetFloatVal())
+            {
+                f = new NumericField(term.getField()).setFloatValue((float) term.getFloatVal());
+            }
+            else if (term.isSetIs_binary())
+            {
+                if (term.is_binary)
+                    f = new Field(term.getField(), term.getText());
+                else
+                    f = new Field(term.getField(), new String(term.getText(), "UTF-8"), Store.YES, Index.ANALYZED);
+            }
+            else
+                throw new RuntimeException("Malformed term");
+
+            fields.add(f);
+        }
+
+        return fields;
+    }
+
+    // CassandraUtils.readVInt doesn't move the position
+    private static int readVInt(ByteBuffer buf)
+    {
+        byte b = buf.get();
+        int i = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7)
+        {
+            b = buf.get();
+            i |= (b & 0x7F) << shift;
+        }
+
+        return i;
+    }
+
+    private static long readVLong(ByteBuffer buf)
+    {
+        byte b = buf.get();
+        long i = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7)
+        {
+            b = buf.get();
+            i |= (b & 0x7FL) << shift;
+        }
+
+        return i;
+    }
+
+    private static void writeVLong(long i, ByteBuffer buf)
+    {
+        while ((i & ~0x7FL) != 0)
+        {
+            buf.put((byte) ((i & 0x7f) | 0x80));
+            i >>>= 7;
+        }
+        buf.put((byte) i);
+    }
+
+    private static int vLongSize(long i)
+    {
+        int length = 1;
+        while ((i & ~0x7FL) != 0)
+        {
+            i >>>= 7;
+            length++;
+        }
+
+        return length;
+    }
+
+    // small negative numbers stay small
+    private static int zigZag(int i)
+    {
+        return (i << 1) ^ (i >> 31);
+    }
+
+    private static long zigZag(long i)
+    {
+        return (i << 1) ^ (i >> 63);
+    }
+
+    private static int unZigZag(int i)
+    {
+        return (i >>> 1) ^ -(i & 1);
+    }
+
+    private static long unZigZag(long i)
+    {
+        return (i >>> 1) ^ -(i & 1);
+    }
+}
@@ -4,8 +4,11 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.thrift.ColumnParent;
@@ -13,102 +16,248 @@ import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.Term;
 
+import com.google.common.collect.MapMaker;
+
 public class TermCache
 {
 
     private final static Term                                             emptyTerm         = new Term("");
-    private final static ConcurrentNavigableMap<Term, LucandraTermInfo[]> emptyMap          = new ConcurrentSkipListMap<Term, LucandraTermInfo[]>();
+    private final static ConcurrentNavigableMap<Term, TermPostings> emptyMap          = new ConcurrentSkipListMap<Term, TermPostings>();
     private final static ColumnParent                                     fieldColumnFamily = new ColumnParent(
                                                                                                     CassandraUtils.metaInfoColumnFamily);
     private final static Logger                                           logger            = Logger
                                                                                                     .getLogger(TermCache.class);
 
+    // byte budget of the postings cached by all the index shards of the node
+    private static volatile long                                          maxBytes          = readMaxBytes();
+
+    // every cache on the node, so the least recently used ranges are evicted
+    // across shards. Caches of dropped readers go once collected
+    private final static Set<TermCache>                                   caches            = Collections
+                                                                                                    .newSetFromMap(new MapMaker()
+                                                                                                            .weakKeys()
+                                                                                                            .<TermCache, Boolean> makeMap());
+    private final static Object                                           evictionLock      = new Object();
+    // orders the use of ranges across caches
+    private final static AtomicLong                                       clock             = new AtomicLong(0);
+
+    // terms buffered per skip unless the caller asks for more, and the most
+    // it may ask for
+    public final static int                                               defaultReadAhead  = 3;
+    private final static int                                              maxReadAhead      = Integer.valueOf(CassandraUtils.properties
+                                                                                                    .getProperty("solandra.term.read.ahead.max", "512"));
+
+    // terms whose postings are read along with the term list, the postings
+    // of the terms after them are read in batches this size once needed
+    private final static int                                              postingsReadAhead = Integer.valueOf(CassandraUtils.properties
+                                                                                                    .getProperty("solandra.term.postings.read.ahead", "32"));
+
+    private final static AtomicLong                                       hits              = new AtomicLong(0);
+    private final static AtomicLong                                       misses            = new AtomicLong(0);
+    private final static AtomicLong                                       evictions         = new AtomicLong(0);
+
+    /**
+     * The terms buffered by one call to {@link #bufferTerms(Term, int)}.
+     * Ranges are evicted whole, so a boundary never points at a range that
+     * is missing terms.
+     */
+    private static final class BufferedRange
+    {
+        final TermCache        cache;
+        final Pair<Term, Term> range;
+        final Collection<Term> boundaries;
+        final List<Term>       terms;
+        volatile long          lastUsed;
+
+        BufferedRange(TermCache cache, Pair<Term, Term> range, Collection<Term> boundaries, List<Term> terms,
+                long lastUsed)
+        {
+            this.cache = cache;
+            this.range = range;
+            this.boundaries = boundaries;
+            this.terms = terms;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /** A cached term, shared by every range that buffered it */
+    private static final class CachedTerm
+    {
+        int  ranges;
+        long weight;
+    }
+
     public final String                                                   indexName;
     public final ByteBuffer                                               termsListKey;
-    public final ConcurrentSkipListMap<Term, LucandraTermInfo[]>          termList;
+    public final ConcurrentSkipListMap<Term, TermPostings>          termList;
     public final ConcurrentSkipListMap<Term, Pair<Term, Term>>            termQueryBoundries;
 
+    // buffered ranges by their first term
+    private final ConcurrentMap<Term, BufferedRange>                      ranges;
+    // guarded by this, along with every change to termList
+    private final Map<Term, CachedTerm>                                   cachedTerms;
+    private volatile long                                                 bytes;
+
     public TermCache(String indexName) throws IOException
     {
         this.indexName = indexName;
         termsListKey = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes, "terms"
                 .getBytes("UTF-8"));
-        termList = new ConcurrentSkipListMap<Term, LucandraTermInfo[]>();
+        termList = new ConcurrentSkipListMap<Term, TermPostings>();
 
         // Get the boundries of terms each term
         termQueryBoundries = new ConcurrentSkipListMap<Term, Pair<Term, Term>>();
+
+        ranges = new ConcurrentHashMap<Term, BufferedRange>();
+        cachedTerms = new HashMap<Term, CachedTerm>();
+
+        caches.add(this);
+    }
+
+    // solandra.term.cache.max.bytes if set, else a fraction of the heap
+    private static long readMaxBytes()
+    {
+        String bytes = CassandraUtils.properties.getProperty("solandra.term.cache.max.bytes");
+
+        if (bytes != null)
+            return Long.valueOf(bytes.trim());
+
+        float fraction = Float.valueOf(CassandraUtils.properties.getProperty("solandra.term.cache.heap.fraction",
+                "0.2"));
+
+        return (long) (Runtime.getRuntime().maxMemory() * fraction);
     }
 
     // Cache check only
-    public LucandraTermInfo[] get(Term term)
+    public TermPostings get(Term term)
     {
-        return termList.get(term);
+        TermPostings postings = termList.get(term);
+
+        return postings == TermPostings.unloaded ? null : postings;
     }
 
-    public ConcurrentNavigableMap<Term, LucandraTermInfo[]> skipTo(Term skip) throws IOException
+    /**
+     * The postings of a term found by {@link #skipTo(Term, int)}. Terms
+     * past the first read ahead only have their term list entry read, their
+     * postings are read here along with those of the terms after them.
+     * 
+     * @param postings
+     *            the postings the term was found with
+     */
+    public TermPostings postings(Term term, TermPostings postings) throws IOException
     {
+        if (postings != TermPostings.unloaded)
+            return postings;
 
-        Pair<Term, Term> range = null;
+        postings = termList.get(term);
 
-        int bufferSize = termList.isEmpty() ? 1 : 3;
+        if (postings != null && postings != TermPostings.unloaded)
+            return postings;
 
-        // verify we've buffered sufficiently
-        Map.Entry<Term, Pair<Term, Term>> tailEntry = termQueryBoundries.ceilingEntry(skip);
-        boolean needsBuffering = true;
+        List<Term> terms = new ArrayList<Term>(postingsReadAhead);
+        terms.add(term);
 
-        if (tailEntry != null)
+        // the unloaded terms that follow it in its range
+        for (Map.Entry<Term, TermPostings> entry : termList.tailMap(term, false).entrySet())
         {
-            range = tailEntry.getValue();           
-            
-            //skip term must be within a buffered range avoid rebuffering
-            if (skip.compareTo(range.left) >= 0 && (!range.right.equals(emptyTerm) && skip.compareTo(range.right) < 0))
-            {                
-                needsBuffering = false;
-            }
+            if (terms.size() >= postingsReadAhead || entry.getValue() != TermPostings.unloaded)
+                break;
+
+            terms.add(entry.getKey());
         }
 
-        ConcurrentNavigableMap<Term, LucandraTermInfo[]> subList = emptyMap;
+        Map<Term, TermPostings> loaded = readPostings(terms);
 
-        if (needsBuffering)
-        {
-            range = bufferTerms(skip, bufferSize);
-        }
+        load(terms, loaded);
 
-        //logger.info(Thread.currentThread().getName()+" rebuffered "+needsBuffering+" "+range);
-        
-        if (skip.compareTo(range.left) >= 0 && (!range.right.equals(emptyTerm)) && skip.compareTo(range.right) <= 0)
-        {
-            subList = termList.subMap(skip, true, range.right, true);
-        }
+        postings = loaded.get(term);
 
-        return subList;
+        // its documents were all deleted
+        return postings == null ? TermPostings.decode(Collections.<IColumn> emptyList()) : postings;
     }
 
-    public static LucandraTermInfo[] convertTermInfo(Collection<IColumn> docs)
+    public ConcurrentNavigableMap<Term, TermPostings> skipTo(Term skip) throws IOException
     {
+        return skipTo(skip, termList.isEmpty() ? 1 : defaultReadAhead);
+    }
 
-        LucandraTermInfo termInfo[] = new LucandraTermInfo[docs.size()];
+    /**
+     * @param readAhead
+     *            the number of terms from skip on to buffer if skip isn't
+     *            cached, up to solandra.term.read.ahead.max. Postings past
+     *            the first solandra.term.postings.read.ahead are left for
+     *            {@link #postings(Term, TermPostings)}
+     */
+    public ConcurrentNavigableMap<Term, TermPostings> skipTo(Term skip, int readAhead) throws IOException
+    {
+        int bufferSize = Math.max(1, Math.min(readAhead, maxReadAhead));
 
-        int i = 0;
-        for (IColumn col : docs)
+        // a range can be evicted between finding it and reading from it, it
+        // is buffered again when that happens
+        while (true)
         {
-            if (i == termInfo.length)
-                break;
+            Pair<Term, Term> range = null;
 
-            if (i == 0 && col instanceof SuperColumn)
-                throw new IllegalStateException(
-                        "TermInfo ColumnFamily is a of type Super: This is no longer supported, please see NEWS.txt");
+            // verify we've buffered sufficiently
+            Map.Entry<Term, Pair<Term, Term>> tailEntry = termQueryBoundries.ceilingEntry(skip);
+            boolean needsBuffering = true;
 
-            if (col == null || col.name() == null || col.value() == null)
-                throw new IllegalStateException("Encountered missing column: " + col);
+            if (tailEntry != null)
+            {
+                range = tailEntry.getValue();
+
+                //skip term must be within a buffered range avoid rebuffering
+                if (skip.compareTo(range.left) >= 0 && (!range.right.equals(emptyTerm) && skip.compareTo(range.right) < 0))
+                {
+                    needsBuffering = false;
+                }
+            }
+
+            ConcurrentNavigableMap<Term, TermPostings> subList = emptyMap;
+
+            if (needsBuffering)
+            {
+                misses.incrementAndGet();
+                range = bufferTerms(skip, bufferSize);
+            }
+            else
+            {
+                hits.incrementAndGet();
+            }
+
+            //logger.info(Thread.currentThread().getName()+" rebuffered "+needsBuffering+" "+range);
+
+            if (skip.compareTo(range.left) >= 0 && (!range.right.equals(emptyTerm)) && skip.compareTo(range.right) <= 0)
+            {
+                subList = termList.subMap(skip, true, range.right, true);
+            }
 
-            termInfo[i] = new LucandraTermInfo(CassandraUtils.readVInt(col.name()), col.value());
-            i++;
+            if (subList == emptyMap || touch(range))
+                return subList;
         }
+    }
+
+    /**
+     * Marks a range as just used
+     * 
+     * @return false if the range was evicted
+     */
+    private boolean touch(Pair<Term, Term> range)
+    {
+        BufferedRange buffered = ranges.get(range.left);
+
+        if (buffered == null || buffered.range != range)
+            return false;
 
-        return termInfo;
+        buffered.lastUsed = clock.incrementAndGet();
+
+        return true;
     }
 
+    /**
+     * Reads bufferSize terms of the term list from startTerm on, and the
+     * postings of the first of them
+     */
     public Pair<Term, Term> bufferTerms(Term startTerm, int bufferSize) throws IOException
     {
         assert bufferSize > 0;
@@ -120,8 +269,6 @@ public class TermCache
                 CassandraUtils.keySpace, termsListKey, fieldColumnFamily, CassandraUtils.createColumnName(startTerm),
                 ByteBufferUtil.EMPTY_BYTE_BUFFER, false, bufferSize));
 
-        ColumnParent columnParent = new ColumnParent(CassandraUtils.termVecColumnFamily);
-
         // Collect read commands
         Collection<IColumn> columns;
 
@@ -148,7 +295,7 @@ public class TermCache
         {
             queryRange = new Pair<Term, Term>(startTerm, emptyTerm);
 
-            termQueryBoundries.put(startTerm, queryRange);
+            cache(queryRange, Collections.singleton(startTerm), Collections.<Term, TermPostings> emptyMap());
 
             return queryRange;
         }
@@ -156,7 +303,7 @@ public class TermCache
         Map<Term, Pair<Term, Term>> localRanges = new HashMap<Term, Pair<Term, Term>>(columns.size());
         localRanges.put(startTerm, queryRange);
 
-        List<ReadCommand> reads = new ArrayList<ReadCommand>(columns.size());
+        List<Term> terms = new ArrayList<Term>(columns.size());
         for (IColumn column : columns)
         {
             if(!column.isLive() || column instanceof DeletedColumn)
@@ -165,7 +312,65 @@ public class TermCache
             Term term = CassandraUtils.parseTerm(ByteBufferUtil.string(column.name(), CassandraUtils.UTF_8));
 
             localRanges.put(term, queryRange);
+            terms.add(term);
+        }
 
+        int eager = Math.min(terms.size(), postingsReadAhead);
+
+        Map<Term, TermPostings> loaded = readPostings(terms.subList(0, eager));
+
+        // the rest are read once needed
+        for (Term term : terms.subList(eager, terms.size()))
+            loaded.put(term, TermPostings.unloaded);
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Found " + terms.size() + " terms in range:" + startTerm + " to " + "" + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        if (!terms.isEmpty())
+        {
+            for (Term term : loaded.keySet())
+            {
+                //update end of range
+                if(queryRange.right == null || queryRange.right.compareTo(term) < 0)
+                    queryRange.right = term;
+            }
+
+            if(queryRange.right == null)
+                queryRange.right = emptyTerm;
+            
+            // to recall we did this query
+            cache(queryRange, localRanges.keySet(), loaded);
+        }
+
+        long end = System.currentTimeMillis();
+
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("loadTerms: " + startTerm + "(" + terms.size() + ") took " + (end - start) + "ms");
+        }
+
+        return queryRange;
+    }
+
+    /**
+     * Reads the postings of the terms, terms without live documents are left
+     * out
+     */
+    private Map<Term, TermPostings> readPostings(List<Term> terms) throws IOException
+    {
+        Map<Term, TermPostings> loaded = new HashMap<Term, TermPostings>(terms.size());
+
+        if (terms.isEmpty())
+            return loaded;
+
+        ColumnParent columnParent = new ColumnParent(CassandraUtils.termVecColumnFamily);
+
+        List<ReadCommand> reads = new ArrayList<ReadCommand>(terms.size());
+        for (Term term : terms)
+        {
             ByteBuffer rowKey;
             try
             {
@@ -184,99 +389,368 @@ public class TermCache
                     ByteBufferUtil.EMPTY_BYTE_BUFFER, ByteBufferUtil.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE));
         }
 
-        rows = CassandraUtils.robustRead(CassandraUtils.consistency, reads.toArray(new ReadCommand[] {}));
-
-        // term to start with next time
-        int actualReadSize = rows.size();
+        List<Row> rows = CassandraUtils.robustRead(CassandraUtils.consistency, reads.toArray(new ReadCommand[] {}));
 
-        if (logger.isDebugEnabled())
+        for (Row row : rows)
         {
-            logger.debug("Found " + rows.size() + " rows in range:" + startTerm + " to " + "" + " in "
-                    + (System.currentTimeMillis() - start) + "ms");
 
-        }
-        
-        if (actualReadSize > 0)
-        {
-            for (Row row : rows)
+            if (row.cf == null)
             {
+                //logger.info("Encountered deleted row");
+                continue;
+            }
+            String key = ByteBufferUtil.string(row.key.key, CassandraUtils.UTF_8);
+
+            // term keys look like wikipedia/body/wiki
+            String termStr = key.substring(key.indexOf(CassandraUtils.delimeter)
+                    + CassandraUtils.delimeter.length());
+            Term term = CassandraUtils.parseTerm(termStr);
+
+            Collection<IColumn> columns = row.cf.getSortedColumns();
+
+            if (logger.isDebugEnabled())
+                logger.debug(term + " has " + columns.size());
+
+            // remove any deleted columns
+            Collection<IColumn> columnsToRemove = null;
 
-                if (row.cf == null)
+            for (IColumn col : columns)
+            {
+                if (!col.isLive())
                 {
-                    //logger.info("Encountered deleted row");
-                    continue;
+                    if (columnsToRemove == null)
+                        columnsToRemove = new ArrayList<IColumn>();
+
+                    if(logger.isDebugEnabled())
+                        logger.debug("Removing "+col+" documents from "+term);
+
+                    
+                    columnsToRemove.add(col);
                 }
-                String key = ByteBufferUtil.string(row.key.key, CassandraUtils.UTF_8);
 
-                // term keys look like wikipedia/body/wiki
-                String termStr = key.substring(key.indexOf(CassandraUtils.delimeter)
-                        + CassandraUtils.delimeter.length());
-                Term term = CassandraUtils.parseTerm(termStr);
+                if (logger.isDebugEnabled())
+                    logger.debug("Kept DocId " + CassandraUtils.readVInt(col.name()));
+            }
 
-                columns = row.cf.getSortedColumns();
+            if (columnsToRemove != null)
+            {                   
+                columns.removeAll(columnsToRemove);
+            }
 
+            if (!columns.isEmpty())
+            {
                 if (logger.isDebugEnabled())
-                    logger.debug(term + " has " + columns.size());
+                    logger.debug("saving term: " + term + " with " + columns.size() + " docs");
 
-                // remove any deleted columns
-                Collection<IColumn> columnsToRemove = null;
+                loaded.put(term, TermPostings.decode(columns));
+            }
+            else
+            {
+                if (logger.isDebugEnabled())
+                    logger.debug("Skipped term: " + term);
+            }
+        }
 
-                for (IColumn col : columns)
-                {
-                    if (!col.isLive())
-                    {
-                        if (columnsToRemove == null)
-                            columnsToRemove = new ArrayList<IColumn>();
+        return loaded;
+    }
 
-                        if(logger.isDebugEnabled())
-                            logger.debug("Removing "+col+" documents from "+term);
+    /**
+     * Adds the terms of a freshly buffered range and its boundaries, then
+     * evicts the least recently used ranges if the node is over budget.
+     */
+    private void cache(Pair<Term, Term> range, Collection<Term> boundaries, Map<Term, TermPostings> loaded)
+    {
+        BufferedRange buffered = add(range, boundaries, loaded);
 
-                        
-                        columnsToRemove.add(col);
-                    }
+        fitBudget(buffered, buffered.terms);
+    }
 
-                    if (logger.isDebugEnabled())
-                        logger.debug("Kept DocId " + CassandraUtils.readVInt(col.name()));
-                }
+    private synchronized BufferedRange add(Pair<Term, Term> range, Collection<Term> boundaries,
+            Map<Term, TermPostings> loaded)
+    {
+        for (Map.Entry<Term, TermPostings> entry : loaded.entrySet())
+        {
+            CachedTerm cached = cachedTerms.get(entry.getKey());
 
-                if (columnsToRemove != null)
-                {                   
-                    columns.removeAll(columnsToRemove);
-                }
+            if (cached == null)
+            {
+                cached = new CachedTerm();
+                cachedTerms.put(entry.getKey(), cached);
+            }
 
-                if (!columns.isEmpty())
-                {
-                    if (logger.isDebugEnabled())
-                        logger.debug("saving term: " + term + " with " + columns.size() + " docs");
+            long weight = weigh(entry.getKey(), entry.getValue());
 
-                    termList.put(term, convertTermInfo(columns));
-                    
-                    //update end of range
-                    if(queryRange.right == null || queryRange.right.compareTo(term) < 0)
-                        queryRange.right = term;
-                    
-                }
-                else
+            bytes += weight - cached.weight;
+            cached.weight = weight;
+            cached.ranges++;
+
+            termList.put(entry.getKey(), entry.getValue());
+        }
+
+        BufferedRange buffered = new BufferedRange(this, range, boundaries, new ArrayList<Term>(loaded.keySet()),
+                clock.incrementAndGet());
+
+        // a range buffered from the same term before is replaced
+        BufferedRange replaced = ranges.put(range.left, buffered);
+
+        for (Term boundary : boundaries)
+            termQueryBoundries.put(boundary, range);
+
+        List<Term> removed = new ArrayList<Term>();
+
+        if (replaced != null)
+            release(replaced, removed);
+
+        remove(removed);
+
+        return buffered;
+    }
+
+    /**
+     * Swaps the postings read for terms that only had their term list entry
+     * cached, terms without any are dropped
+     */
+    private void load(List<Term> terms, Map<Term, TermPostings> loaded)
+    {
+        fitBudget(swap(terms, loaded), terms);
+    }
+
+    /**
+     * @return the range holding the terms, null if it was evicted
+     */
+    private synchronized BufferedRange swap(List<Term> terms, Map<Term, TermPostings> loaded)
+    {
+        List<Term> removed = new ArrayList<Term>();
+
+        for (Term term : terms)
+        {
+            CachedTerm cached = cachedTerms.get(term);
+
+            // evicted, or loaded by another reader meanwhile
+            if (cached == null || termList.get(term) != TermPostings.unloaded)
+                continue;
+
+            TermPostings postings = loaded.get(term);
+
+            if (postings == null)
+            {
+                removed.add(term);
+                continue;
+            }
+
+            long weight = weigh(term, postings);
+
+            bytes += weight - cached.weight;
+            cached.weight = weight;
+
+            termList.put(term, postings);
+        }
+
+        // left in their ranges, release skips terms it doesn't find
+        for (Term term : removed)
+            bytes -= cachedTerms.remove(term).weight;
+
+        remove(removed);
+
+        Pair<Term, Term> range = termQueryBoundries.get(terms.get(0));
+
+        return range == null ? null : ranges.get(range.left);
+    }
+
+    /**
+     * Evicts the least recently used ranges of every cache on the node while
+     * it is over budget, then caps the terms just cached if that wasn't
+     * enough. Called without holding the lock of any cache.
+     * 
+     * @param keep
+     *            the range just used, which isn't evicted
+     */
+    private void fitBudget(BufferedRange keep, List<Term> terms)
+    {
+        if (getTotalBytes() <= maxBytes)
+            return;
+
+        evict(keep);
+
+        if (getTotalBytes() > maxBytes)
+            unload(terms);
+    }
+
+    /**
+     * Caps a range that is over budget on its own by dropping the postings of
+     * its last terms, down to the term list entries. They are read again
+     * whenever needed.
+     */
+    private synchronized void unload(List<Term> terms)
+    {
+        long over = getTotalBytes() - maxBytes;
+
+        for (int i = terms.size() - 1; i >= 0 && over > 0; i--)
+        {
+            Term term = terms.get(i);
+            CachedTerm cached = cachedTerms.get(term);
+
+            if (cached == null || termList.get(term) == TermPostings.unloaded)
+                continue;
+
+            long weight = weigh(term, TermPostings.unloaded);
+
+            bytes += weight - cached.weight;
+            over += weight - cached.weight;
+            cached.weight = weight;
+
+            termList.put(term, TermPostings.unloaded);
+        }
+    }
+
+    /**
+     * Evicts the least recently used ranges of all caches, other than the one
+     * just used, until the node is back under 90% of its budget
+     */
+    private static void evict(BufferedRange keep)
+    {
+        synchronized (evictionLock)
+        {
+            long total = getTotalBytes();
+
+            // another thread evicted meanwhile
+            if (total <= maxBytes)
+                return;
+
+            List<BufferedRange> lru = new ArrayList<BufferedRange>();
+            for (TermCache cache : caches)
+                lru.addAll(cache.ranges.values());
+
+            Collections.sort(lru, new Comparator<BufferedRange>() {
+                public int compare(BufferedRange o1, BufferedRange o2)
                 {
-                    if (logger.isDebugEnabled())
-                        logger.debug("Skipped term: " + term);
+                    return o1.lastUsed < o2.lastUsed ? -1 : (o1.lastUsed == o2.lastUsed ? 0 : 1);
                 }
+            });
+
+            long lowWater = maxBytes - maxBytes / 10;
+
+            for (BufferedRange buffered : lru)
+            {
+                if (total <= lowWater)
+                    break;
+
+                if (buffered == keep)
+                    continue;
+
+                total -= buffered.cache.evict(buffered);
             }
 
-            if(queryRange.right == null)
-                queryRange.right = emptyTerm;
-            
-            // to recall we did this query
-            termQueryBoundries.putAll(localRanges);
+            if (logger.isDebugEnabled())
+                logger.debug("term caches evicted down to " + total + " bytes");
         }
+    }
 
-        long end = System.currentTimeMillis();
+    /**
+     * @return the bytes freed
+     */
+    private synchronized long evict(BufferedRange buffered)
+    {
+        // buffered again or evicted meanwhile
+        if (!ranges.remove(buffered.range.left, buffered))
+            return 0;
 
-        if (logger.isDebugEnabled())
+        long before = bytes;
+
+        List<Term> removed = new ArrayList<Term>();
+        release(buffered, removed);
+        remove(removed);
+
+        evictions.incrementAndGet();
+
+        return before - bytes;
+    }
+
+    /**
+     * Drops the boundaries of a range and collects the terms no other range
+     * holds anymore
+     */
+    private void release(BufferedRange buffered, List<Term> removed)
+    {
+        // a range with the same ends may have taken over the boundary
+        for (Term boundary : buffered.boundaries)
         {
-            logger.debug("loadTerms: " + startTerm + "(" + actualReadSize + ") took " + (end - start) + "ms");
+            if (termQueryBoundries.get(boundary) == buffered.range)
+                termQueryBoundries.remove(boundary);
         }
 
-        return queryRange;
+        for (Term term : buffered.terms)
+        {
+            CachedTerm cached = cachedTerms.get(term);
+
+            if (cached == null || --cached.ranges > 0)
+                continue;
+
+            cachedTerms.remove(term);
+            bytes -= cached.weight;
+            removed.add(term);
+        }
+    }
+
+    private void remove(List<Term> removed)
+    {
+        // highest terms first, so a term enum walking a range still sees the
+        // terms it hasn't reached or none at all and buffers them again
+        Collections.sort(removed, Collections.reverseOrder());
+
+        for (Term term : removed)
+            termList.remove(term);
+    }
+
+    // rough heap footprint of a term and its decoded postings
+    private static long weigh(Term term, TermPostings postings)
+    {
+        return 64 + 2 * term.text().length() + postings.weight();
+    }
+
+    /** Bytes of postings this cache holds */
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    /** Bytes of postings all the caches on the node hold */
+    public static long getTotalBytes()
+    {
+        long total = 0;
+
+        for (TermCache cache : caches)
+            total += cache.bytes;
+
+        return total;
+    }
+
+    public static long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * Changes the budget, caches are brought under it as they next cache
+     * terms
+     */
+    public static void setMaxBytes(long bytes)
+    {
+        maxBytes = bytes;
+    }
+
+    public static long getHits()
+    {
+        return hits.get();
+    }
+
+    public static long getMisses()
+    {
+        return misses.get();
+    }
+
+    public static long getEvictions()
+    {
+        return evictions.get();
     }
 }
@@ -0,0 +1,253 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.util.Arrays;
+
+/**
+ * Collects term frequencies, positions and offsets for a single field of a
+ * document.
+ *
+ * All state lives in primitive arrays that are reused across fields and
+ * documents, so inverting a field only allocates when a buffer has to grow.
+ * Terms are keyed by their characters in an open addressed hash table and
+ * numbered in the order they were first seen.
+ *
+ * Instances are not thread safe, use {@link #get()} to fetch the one bound to
+ * the current thread.
+ */
+public final class TermInverter
+{
+    private static final ThreadLocal<TermInverter> instance = new ThreadLocal<TermInverter>() {
+                                                                 protected TermInverter initialValue()
+                                                                 {
+                                                                     return new TermInverter();
+                                                                 }
+                                                             };
+
+    // term text, all terms are packed into a single char buffer
+    private char[]                                 termChars = new char[1024];
+    private int                                    termCharsUsed;
+    private int[]                                  termStart = new int[64];
+    private int[]                                  termLength = new int[64];
+    private int[]                                  termHash = new int[64];
+    private int[]                                  termSlot = new int[64];
+
+    // hash slot -> termId + 1 (0 is an empty slot)
+    private int[]                                  table     = new int[128];
+    private int                                    numTerms;
+
+    // per term postings
+    private int[]                                  freqs     = new int[64];
+    private int[][]                                positions = new int[64][];
+    private int[][]                                offsets   = new int[64][];
+    private int[]                                  numOffsets = new int[64];
+
+    public static TermInverter get()
+    {
+        return instance.get();
+    }
+
+    private TermInverter()
+    {
+
+    }
+
+    /** Clears all collected terms, must be called before inverting a field */
+    public void reset()
+    {
+        // only clear the slots we used, the table can get large
+        for (int i = 0; i < numTerms; i++)
+            table[termSlot[i]] = 0;
+
+        numTerms = 0;
+        termCharsUsed = 0;
+    }
+
+    /** The number of unique terms collected since the last reset */
+    public int size()
+    {
+        return numTerms;
+    }
+
+    public String term(int termId)
+    {
+        return new String(termChars, termStart[termId], termLength[termId]);
+    }
+
+    public int freq(int termId)
+    {
+        return freqs[termId];
+    }
+
+    public void add(char[] text, int length, int position)
+    {
+        addPosition(text, length, position);
+    }
+
+    public void add(char[] text, int length, int position, int startOffset, int endOffset)
+    {
+        int termId = addPosition(text, length, position);
+        int count = numOffsets[termId];
+
+        int[] o = offsets[termId];
+        if (o == null || o.length < count + 2)
+            offsets[termId] = o = grow(o, count + 2);
+
+        o[count] = startOffset;
+        o[count + 1] = endOffset;
+        numOffsets[termId] = count + 2;
+    }
+
+    /**
+     * Builds the posting of a collected term for the given document
+     */
+    public LucandraTermInfo termInfo(int termId, int docId, Byte norm)
+    {
+        int freq = freqs[termId];
+        int[] p = Arrays.copyOf(positions[termId], freq);
+        int[] o = numOffsets[termId] == 0 ? null : Arrays.copyOf(offsets[termId], numOffsets[termId]);
+
+        return new LucandraTermInfo(docId, freq, p, o, norm);
+    }
+
+    private int addPosition(char[] text, int length, int position)
+    {
+        int termId = addTerm(text, length);
+
+        int freq = freqs[termId]++;
+
+        int[] p = positions[termId];
+        if (p == null || p.length == freq)
+            positions[termId] = p = grow(p, freq + 1);
+
+        p[freq] = position;
+
+        return termId;
+    }
+
+    private int addTerm(char[] text, int length)
+    {
+        int hash = hash(text, length);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+
+        while (true)
+        {
+            int entry = table[slot];
+
+            if (entry == 0)
+                break;
+
+            int termId = entry - 1;
+            if (termHash[termId] == hash && equals(termId, text, length))
+                return termId;
+
+            slot = (slot + 1) & mask;
+        }
+
+        // new term
+        int termId = numTerms++;
+
+        if (termId == termStart.length)
+        {
+            int size = termId * 2;
+            termStart = Arrays.copyOf(termStart, size);
+            termLength = Arrays.copyOf(termLength, size);
+            termHash = Arrays.copyOf(termHash, size);
+            termSlot = Arrays.copyOf(termSlot, size);
+            freqs = Arrays.copyOf(freqs, size);
+            numOffsets = Arrays.copyOf(numOffsets, size);
+            positions = Arrays.copyOf(positions, size);
+            offsets = Arrays.copyOf(offsets, size);
+        }
+
+        if (termCharsUsed + length > termChars.length)
+            termChars = Arrays.copyOf(termChars, Math.max(termChars.length * 2, termCharsUsed + length));
+
+        System.arraycopy(text, 0, termChars, termCharsUsed, length);
+        termStart[termId] = termCharsUsed;
+        termLength[termId] = length;
+        termHash[termId] = hash;
+        termCharsUsed += length;
+
+        freqs[termId] = 0;
+        numOffsets[termId] = 0;
+
+        table[slot] = termId + 1;
+        termSlot[termId] = slot;
+
+        // keep the table at most half full
+        if (numTerms * 2 > table.length)
+            rehash();
+
+        return termId;
+    }
+
+    private void rehash()
+    {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+
+        for (int termId = 0; termId < numTerms; termId++)
+        {
+            int slot = termHash[termId] & mask;
+            while (table[slot] != 0)
+                slot = (slot + 1) & mask;
+
+            table[slot] = termId + 1;
+            termSlot[termId] = slot;
+        }
+    }
+
+    private boolean equals(int termId, char[] text, int length)
+    {
+        if (termLength[termId] != length)
+            return false;
+
+        int start = termStart[termId];
+        for (int i = 0; i < length; i++)
+        {
+            if (termChars[start + i] != text[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    private static int hash(char[] text, int length)
+    {
+        int h = 0;
+        for (int i = 0; i < length; i++)
+            h = 31 * h + text[i];
+
+        // spread the bits since we mask off the low ones
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    private static int[] grow(int[] array, int minSize)
+    {
+        if (array == null)
+            return new int[Math.max(4, minSize)];
+
+        return Arrays.copyOf(array, Math.max(array.length * 2, minSize));
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.SuperColumn;
+
+/**
+ * The postings of a term, kept as parallel arrays rather than an object per
+ * document.
+ *
+ * Only doc ids and freqs are decoded when the term is loaded. Positions stay
+ * encoded as vint gaps, those of the document at index i run from byte
+ * positionStarts[i] up to positionStarts[i + 1], and are only read by
+ * {@link LucandraTermDocs#nextPosition()}. Offsets are only needed for term
+ * vectors, which read the columns themselves, so they aren't kept.
+ */
+public final class TermPostings
+{
+    public final int[]               docIds;
+    public final int[]               freqs;
+    public final byte[]              positions;
+    public final int[]               positionStarts;
+
+    // norms of postings written before norms had their own row, null if
+    // there aren't any
+    public final byte[]              norms;
+    public final boolean[]           hasNorm;
+
+    /**
+     * Stands in for the postings of a cached term that weren't read yet, see
+     * {@link TermCache#postings(org.apache.lucene.index.Term, TermPostings)}
+     */
+    static final TermPostings        unloaded = new TermPostings(new Builder(0, 0));
+
+    private TermPostings(Builder builder)
+    {
+        int size = builder.size;
+
+        docIds = Arrays.copyOf(builder.docIds, size);
+        freqs = Arrays.copyOf(builder.freqs, size);
+
+        if (builder.anyPositions)
+        {
+            builder.positionStarts[size] = builder.positionsUsed;
+
+            positions = Arrays.copyOf(builder.positions, builder.positionsUsed);
+            positionStarts = Arrays.copyOf(builder.positionStarts, size + 1);
+        }
+        else
+        {
+            positions = null;
+            positionStarts = null;
+        }
+
+        norms = builder.norms;
+        hasNorm = builder.hasNorm;
+    }
+
+    /**
+     * Decodes the term info columns of a term, which come sorted by doc id
+     */
+    public static TermPostings decode(Collection<IColumn> columns)
+    {
+        int numColumns = columns.size();
+        int numBytes = 0;
+
+        for (IColumn col : columns)
+        {
+            if (col instanceof SuperColumn)
+                throw new IllegalStateException(
+                        "TermInfo ColumnFamily is a of type Super: This is no longer supported, please see NEWS.txt");
+
+            if (col == null || col.name() == null || col.value() == null)
+                throw new IllegalStateException("Encountered missing column: " + col);
+
+            numBytes += col.value().remaining();
+        }
+
+        Builder builder = new Builder(numColumns, numBytes);
+
+        for (IColumn col : columns)
+            LucandraTermInfo.decodeInto(CassandraUtils.readVInt(col.name()), col.value(), builder);
+
+        return new TermPostings(builder);
+    }
+
+    /** The number of documents holding the term */
+    public int size()
+    {
+        return docIds.length;
+    }
+
+    /**
+     * Finds the first doc at or after an index whose id is at least target,
+     * galloping forward from the index and then binary searching the last
+     * step, so skipping k docs costs O(log k).
+     * 
+     * @return the index of that doc, or {@link #size()} if there is none
+     */
+    public int advance(int from, int target)
+    {
+        int size = docIds.length;
+
+        if (from >= size || docIds[from] >= target)
+            return from;
+
+        // docIds[low] < target from here on
+        int low = from;
+        int step = 1;
+        int high = from + step;
+
+        while (high < size && docIds[high] < target)
+        {
+            low = high;
+            step <<= 1;
+            high = low + step;
+        }
+
+        if (high >= size)
+            high = size;
+
+        // the answer is in (low, high]
+        while (low + 1 < high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (docIds[mid] < target)
+                low = mid;
+            else
+                high = mid;
+        }
+
+        return high;
+    }
+
+    public int positionStart(int index)
+    {
+        return positions == null ? 0 : positionStarts[index];
+    }
+
+    public int positionEnd(int index)
+    {
+        return positions == null ? 0 : positionStarts[index + 1];
+    }
+
+    /**
+     * Reads the position gap starting at a byte of {@link #positions}, use
+     * {@link CassandraUtils#vIntSize(int)} on the result to step past it
+     */
+    public int positionGap(int index)
+    {
+        byte b = positions[index];
+        int i = b & 0x7F;
+        for (int shift = 7; (b & 0x80) != 0; shift += 7)
+        {
+            b = positions[++index];
+            i |= (b & 0x7F) << shift;
+        }
+
+        return i;
+    }
+
+    /** Rough heap footprint of these postings */
+    public long weight()
+    {
+        long weight = 16 + 2 * (16 + 4 * docIds.length);
+
+        if (positions != null)
+            weight += 2 * 16 + positions.length + 4 * positionStarts.length;
+
+        if (norms != null)
+            weight += 2 * (16 + norms.length);
+
+        return weight;
+    }
+
+    /**
+     * Collects postings as {@link LucandraTermInfo#decodeInto} reads them
+     */
+    static final class Builder
+    {
+        private final int[] docIds;
+        private final int[] freqs;
+        private final int[] positionStarts;
+        private final byte[] positions;
+        private int          positionsUsed;
+        private boolean      anyPositions;
+        private byte[]       norms;
+        private boolean[]    hasNorm;
+        private int          size;
+
+        /**
+         * @param numBytes
+         *            the size of all the columns, which no term's positions
+         *            can exceed
+         */
+        private Builder(int numDocs, int numBytes)
+        {
+            docIds = new int[numDocs];
+            freqs = new int[numDocs];
+            positionStarts = new int[numDocs + 1];
+            positions = new byte[numBytes];
+        }
+
+        void add(int docId, int freq)
+        {
+            docIds[size] = docId;
+            freqs[size] = freq;
+            positionStarts[size] = positionsUsed;
+            size++;
+        }
+
+        /** The norm of the doc added last */
+        void norm(byte norm)
+        {
+            if (norms == null)
+            {
+                norms = new byte[docIds.length];
+                hasNorm = new boolean[docIds.length];
+            }
+
+            norms[size - 1] = norm;
+            hasNorm[size - 1] = true;
+        }
+
+        /** Copies positions of the doc added last that are already gaps */
+        void positionGaps(ByteBuffer bytes, int index, int length)
+        {
+            for (int i = 0; i < length; i++)
+                positions[positionsUsed++] = bytes.get(index + i);
+
+            anyPositions = true;
+        }
+
+        /** Adds one position gap of the doc added last */
+        void positionGap(int gap)
+        {
+            while ((gap & ~0x7F) != 0)
+            {
+                positions[positionsUsed++] = (byte) ((gap & 0x7f) | 0x80);
+                gap >>>= 7;
+            }
+            positions[positionsUsed++] = (byte) gap;
+
+            anyPositions = true;
+        }
+    }
+}
@@ -29,22 +29,35 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import lucandra.CassandraUtils;
 
+import com.google.common.collect.MapMaker;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.db.DeletedColumn;
 import org.apache.cassandra.db.ExpiringColumn;
 import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.SliceByNamesReadCommand;
 import org.apache.cassandra.db.SliceFromReadCommand;
 import org.apache.cassandra.db.SuperColumn;
 import org.apache.cassandra.db.filter.QueryPath;
@@ -74,21 +87,56 @@ public class CassandraIndexManager
     private final int offsetSlots = (maxDocsPerShard / reserveSlabSize);
     public final int expirationTime = 120; // seconds
 
-    private final Map<String, AllNodeRsvps> indexReserves = new HashMap<String, AllNodeRsvps>();
-    private final Map<String, ShardInfo> indexShards = new HashMap<String, ShardInfo>();
-    private final Map<String, ShardInfo> indexUsed = new HashMap<String, ShardInfo>();
+    private final ConcurrentMap<String, AllNodeRsvps> indexReserves = new MapMaker().makeMap();
+    private final ConcurrentMap<String, ShardInfo> indexShards = new MapMaker().makeMap();
+    private final ConcurrentMap<String, ShardInfo> indexUsed = new MapMaker().makeMap();
+
+    // Per index locks so indexes never wait on each other. shardLocks guard
+    // reloading the shard info, reserveLocks the slab reservation handshake.
+    // A reserve lock may be held while taking a shard lock, never the reverse
+    private final ConcurrentMap<String, Object> shardLocks = new MapMaker().makeMap();
+    private final ConcurrentMap<String, Object> reserveLocks = new MapMaker().makeMap();
 
     private static final Logger logger = Logger.getLogger(CassandraIndexManager.class);
 
+    // Per index bloom filters of document keys, lets adds of new keys skip the
+    // keys row read. Only safe when a single node assigns an index's ids, see
+    // solandra.properties
+    private static final boolean useKeyFilter = Boolean.valueOf(CassandraUtils.properties.getProperty(
+            "solandra.key.filter.enabled", "false"));
+    private static final int keyFilterRebuildInterval = Integer.valueOf(CassandraUtils.properties.getProperty(
+            "solandra.key.filter.rebuild.interval", "3600")); // seconds
+
+    private final ConcurrentMap<String, KeyFilter> keyFilters = new MapMaker().makeMap();
+    private ScheduledThreadPoolExecutor keyFilterBuilder;
+
+    private final AtomicLong keyFilterChecks = new AtomicLong(0);
+    private final AtomicLong keyFilterSkippedReads = new AtomicLong(0);
+    private final AtomicLong keyFilterFalsePositives = new AtomicLong(0);
+
+    // Percentage of the reserved ids left when the next slabs get reserved in
+    // the background, 0 reserves inline once the current ones run dry
+    private static final int reserveLowWater = Integer.valueOf(CassandraUtils.properties.getProperty(
+            "solandra.index.id.reserve.low.water", "25"));
+
+    private final ConcurrentMap<String, AllNodeRsvps> standbyReserves = new MapMaker().makeMap();
+    private final ConcurrentMap<String, Boolean> reservesInFlight = new MapMaker().makeMap();
+    private final ExecutorService idReserver = Executors.newSingleThreadExecutor(new NamedThreadFactory(
+            "SolandraIdReserver"));
+
+    private final AtomicLong inlineReserves = new AtomicLong(0);
+    private final AtomicLong standbyReservesUsed = new AtomicLong(0);
+
     private class ShardInfo
     {
         public final String indexName;
-        private long ttl;
-        public final NavigableMap<Integer, NodeInfo> shards = new TreeMap<Integer, NodeInfo>();
+        private volatile long ttl;
+        public final ConcurrentNavigableMap<Integer, NodeInfo> shards;
 
         public ShardInfo(String indexName)
         {
             this.indexName = indexName;
+            shards = new ConcurrentSkipListMap<Integer, NodeInfo>();
             ttl = getNewTTL();
         }
 
@@ -106,7 +154,7 @@ public class CassandraIndexManager
     private class NodeInfo
     {
         public Integer shard;
-        public Map<String, AtomicInteger> nodes = new HashMap<String, AtomicInteger>();
+        public ConcurrentMap<String, AtomicInteger> nodes = new ConcurrentHashMap<String, AtomicInteger>();
 
         public NodeInfo(Integer shard)
         {
@@ -158,9 +206,16 @@ public class CassandraIndexManager
     private class AllNodeRsvps
     {
         public final AtomicLong incrementor = new AtomicLong(0);
-        public final List<RsvpInfo> rsvpList = new ArrayList<RsvpInfo>();
-
-        public Long getNextId()
+        // read without locks while ids are handed out
+        public final List<RsvpInfo> rsvpList = new CopyOnWriteArrayList<RsvpInfo>();
+
+        /**
+         * Takes up to count contiguous ids from one of our reservations
+         * 
+         * @return the first id and the number of ids taken, or null if all
+         *         reservations are used up
+         */
+        public long[] getNextRange(int count)
         {
             if (rsvpList.isEmpty())
             {
@@ -190,11 +245,13 @@ public class CassandraIndexManager
                 // We can only increment our token
                 if (info.token.equals(getToken()))
                 {
-                    int nextId = info.currentId.incrementAndGet();
+                    int nextId = info.currentId.getAndAdd(count) + 1;
 
                     if (nextId <= info.endId)
                     {
-                        return (long) (maxDocsPerShard * info.shard) + nextId;
+                        int taken = Math.min(count, info.endId - nextId + 1);
+
+                        return new long[] { (long) (maxDocsPerShard * info.shard) + nextId, taken };
                     } 
                     else
                     {
@@ -205,6 +262,45 @@ public class CassandraIndexManager
 
             return null;
         }
+
+        /**
+         * @return true once fewer than the low water mark of our reserved ids
+         *         are left
+         */
+        public boolean isLow()
+        {
+            if (reserveLowWater <= 0 || rsvpList.isEmpty())
+                return false;
+
+            long remaining = 0;
+            long now = System.currentTimeMillis();
+
+            for (int i = 0; i < rsvpList.size(); i++)
+            {
+                RsvpInfo info = rsvpList.get(i);
+
+                if (info == null || info.ttl < now)
+                    continue;
+
+                remaining += Math.max(0, info.endId - info.currentId.get());
+            }
+
+            return remaining * 100 < (long) rsvpList.size() * reserveSlabSize * reserveLowWater;
+        }
+
+        /**
+         * Pushes back the expiration of the reservations still in use
+         */
+        public void renew(long ttl)
+        {
+            for (int i = 0; i < rsvpList.size(); i++)
+            {
+                RsvpInfo info = rsvpList.get(i);
+
+                if (info != null)
+                    info.ttl = ttl;
+            }
+        }
     }
 
     private class RsvpInfo
@@ -213,7 +309,7 @@ public class CassandraIndexManager
         public Integer shard;
         public AtomicInteger currentId;
         public final int endId;
-        public final long ttl;
+        public volatile long ttl;
 
         public RsvpInfo(int startId, int endId, int shard, String token, final long ttl)
         {
@@ -295,6 +391,9 @@ public class CassandraIndexManager
         }
 
         randomSeq = shuffle(randomSeq, r);
+
+        if (useKeyFilter)
+            keyFilterBuilder = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("SolandraKeyFilterBuilder"));
     }
 
     private long getNewTTL()
@@ -302,11 +401,10 @@ public class CassandraIndexManager
         return System.currentTimeMillis() + (expirationTime * 1000) + r.nextInt(5000);
     }
 
-    private synchronized ShardInfo getShardInfo(String indexName, boolean force) throws IOException
+    private ShardInfo getShardInfo(String indexName, boolean force) throws IOException
     {
 
         ShardInfo shards = indexShards.get(indexName);
-        ShardInfo currentShards = shards;
 
         if (shards != null && !force)
         {
@@ -319,8 +417,13 @@ public class CassandraIndexManager
             }
         }
 
-        synchronized (indexName.intern())
+        synchronized (shardLock(indexName))
         {
+            // another thread may have reloaded it while we waited
+            ShardInfo currentShards = indexShards.get(indexName);
+
+            if (currentShards != null && !force && currentShards.ttl > System.currentTimeMillis())
+                return currentShards;
 
             ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes,
                     "shards".getBytes("UTF-8"));
@@ -417,7 +520,7 @@ public class CassandraIndexManager
 
                 if (currentShards == null)
                 {
-                    indexReserves.put(indexName, allNodeRsvps);
+                    restoreReserves(indexName, allNodeRsvps, nextTTL);
 
                     return shards;
                 }
@@ -428,21 +531,39 @@ public class CassandraIndexManager
                 {
                     Integer shard = entry.getKey();
 
-                    if (currentShards.shards.get(shard) == null)
-                        currentShards.shards.put(shard, entry.getValue());
+                    currentShards.shards.putIfAbsent(shard, entry.getValue());
                 }
 
                 currentShards.renew(nextTTL);
             }
 
-            
-            indexReserves.put(indexName, allNodeRsvps);
-            
+            restoreReserves(indexName, allNodeRsvps, nextTTL);
 
             return currentShards;
         }
     }
 
+    /**
+     * The stored offsets lag the ids we handed out until their mutations are
+     * written, so reserves rebuilt from them would hand out those ids again.
+     * They are only used when we hold none, live reserves are kept and renewed.
+     */
+    private void restoreReserves(String indexName, AllNodeRsvps stored, long ttl)
+    {
+        AllNodeRsvps live = indexReserves.putIfAbsent(indexName, stored);
+
+        if (live != null)
+            live.renew(ttl);
+    }
+
+    /**
+     * Reloads the shard info as if it had expired
+     */
+    void reloadShardInfo(String indexName) throws IOException
+    {
+        getShardInfo(indexName, true);
+    }
+
     // TODO
     public void deleteId(String indexName, long id)
     {
@@ -484,7 +605,240 @@ public class CassandraIndexManager
 
     public Long getId(String indexName, String key) throws IOException
     {
-        return checkForUpdate(indexName, key);
+        if (!useKeyFilter)
+            return checkForUpdate(indexName, key);
+
+        KeyFilter filter = getKeyFilter(indexName);
+        boolean filtered = filter.isReady();
+
+        if (filtered)
+        {
+            keyFilterChecks.incrementAndGet();
+
+            if (!filter.mightContain(ByteBuffer.wrap(key.getBytes("UTF-8"))))
+            {
+                keyFilterSkippedReads.incrementAndGet();
+                return null;
+            }
+        }
+
+        Long id = checkForUpdate(indexName, key);
+
+        if (filtered && id == null)
+            keyFilterFalsePositives.incrementAndGet();
+
+        if (filter.isOverCapacity())
+            scheduleKeyFilterRebuild(indexName, filter);
+
+        return id;
+    }
+
+    /**
+     * Looks up the ids of many keys at once, their keys rows are read in
+     * parallel
+     * 
+     * @return the ids of the keys that are in the index
+     */
+    public Map<String, Long> getIds(String indexName, Collection<String> keys) throws IOException
+    {
+        Map<String, Long> ids = new HashMap<String, Long>();
+
+        KeyFilter filter = useKeyFilter ? getKeyFilter(indexName) : null;
+        boolean filtered = filter != null && filter.isReady();
+
+        Map<ByteBuffer, String> keysByRow = new HashMap<ByteBuffer, String>(keys.size());
+        List<ReadCommand> reads = new ArrayList<ReadCommand>(keys.size());
+
+        for (String key : new LinkedHashSet<String>(keys))
+        {
+            ByteBuffer keyCol = ByteBuffer.wrap(key.getBytes("UTF-8"));
+
+            if (filtered)
+            {
+                keyFilterChecks.incrementAndGet();
+
+                if (!filter.mightContain(keyCol))
+                {
+                    keyFilterSkippedReads.incrementAndGet();
+                    continue;
+                }
+            }
+
+            ByteBuffer keyKey = CassandraUtils.hashKeyBytes((indexName + "~" + key).getBytes("UTF-8"),
+                    CassandraUtils.delimeterBytes, "keys".getBytes("UTF-8"));
+
+            keysByRow.put(keyKey, key);
+            reads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, keyKey, new QueryPath(
+                    CassandraUtils.schemaInfoColumnFamily), Arrays.asList(keyCol)));
+        }
+
+        if (reads.isEmpty())
+            return ids;
+
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.QUORUM, reads.toArray(new ReadCommand[] {}));
+
+        for (Row row : rows)
+        {
+            String key = keysByRow.get(row.key.key);
+
+            if (key == null)
+                continue;
+
+            Long id = getIdFromKeysRow(row, ByteBuffer.wrap(key.getBytes("UTF-8")));
+
+            if (id != null)
+                ids.put(key, id);
+            else if (filtered)
+                keyFilterFalsePositives.incrementAndGet();
+        }
+
+        if (filtered && filter.isOverCapacity())
+            scheduleKeyFilterRebuild(indexName, filter);
+
+        return ids;
+    }
+
+    private void rememberKey(String indexName, String key) throws IOException
+    {
+        if (useKeyFilter)
+            getKeyFilter(indexName).add(ByteBuffer.wrap(key.getBytes("UTF-8")));
+    }
+
+    private KeyFilter getKeyFilter(final String indexName)
+    {
+        KeyFilter filter = keyFilters.get(indexName);
+
+        if (filter == null)
+        {
+            filter = new KeyFilter();
+            KeyFilter liveFilter = keyFilters.putIfAbsent(indexName, filter);
+
+            if (liveFilter != null)
+                return liveFilter;
+
+            scheduleKeyFilterRebuild(indexName, filter);
+
+            // pick up keys assigned by other nodes
+            if (keyFilterRebuildInterval > 0)
+            {
+                final KeyFilter f = filter;
+                keyFilterBuilder.scheduleWithFixedDelay(new Runnable() {
+                    public void run()
+                    {
+                        rebuildKeyFilter(indexName, f);
+                    }
+                }, keyFilterRebuildInterval, keyFilterRebuildInterval, TimeUnit.SECONDS);
+            }
+        }
+
+        return filter;
+    }
+
+    private void scheduleKeyFilterRebuild(final String indexName, final KeyFilter filter)
+    {
+        keyFilterBuilder.execute(new Runnable() {
+            public void run()
+            {
+                rebuildKeyFilter(indexName, filter);
+            }
+        });
+    }
+
+    /**
+     * Rebuilds the filter from the ids rows of each shard, which hold the key
+     * of every assigned id. The keys rows can't be used, there is one per key
+     * spread across the ring.
+     */
+    private void rebuildKeyFilter(String indexName, KeyFilter filter)
+    {
+        if (!filter.startRebuild())
+            return;
+
+        try
+        {
+            ShardInfo shardInfo = getShardInfo(indexName, false);
+            List<Integer> shards = new ArrayList<Integer>(shardInfo.shards.keySet());
+
+            // no shard holds more
+            filter.startScan((long) shards.size() * maxDocsPerShard);
+
+            for (Integer shard : shards)
+                readShardKeys(indexName, shard, filter);
+
+            filter.finishRebuild();
+
+            logger.info("Built key filter for " + indexName + " with " + filter.getScanned() + " keys");
+        }
+        catch (Throwable t)
+        {
+            filter.abortRebuild();
+            logger.error("Unable to build key filter for " + indexName, t);
+        }
+    }
+
+    /**
+     * Adds the keys of a shard to the filter being rebuilt a page at a time,
+     * so they are never all held at once
+     */
+    private void readShardKeys(String indexName, Integer shard, KeyFilter filter) throws IOException
+    {
+        final int pageSize = 1024;
+
+        ByteBuffer idKey = CassandraUtils.hashKeyBytes((indexName + "~" + shard).getBytes("UTF-8"),
+                CassandraUtils.delimeterBytes, "ids".getBytes("UTF-8"));
+
+        ByteBuffer start = ByteBufferUtil.EMPTY_BYTE_BUFFER;
+
+        while (true)
+        {
+            ReadCommand cmd = new SliceFromReadCommand(CassandraUtils.keySpace, idKey, new ColumnParent(
+                    CassandraUtils.schemaInfoColumnFamily), start, ByteBufferUtil.EMPTY_BYTE_BUFFER, false, pageSize);
+
+            List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.QUORUM, cmd);
+
+            if (rows == null || rows.isEmpty() || rows.get(0).cf == null)
+                return;
+
+            Collection<IColumn> columns = rows.get(0).cf.getSortedColumns();
+
+            for (IColumn c : columns)
+            {
+                // pages start at the last column of the previous one
+                if (c.name().equals(start))
+                    continue;
+
+                start = c.name();
+
+                long deletedAt = ((SuperColumn) c).getMarkedForDeleteAt();
+
+                for (IColumn subCol : c.getSubColumns())
+                {
+                    if (!subCol.isMarkedForDelete() && subCol.timestamp() > deletedAt)
+                        filter.addScanned(subCol.value());
+                }
+            }
+
+            if (columns.size() < pageSize)
+                return;
+        }
+    }
+
+    /** Number of key lookups answered by a key filter */
+    public long getKeyFilterChecks()
+    {
+        return keyFilterChecks.get();
+    }
+
+    /** Number of key lookups that skipped the keys row read */
+    public long getKeyFilterSkippedReads()
+    {
+        return keyFilterSkippedReads.get();
+    }
+
+    /** Number of key lookups the filter let through that found no key */
+    public long getKeyFilterFalsePositives()
+    {
+        return keyFilterFalsePositives.get();
     }
 
     public RowMutation getIdMutation(String indexName, String key, Long id) throws IOException
@@ -515,24 +869,27 @@ public class CassandraIndexManager
                 Arrays.asList(keyCol), ConsistencyLevel.QUORUM);
 
         if (rows.size() == 1)
+            return getIdFromKeysRow(rows.get(0), keyCol);
+
+        return null;
+    }
+
+    private Long getIdFromKeysRow(Row row, ByteBuffer keyCol) throws IOException
+    {
+        if (row.cf != null)
         {
-            Row row = rows.get(0);
+            IColumn col = row.cf.getColumn(keyCol);
 
-            if (row.cf != null)
+            if (col != null)
             {
-                IColumn col = row.cf.getColumn(keyCol);
+                Collection<IColumn> subCols = col.getSubColumns();
 
-                if (col != null)
+                if (subCols != null && !subCols.isEmpty())
                 {
-                    Collection<IColumn> subCols = col.getSubColumns();
+                    ByteBuffer idVal = col.getSubColumns().iterator().next().name();
+                    Long id = Long.valueOf(ByteBufferUtil.string(idVal));
 
-                    if (subCols != null && !subCols.isEmpty())
-                    {
-                        ByteBuffer idVal = col.getSubColumns().iterator().next().name();
-                        Long id = Long.valueOf(ByteBufferUtil.string(idVal));
-
-                        return id;
-                    }
+                    return id;
                 }
             }
         }
@@ -548,72 +905,194 @@ public class CassandraIndexManager
         return StorageService.instance.getTokenMetadata().getToken(FBUtilities.getLocalAddress()).toString();
     }
 
+    /**
+     * Reserves an id for the key
+     * 
+     * @param rowMutations
+     *            receives the bookkeeping mutations, which must be written
+     *            along with the document. The last one is null if a later id
+     *            already moved the shard offset past this one
+     */
     public long getNextId(String indexName, String key, RowMutation[] rowMutations) throws IOException
     {
         if (rowMutations.length != 3)
             throw new IllegalArgumentException("rowMutations must be length 3");
 
-        String myToken = getToken();
-        ShardInfo shards = null;
-        NodeInfo nodes[] = null;
-        Long id = null;
+        return reserveId(indexName, key, getToken(), rowMutations);
+    }
 
-        synchronized (indexName.intern())
-        {
+    /**
+     * Like {@link #getNextIds(String, List, Map)}, with the bookkeeping of
+     * all shards in one list
+     */
+    public long[] getNextIds(String indexName, List<String> keys, List<RowMutation> rowMutations)
+            throws IOException
+    {
+        Map<Integer, List<RowMutation>> shardMutations = new TreeMap<Integer, List<RowMutation>>();
 
-            int attempts = 0;
-            while (attempts < CassandraUtils.retryAttempts)
-            {
-                shards = getShardInfo(indexName, false);
-                nodes = pickAShard(shards);
+        long[] ids = getNextIds(indexName, keys, shardMutations);
 
-                id = nextReservedId(indexName, shards, nodes, myToken);
+        for (List<RowMutation> mutations : shardMutations.values())
+            rowMutations.addAll(mutations);
 
-                if (id == null)
-                {
-                    attempts++;
-                    // logger.info("Failed to get an ID, trying again");
-                    continue;
-                }
-                break;
-            }
+        return ids;
+    }
 
-            if (id == null)
-                throw new IllegalStateException(myToken + ": Unable to reserve an id");
+    /**
+     * Reserves an id for each key. Ids are handed out in contiguous runs from
+     * our reservations, and the bookkeeping is batched: one ids row mutation and
+     * one offset update per shard touched, plus the per key rows.
+     * 
+     * @param shardMutations
+     *            receives the bookkeeping mutations by shard, each shard's
+     *            must be written along with its documents
+     * @return the ids, in the same order as the keys
+     */
+    public long[] getNextIds(String indexName, List<String> keys, Map<Integer, List<RowMutation>> shardMutations)
+            throws IOException
+    {
+        String myToken = getToken();
+        ByteBuffer tokenBytes = ByteBuffer.wrap(myToken.getBytes("UTF-8"));
+        long[] ids = new long[keys.size()];
+
+        int filled = 0;
+        while (filled < ids.length)
+        {
+            long[] range = reserveRange(indexName, myToken, ids.length - filled);
 
-            int shard = getShardFromDocId(id);
-            int shardedId = getShardedDocId(id);
+            for (int i = 0; i < range[1]; i++)
+                ids[filled++] = range[0] + i;
+        }
+
+        Map<Integer, RowMutation> idRows = new TreeMap<Integer, RowMutation>();
+        Map<Integer, Integer> lastOffsets = new TreeMap<Integer, Integer>();
+        long timestamp = System.currentTimeMillis();
+
+        for (int i = 0; i < ids.length; i++)
+        {
+            int shard = getShardFromDocId(ids[i]);
+            int shardedId = getShardedDocId(ids[i]);
 
             ByteBuffer idCol = ByteBufferUtil.bytes(String.valueOf(shardedId));
-            ByteBuffer keyCol = ByteBuffer.wrap(key.getBytes("UTF-8"));
+            ByteBuffer keyCol = ByteBuffer.wrap(keys.get(i).getBytes("UTF-8"));
 
             // Permanently mark the id as taken
-            ByteBuffer idKey = CassandraUtils.hashKeyBytes((indexName + "~" + shard).getBytes("UTF-8"),
-                    CassandraUtils.delimeterBytes, "ids".getBytes("UTF-8"));
+            RowMutation idRow = idRows.get(shard);
+            if (idRow == null)
+            {
+                ByteBuffer idKey = CassandraUtils.hashKeyBytes((indexName + "~" + shard).getBytes("UTF-8"),
+                        CassandraUtils.delimeterBytes, "ids".getBytes("UTF-8"));
+
+                idRow = new RowMutation(CassandraUtils.keySpace, idKey);
+                idRows.put(shard, idRow);
+            }
 
-            RowMutation rm = new RowMutation(CassandraUtils.keySpace, idKey);
-            rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, idCol, ByteBuffer.wrap(myToken
-                    .getBytes("UTF-8"))), keyCol, System.currentTimeMillis());
+            idRow.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, idCol, tokenBytes), keyCol, timestamp);
 
             // Permanently link the key to the id
-            ByteBuffer keyKey = CassandraUtils.hashKeyBytes((indexName + "~" + key).getBytes("UTF-8"),
+            ByteBuffer keyKey = CassandraUtils.hashKeyBytes((indexName + "~" + keys.get(i)).getBytes("UTF-8"),
                     CassandraUtils.delimeterBytes, "keys".getBytes("UTF-8"));
 
-            ByteBuffer idVal = ByteBuffer.wrap(id.toString().getBytes("UTF-8"));
+            RowMutation keyRow = new RowMutation(CassandraUtils.keySpace, keyKey);
+            keyRow.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, keyCol, ByteBuffer.wrap(String
+                    .valueOf(ids[i]).getBytes("UTF-8"))), CassandraUtils.finalTokenBytes, timestamp);
+
+            shardMutations(shardMutations, shard).add(keyRow);
+            rememberKey(indexName, keys.get(i));
+
+            Integer last = lastOffsets.get(shard);
+            if (last == null || last < shardedId)
+                lastOffsets.put(shard, shardedId);
+        }
+
+        for (Map.Entry<Integer, RowMutation> e : idRows.entrySet())
+            shardMutations(shardMutations, e.getKey()).add(e.getValue());
+
+        // Update last offset info once per shard
+        for (Map.Entry<Integer, Integer> e : lastOffsets.entrySet())
+        {
+            RowMutation offsetRow = raiseNodeOffset(indexName, myToken, e.getKey(), e.getValue());
+
+            if (offsetRow != null)
+                shardMutations(shardMutations, e.getKey()).add(offsetRow);
+        }
+
+        return ids;
+    }
+
+    private static List<RowMutation> shardMutations(Map<Integer, List<RowMutation>> shardMutations, Integer shard)
+    {
+        List<RowMutation> mutations = shardMutations.get(shard);
+
+        if (mutations == null)
+        {
+            mutations = new ArrayList<RowMutation>();
+            shardMutations.put(shard, mutations);
+        }
 
-            RowMutation rm2 = new RowMutation(CassandraUtils.keySpace, keyKey);
-            rm2.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, keyCol, idVal),
-                    CassandraUtils.finalTokenBytes, System.currentTimeMillis());
+        return mutations;
+    }
 
-            // Update last offset info for this shard
-            RowMutation rm3 = updateNodeOffset(indexName, myToken, shard, shardedId);
+    private long[] reserveRange(String indexName, String myToken, int count) throws IOException
+    {
+        long[] range = null;
 
-            rowMutations[0] = rm;
-            rowMutations[1] = rm2;
-            rowMutations[2] = rm3;
+        int attempts = 0;
+        while (attempts < CassandraUtils.retryAttempts)
+        {
+            range = nextReservedRange(indexName, myToken, count);
 
-            return id;
+            if (range == null)
+            {
+                attempts++;
+                continue;
+            }
+            break;
         }
+
+        if (range == null)
+            throw new IllegalStateException(myToken + ": Unable to reserve an id");
+
+        return range;
+    }
+
+    private long reserveId(String indexName, String key, String myToken, RowMutation[] rowMutations)
+            throws IOException
+    {
+        Long id = reserveRange(indexName, myToken, 1)[0];
+
+        rememberKey(indexName, key);
+
+        int shard = getShardFromDocId(id);
+        int shardedId = getShardedDocId(id);
+
+        ByteBuffer idCol = ByteBufferUtil.bytes(String.valueOf(shardedId));
+        ByteBuffer keyCol = ByteBuffer.wrap(key.getBytes("UTF-8"));
+
+        // Permanently mark the id as taken
+        ByteBuffer idKey = CassandraUtils.hashKeyBytes((indexName + "~" + shard).getBytes("UTF-8"),
+                CassandraUtils.delimeterBytes, "ids".getBytes("UTF-8"));
+
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, idKey);
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, idCol, ByteBuffer.wrap(myToken
+                .getBytes("UTF-8"))), keyCol, System.currentTimeMillis());
+
+        // Permanently link the key to the id
+        ByteBuffer keyKey = CassandraUtils.hashKeyBytes((indexName + "~" + key).getBytes("UTF-8"),
+                CassandraUtils.delimeterBytes, "keys".getBytes("UTF-8"));
+
+        ByteBuffer idVal = ByteBuffer.wrap(id.toString().getBytes("UTF-8"));
+
+        RowMutation rm2 = new RowMutation(CassandraUtils.keySpace, keyKey);
+        rm2.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, keyCol, idVal),
+                CassandraUtils.finalTokenBytes, System.currentTimeMillis());
+
+        rowMutations[0] = rm;
+        rowMutations[1] = rm2;
+        // Update last offset info for this shard, unless a later id already did
+        rowMutations[2] = raiseNodeOffset(indexName, myToken, shard, shardedId);
+
+        return id;
     }
 
     public long getNextId(String indexName, String key) throws IOException
@@ -626,7 +1105,11 @@ public class CassandraIndexManager
         // TODO: Delayed Insert!
         // Checks for more recent updates and disregards the older ones
 
-        CassandraUtils.robustInsert(CassandraUtils.consistency, rms);
+        if (rms[2] == null)
+            CassandraUtils.robustInsert(CassandraUtils.consistency, rms[0], rms[1]);
+        else
+            CassandraUtils.robustInsert(CassandraUtils.consistency, rms);
+
         return val;
     }
 
@@ -646,248 +1129,371 @@ public class CassandraIndexManager
         CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rms.toArray(new RowMutation[] {}));
     }
 
-    private Long nextReservedId(String indexName, ShardInfo shards, NodeInfo[] nodes, String myToken)
-            throws IOException
+    private long[] nextReservedRange(String indexName, String myToken, int count) throws IOException
     {
+        if (logger.isDebugEnabled())
+            logger.debug("in reserveIds for index " + indexName);
 
-        synchronized (indexName.intern())
+        // lock free while our reserves last
+        AllNodeRsvps currentRsvpd = indexReserves.get(indexName);
+
+        if (currentRsvpd != null)
         {
+            long[] nextRange = currentRsvpd.getNextRange(count);
 
-            if (logger.isDebugEnabled())
-                logger.debug("in reserveIds for index " + indexName);
+            if (nextRange != null)
+            {
+                if (currentRsvpd.isLow())
+                    reserveAhead(indexName, myToken);
 
-            AllNodeRsvps currentRsvpd = indexReserves.get(indexName);
+                return nextRange;
+            }
+        }
 
-            if (currentRsvpd != null)
-            {
-                Long nextId = currentRsvpd.getNextId();
+        synchronized (reserveLock(indexName))
+        {
+            // reloading the shard info restores the reserves we had stored
+            ShardInfo shards = getShardInfo(indexName, false);
+
+            // another thread may have swapped in new reserves while we waited
+            AllNodeRsvps latestRsvpd = indexReserves.get(indexName);
 
-                if (nextId != null)                
-                    return nextId;
+            if (latestRsvpd != null && latestRsvpd != currentRsvpd)
+            {
+                long[] nextRange = latestRsvpd.getNextRange(count);
 
-                //if (logger.isDebugEnabled())
-                    logger.info("need more ids for " +indexName+" "+myToken);
+                if (nextRange != null)
+                    return nextRange;
             }
 
-            AllNodeRsvps allNewRsvps = new AllNodeRsvps();
-            ShardInfo usedShardInfo = indexUsed.get(indexName);
-            if (usedShardInfo == null)
+            //if (logger.isDebugEnabled())
+                logger.info("need more ids for " +indexName+" "+myToken);
+
+            AllNodeRsvps allNewRsvps = standbyReserves.remove(indexName);
+
+            if (allNewRsvps == null)
             {
-                usedShardInfo = new ShardInfo(indexName);
-                indexUsed.put(indexName, usedShardInfo);
+                allNewRsvps = reserveSlabs(indexName, shards, pickAShard(shards), myToken);
+                inlineReserves.incrementAndGet();
             }
-
-            // Pick a new shard
-            for (NodeInfo node : nodes)
+            else
             {
-                AtomicInteger offset = node.nodes.get(myToken);
+                // the standby's slabs are ours for good, only its expiration
+                // dates from when it was reserved
+                allNewRsvps.renew(getNewTTL());
+                standbyReservesUsed.incrementAndGet();
+            }
 
-                assert offset != null;
+            // store new reserves
+            indexReserves.put(indexName, allNewRsvps);
 
-                int startingOffset = offset.get();
-                int nextOffset = startingOffset;
+            if (logger.isTraceEnabled())
+                logger.trace("Reserved " + allNewRsvps.rsvpList.size() + " shards for " + myToken);
 
-                // goto next offset marker (unless its the first or last)
-                int randomSequenceOffset = getRandomSequenceOffset(startingOffset);
+            long[] nextRange = allNewRsvps.getNextRange(count);
 
-                NodeInfo usedNodeInfo = usedShardInfo.shards.get(node.shard);
-                if (usedNodeInfo == null)
-                {
-                    usedNodeInfo = new NodeInfo(node.shard);
-                    usedShardInfo.shards.put(node.shard, usedNodeInfo);
-                }
+            if (nextRange != null && allNewRsvps.isLow())
+                reserveAhead(indexName, myToken);
 
-                if (startingOffset != randomSeq[0])
+            return nextRange;
+        }
+    }
+
+    /**
+     * Reserves slabs of ids for this node from the given shards.
+     *
+     * Callers hold the reserve lock.
+     */
+    private AllNodeRsvps reserveSlabs(String indexName, ShardInfo shards, NodeInfo[] nodes, String myToken)
+            throws IOException
+    {
+        AllNodeRsvps allNewRsvps = new AllNodeRsvps();
+        ShardInfo usedShardInfo = indexUsed.get(indexName);
+        if (usedShardInfo == null)
+        {
+            usedShardInfo = new ShardInfo(indexName);
+            indexUsed.put(indexName, usedShardInfo);
+        }
+
+        // Pick a new shard
+        for (NodeInfo node : nodes)
+        {
+            AtomicInteger offset = node.nodes.get(myToken);
+
+            assert offset != null;
+
+            int startingOffset = offset.get();
+            int nextOffset = startingOffset;
+
+            // goto next offset marker (unless its the first or last)
+            int randomSequenceOffset = getRandomSequenceOffset(startingOffset);
+
+            NodeInfo usedNodeInfo = usedShardInfo.shards.get(node.shard);
+            if (usedNodeInfo == null)
+            {
+                usedNodeInfo = new NodeInfo(node.shard);
+                usedShardInfo.shards.put(node.shard, usedNodeInfo);
+            }
+
+            if (startingOffset != randomSeq[0])
+            {
+                if (randomSequenceOffset != (offsetSlots - 1))
                 {
-                    if (randomSequenceOffset != (offsetSlots - 1))
-                    {
-                        nextOffset = randomSeq[randomSequenceOffset + 1];
-                    } else
-                    {
-                        continue;
-                    }
+                    nextOffset = randomSeq[randomSequenceOffset + 1];
+                } else
+                {
+                    continue;
                 }
+            }
 
-                if (logger.isTraceEnabled())
-                    logger.trace(myToken + "  startingOffset = " + startingOffset + ", nextOffset = " + nextOffset);
+            if (logger.isTraceEnabled())
+                logger.trace(myToken + "  startingOffset = " + startingOffset + ", nextOffset = " + nextOffset);
 
-                while (true)
-                {
+            while (true)
+            {
 
-                    // Avoid re-checking used slabs
-                    if (usedNodeInfo != null)
+                // Avoid re-checking used slabs
+                if (usedNodeInfo != null)
+                {
+                    if (usedNodeInfo.nodes.get("" + nextOffset) != null)
                     {
-                        if (usedNodeInfo.nodes.get("" + nextOffset) != null)
-                        {
-                            updateNodeOffset(indexName, myToken, node.shard, nextOffset);
+                        offset.set(nextOffset);
 
-                            // try next offset
-                            int seqOffset = getRandomSequenceOffset(nextOffset);
-                            if (seqOffset < (offsetSlots - 1))
-                            {
-                                nextOffset = randomSeq[seqOffset + 1];
-                                continue;
-                            } else
-                            {
-                                break;
-                            }
+                        // try next offset
+                        int seqOffset = getRandomSequenceOffset(nextOffset);
+                        if (seqOffset < (offsetSlots - 1))
+                        {
+                            nextOffset = randomSeq[seqOffset + 1];
+                            continue;
+                        } else
+                        {
+                            break;
                         }
                     }
+                }
 
-                    ByteBuffer key = CassandraUtils.hashKeyBytes((indexName + "~" + node.shard).getBytes("UTF-8"),
-                            CassandraUtils.delimeterBytes, "rsvp".getBytes("UTF-8"));
+                ByteBuffer key = CassandraUtils.hashKeyBytes((indexName + "~" + node.shard).getBytes("UTF-8"),
+                        CassandraUtils.delimeterBytes, "rsvp".getBytes("UTF-8"));
 
-                    // Write the reserves
-                    RowMutation rm = new RowMutation(CassandraUtils.keySpace, key);
+                // Write the reserves
+                RowMutation rm = new RowMutation(CassandraUtils.keySpace, key);
 
-                    ByteBuffer id = ByteBufferUtil.bytes(String.valueOf(nextOffset));
-                    ByteBuffer off = id;
+                ByteBuffer id = ByteBufferUtil.bytes(String.valueOf(nextOffset));
+                ByteBuffer off = id;
 
-                    rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, id, ByteBuffer.wrap(myToken
-                            .getBytes("UTF-8"))), off, System.currentTimeMillis(), expirationTime);
+                rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, id, ByteBuffer.wrap(myToken
+                        .getBytes("UTF-8"))), off, System.currentTimeMillis(), expirationTime);
 
-                    CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+                CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+
+                // Give it time to sink in, in-case clocks are off across
+                // nodes...
+                try
+                {
+                    Thread.sleep(100);
+                } catch (InterruptedException e1)
+                {
+                }
 
-                    // Give it time to sink in, in-case clocks are off across
-                    // nodes...
+                // Read the columns back
+                IColumn supercol = null;
+                int attempts = 0;
+                while (supercol == null && attempts < CassandraUtils.retryAttempts)
+                {
                     try
                     {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e1)
-                    {
-                    }
+                        List<Row> rows = CassandraUtils.robustRead(key, new QueryPath(
+                                CassandraUtils.schemaInfoColumnFamily), Arrays.asList(id), ConsistencyLevel.QUORUM);
 
-                    // Read the columns back
-                    IColumn supercol = null;
-                    int attempts = 0;
-                    while (supercol == null && attempts < CassandraUtils.retryAttempts)
-                    {
-                        try
+                        if (rows == null || rows.size() == 0)
                         {
-                            List<Row> rows = CassandraUtils.robustRead(key, new QueryPath(
-                                    CassandraUtils.schemaInfoColumnFamily), Arrays.asList(id), ConsistencyLevel.QUORUM);
+                            continue;
+                        }
+
+                        if (rows.size() == 1)
+                        {
+                            Row row = rows.get(0);
 
-                            if (rows == null || rows.size() == 0)
+                            if (row.cf == null || row.cf.isMarkedForDelete())
                             {
                                 continue;
                             }
 
-                            if (rows.size() == 1)
-                            {
-                                Row row = rows.get(0);
+                            supercol = rows.get(0).cf.getColumn(id);
+                        }
+                    } catch (IOException e)
+                    {
+                        // let's try again...
+                    }
 
-                                if (row.cf == null || row.cf.isMarkedForDelete())
-                                {
-                                    continue;
-                                }
+                    attempts++;
+                }
 
-                                supercol = rows.get(0).cf.getColumn(id);
-                            }
-                        } catch (IOException e)
-                        {
-                            // let's try again...
-                        }
+                if (supercol == null)
+                    throw new IllegalStateException("just wrote " + offset + ", but didn't read it");
 
-                        attempts++;
+                long minTtl = Long.MAX_VALUE;
+                ByteBuffer winningToken = null;
+
+                // See which ones we successfully reserved
+                for (IColumn c : supercol.getSubColumns())
+                {
+
+                    // someone already took this id
+                    if (!(c instanceof ExpiringColumn) && !(c instanceof DeletedColumn))
+                    {
+                        if (logger.isDebugEnabled())
+                            logger.debug(offset + " was taken by " + ByteBufferUtil.string(c.name()));
+
+                        winningToken = null;
+                        break;
                     }
 
-                    if (supercol == null)
-                        throw new IllegalStateException("just wrote " + offset + ", but didn't read it");
+                    // expired reservation
+                    if (c.isMarkedForDelete())
+                    {
+                        continue;
+                    }
 
-                    long minTtl = Long.MAX_VALUE;
-                    ByteBuffer winningToken = null;
+                    if (c.timestamp() < minTtl)
+                    {
+                        minTtl = c.timestamp();
+                        winningToken = c.name();
+                    }
 
-                    // See which ones we successfully reserved
-                    for (IColumn c : supercol.getSubColumns())
+                    // incase of a tie the token is the tiebreaker
+                    if (c.timestamp() == minTtl && winningToken.compareTo(c.name()) <= 0)
                     {
+                        winningToken = c.name();
+                    }
+                }
 
-                        // someone already took this id
-                        if (!(c instanceof ExpiringColumn) && !(c instanceof DeletedColumn))
-                        {
-                            if (logger.isDebugEnabled())
-                                logger.debug(offset + " was taken by " + ByteBufferUtil.string(c.name()));
+                String winningTokenStr;
+                try
+                {
+                    winningTokenStr = winningToken == null ? "" : ByteBufferUtil.string(winningToken);
+                } catch (CharacterCodingException e)
+                {
+                    throw new RuntimeException(e);
+                }
 
-                            winningToken = null;
-                            break;
-                        }
+                // we won!
+                if (winningTokenStr.equals(myToken))
+                {
+                    // Mark this as permanently taken
+                    rm = new RowMutation(CassandraUtils.keySpace, key);
 
-                        // expired reservation
-                        if (c.isMarkedForDelete())
-                        {
-                            continue;
-                        }
+                    rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, id, ByteBuffer.wrap(myToken
+                            .getBytes("UTF-8"))), off, System.currentTimeMillis());
 
-                        if (c.timestamp() < minTtl)
-                        {
-                            minTtl = c.timestamp();
-                            winningToken = c.name();
-                        }
+                    CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
 
-                        // incase of a tie the token is the tiebreaker
-                        if (c.timestamp() == minTtl && winningToken.compareTo(c.name()) <= 0)
-                        {
-                            winningToken = c.name();
-                        }
-                    }
+                    // Add to active rsvp list
+                    // Start just ahead of the first offset because on expiration we check if the offset
+                    //is on a boundry point of 
+                    allNewRsvps.rsvpList.add(new RsvpInfo(nextOffset+1, (nextOffset + reserveSlabSize - 1),
+                            node.shard, myToken, getNewTTL()));
 
-                    String winningTokenStr;
-                    try
+                    // if (logger.isTraceEnabled())
+                    logger.info("Reserved " + reserveSlabSize + " ids for " + indexName + "(" + myToken
+                            + ") shard " + node.shard + " from slot " + getRandomSequenceOffset(nextOffset) + " "
+                            + nextOffset + " TO " + (nextOffset + reserveSlabSize - 1));
+
+                    break;
+                } else
+                {
+                    // Mark this offset as taken.
+                    usedNodeInfo.nodes.put("" + nextOffset, new AtomicInteger(1));
+
+                    // we lost, try try again...
+                    int seqOffset = getRandomSequenceOffset(nextOffset);
+                    if (seqOffset < (offsetSlots - 1))
                     {
-                        winningTokenStr = winningToken == null ? "" : ByteBufferUtil.string(winningToken);
-                    } catch (CharacterCodingException e)
+                        nextOffset = randomSeq[seqOffset + 1];
+                    } else
                     {
-                        throw new RuntimeException(e);
+                        break;
                     }
+                }
+            }
+        }
 
-                    // we won!
-                    if (winningTokenStr.equals(myToken))
-                    {
-                        // Mark this as permanently taken
-                        rm = new RowMutation(CassandraUtils.keySpace, key);
+        return allNewRsvps;
+    }
 
-                        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, id, ByteBuffer.wrap(myToken
-                                .getBytes("UTF-8"))), off, System.currentTimeMillis());
+    private Object reserveLock(String indexName)
+    {
+        return getLock(reserveLocks, indexName);
+    }
 
-                        CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+    private Object shardLock(String indexName)
+    {
+        return getLock(shardLocks, indexName);
+    }
 
-                        // Add to active rsvp list
-                        // Start just ahead of the first offset because on expiration we check if the offset
-                        //is on a boundry point of 
-                        allNewRsvps.rsvpList.add(new RsvpInfo(nextOffset+1, (nextOffset + reserveSlabSize - 1),
-                                node.shard, myToken, shards.ttl()));
+    private static Object getLock(ConcurrentMap<String, Object> locks, String indexName)
+    {
+        Object lock = locks.get(indexName);
 
-                        // if (logger.isTraceEnabled())
-                        logger.info("Reserved " + reserveSlabSize + " ids for " + indexName + "(" + myToken
-                                + ") shard " + node.shard + " from slot " + getRandomSequenceOffset(nextOffset) + " "
-                                + nextOffset + " TO " + (nextOffset + reserveSlabSize - 1));
+        if (lock == null)
+        {
+            lock = new Object();
+            Object liveLock = locks.putIfAbsent(indexName, lock);
 
-                        break;
-                    } else
-                    {
-                        // Mark this offset as taken.
-                        usedNodeInfo.nodes.put("" + nextOffset, new AtomicInteger(1));
+            if (liveLock != null)
+                lock = liveLock;
+        }
 
-                        // we lost, try try again...
-                        int seqOffset = getRandomSequenceOffset(nextOffset);
-                        if (seqOffset < (offsetSlots - 1))
-                        {
-                            nextOffset = randomSeq[seqOffset + 1];
-                        } else
+        return lock;
+    }
+
+    /**
+     * Reserves the next slabs in the background, they are swapped in once the
+     * current reserves run dry
+     */
+    private void reserveAhead(final String indexName, final String myToken)
+    {
+        if (standbyReserves.containsKey(indexName) || reservesInFlight.putIfAbsent(indexName, Boolean.TRUE) != null)
+            return;
+
+        idReserver.execute(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    synchronized (reserveLock(indexName))
+                    {
+                        if (!standbyReserves.containsKey(indexName))
                         {
-                            break;
+                            ShardInfo shards = getShardInfo(indexName, false);
+
+                            standbyReserves.put(indexName, reserveSlabs(indexName, shards, pickAShard(shards),
+                                    myToken));
                         }
                     }
                 }
+                catch (Throwable t)
+                {
+                    logger.error("Unable to reserve ids ahead for " + indexName, t);
+                }
+                finally
+                {
+                    reservesInFlight.remove(indexName);
+                }
             }
+        });
+    }
 
-            // store new reserves
-            indexReserves.put(indexName, allNewRsvps);
-
-            if (logger.isTraceEnabled())
-                logger.trace("Reserved " + allNewRsvps.rsvpList.size() + " shards for " + myToken);
+    /** Number of times writers waited on reserving ids */
+    public long getInlineReserves()
+    {
+        return inlineReserves.get();
+    }
 
-            return allNewRsvps.getNextId();
-        }
+    /** Number of times reserves fetched ahead were swapped in */
+    public long getStandbyReservesUsed()
+    {
+        return standbyReservesUsed.get();
     }
 
     private int getRandomSequenceOffset(int offset)
@@ -992,8 +1598,9 @@ public class CassandraIndexManager
 
         NodeInfo nodes = new NodeInfo(shardNum);
 
-        if (shards.shards.get(nodes.shard) == null)
-            shards.shards.put(nodes.shard, nodes);
+        NodeInfo liveNodes = shards.shards.putIfAbsent(nodes.shard, nodes);
+        if (liveNodes != null)
+            nodes = liveNodes;
 
         logger.info("added new shard for " + shards.indexName + "(" + getToken() + ") " + nodes.shard);
 
@@ -1005,41 +1612,106 @@ public class CassandraIndexManager
     private RowMutation updateNodeOffset(String indexName, String myToken, Integer shard, Integer offset)
             throws IOException
     {
+        localNodeOffset(indexName, myToken, shard).set(offset);
 
-        // Update last offset info for this shard
-        ByteBuffer shardKey = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes,
-                "shards".getBytes("UTF-8"));
-        RowMutation rm = new RowMutation(CassandraUtils.keySpace, shardKey);
+        return nodeOffsetMutation(indexName, myToken, shard, offset);
+    }
 
-        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBuffer.wrap(String.valueOf(shard).getBytes(
-                "UTF-8")), ByteBuffer.wrap(myToken.getBytes("UTF-8"))),
-                ByteBuffer.wrap(String.valueOf(offset).getBytes("UTF-8")), System.currentTimeMillis());
+    /**
+     * Batches finish in any order, so the offset is only ever moved forward,
+     * both locally and in the shards row.
+     * 
+     * @return the offset update, or null if it was already at or past offset
+     */
+    RowMutation raiseNodeOffset(String indexName, String myToken, Integer shard, Integer offset)
+            throws IOException
+    {
+        AtomicInteger o = localNodeOffset(indexName, myToken, shard);
+
+        while (true)
+        {
+            int current = o.get();
+
+            if (!isAhead(offset, current))
+                return null;
+
+            if (o.compareAndSet(current, offset))
+                break;
+        }
+
+        return nodeOffsetMutation(indexName, myToken, shard, offset);
+    }
+
+    /**
+     * Slabs are used in the order of the random sequence, not by their ids,
+     * so an offset is ahead if its slab comes later in the sequence, or it
+     * is higher within the same slab.
+     */
+    private boolean isAhead(int offset, int current)
+    {
+        int slot = getRandomSequenceOffset(offset);
+        int currentSlot = getRandomSequenceOffset(current);
+
+        return slot > currentSlot || (slot == currentSlot && offset > current);
+    }
+
+    /**
+     * This node's offset in a shard, -1 if it has none
+     */
+    int getNodeOffset(String indexName, Integer shard) throws IOException
+    {
+        NodeInfo n = getShardInfo(indexName, false).shards.get(shard);
+        AtomicInteger o = n == null ? null : n.nodes.get(getToken());
+
+        return o == null ? -1 : o.get();
+    }
+
+    /**
+     * The first id of the slab used at a position of this node's sequence
+     */
+    int getSlabStart(int slot)
+    {
+        return randomSeq[slot];
+    }
+
+    private AtomicInteger localNodeOffset(String indexName, String myToken, Integer shard) throws IOException
+    {
+        if (indexName.contains("~"))
+            throw new RuntimeException("inner shard offset update attempt: " + indexName);
 
-        // update locally
         ShardInfo si = getShardInfo(indexName, false);
-        AtomicInteger o = null;
         NodeInfo n = si.shards.get(shard);
 
-        if (!indexName.contains("~"))
-        {
-            if (n != null)
-                o = n.nodes.get(myToken);
-            else
-                throw new RuntimeException("missing node info");
+        if (n == null)
+            throw new RuntimeException("missing node info");
 
-            if (o == null)
-                n.nodes.put(myToken, new AtomicInteger(offset));
-            else
-                o.set(offset);
+        AtomicInteger o = n.nodes.get(myToken);
 
-            // if (logger.isDebugEnabled())
-            // logger.info("updated node offset for " + indexName + "(" + shard
-            // + ")(" + myToken + ") to " + offset);
-        } else
+        if (o == null)
         {
-            throw new RuntimeException("inner shard offset update attempt: " + indexName);
+            // new offsets start before the first id
+            o = new AtomicInteger(-1);
+            AtomicInteger live = n.nodes.putIfAbsent(myToken, o);
+
+            if (live != null)
+                o = live;
         }
 
+        return o;
+    }
+
+    private RowMutation nodeOffsetMutation(String indexName, String myToken, Integer shard, Integer offset)
+            throws IOException
+    {
+        // Update last offset info for this shard
+        ByteBuffer shardKey = CassandraUtils.hashKeyBytes(indexName.getBytes("UTF-8"), CassandraUtils.delimeterBytes,
+                "shards".getBytes("UTF-8"));
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, shardKey);
+
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBuffer.wrap(String.valueOf(shard).getBytes(
+                "UTF-8")), ByteBuffer.wrap(myToken.getBytes("UTF-8"))),
+                ByteBuffer.wrap(String.valueOf(offset).getBytes("UTF-8")), System.currentTimeMillis());
+
         return rm;
     }
 
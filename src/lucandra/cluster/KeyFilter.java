@@ -0,0 +1,168 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.cluster;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.cassandra.utils.BloomFilter;
+
+/**
+ * Bloom filter of the document keys of one index.
+ *
+ * It is only usable once built from the stored keys, until then callers have
+ * to check the keys rows. Keys assigned before the first build or while a
+ * rebuild is scanning are remembered and folded into the new filter so none
+ * are missed. Keys assigned just before a rebuild started may still have
+ * their keys row queued when it scans, so the filter it replaces is kept and
+ * checked too, until the next rebuild.
+ */
+class KeyFilter
+{
+    private static final int    minCapacity      = 10000;
+    private static final double falsePositiveRate = 0.01;
+
+    private BloomFilter         filter;
+    private BloomFilter         previous;
+    private long                capacity;
+    private long                size;
+
+    private boolean             rebuilding;
+    // keys added before the first build or while a rebuild is running,
+    // null otherwise
+    private List<ByteBuffer>    pending          = new ArrayList<ByteBuffer>();
+
+    // the filter a rebuild adds the scanned keys to, only touched by the
+    // thread running it
+    private BloomFilter         scanFilter;
+    private long                scanCapacity;
+    private long                scanned;
+
+    public synchronized boolean isReady()
+    {
+        return filter != null;
+    }
+
+    /**
+     * @return false if the key is definitely not in the index, true if it
+     *         might be or the filter isn't built yet
+     */
+    public synchronized boolean mightContain(ByteBuffer key)
+    {
+        return filter == null || filter.isPresent(key) || (previous != null && previous.isPresent(key));
+    }
+
+    public synchronized void add(ByteBuffer key)
+    {
+        if (filter != null)
+        {
+            filter.add(key);
+            size++;
+        }
+
+        if (pending != null)
+            pending.add(key);
+    }
+
+    /** More keys were added than the filter was sized for */
+    public synchronized boolean isOverCapacity()
+    {
+        return filter != null && size > capacity;
+    }
+
+    /**
+     * @return false if a rebuild is already running
+     */
+    public synchronized boolean startRebuild()
+    {
+        if (rebuilding)
+            return false;
+
+        rebuilding = true;
+
+        if (pending == null)
+            pending = new ArrayList<ByteBuffer>();
+
+        return true;
+    }
+
+    /**
+     * Starts the filter the scanned keys are added to. It is sized from the
+     * keys the current filter holds, before the first build there are none
+     * and it is sized for maxKeys. If more are scanned the new filter is over
+     * capacity and gets rebuilt again at the size found.
+     */
+    public void startScan(long maxKeys)
+    {
+        long expected;
+
+        synchronized (this)
+        {
+            // leave room to grow before the next rebuild
+            expected = filter == null ? maxKeys : size * 2;
+        }
+
+        scanCapacity = Math.max(minCapacity, expected);
+        scanFilter = BloomFilter.getFilter(scanCapacity, falsePositiveRate);
+        scanned = 0;
+    }
+
+    public void addScanned(ByteBuffer key)
+    {
+        scanFilter.add(key);
+        scanned++;
+    }
+
+    public synchronized void abortRebuild()
+    {
+        rebuilding = false;
+        scanFilter = null;
+
+        // until there is a filter the keys are needed by the next attempt
+        if (filter != null)
+            pending = null;
+    }
+
+    /**
+     * Replaces the filter with the scanned one plus any keys added since the
+     * rebuild started, keeping the old one for keys that weren't written in
+     * time to be scanned
+     */
+    public synchronized void finishRebuild()
+    {
+        for (ByteBuffer key : pending)
+            scanFilter.add(key);
+
+        previous = filter;
+        filter = scanFilter;
+        capacity = scanCapacity;
+        size = scanned + pending.size();
+        pending = null;
+        rebuilding = false;
+        scanFilter = null;
+    }
+
+    /** Number of keys the last rebuild scanned */
+    public long getScanned()
+    {
+        return scanned;
+    }
+}
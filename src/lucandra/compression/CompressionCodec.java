@@ -0,0 +1,43 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.compression;
+
+import java.io.IOException;
+
+/**
+ * A way of compressing stored values. The id is written with each value so
+ * it can be read back whatever the current configuration is, so ids must
+ * never be reused.
+ */
+public interface CompressionCodec
+{
+    byte id();
+
+    String name();
+
+    /**
+     * Values shorter than this are stored uncompressed
+     */
+    int minLength();
+
+    byte[] compress(byte[] input, int offset, int length) throws IOException;
+
+    byte[] decompress(byte[] input, int offset, int length) throws IOException;
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.compression;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import lucandra.CassandraUtils;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Picks the compression codec of each stored field.
+ *
+ * <pre>
+ * solandra.compression.codec.&lt;index&gt;.&lt;field&gt;
+ * solandra.compression.codec.*.&lt;field&gt;
+ * solandra.compression.codec.&lt;index&gt;
+ * solandra.compression.codec
+ * </pre>
+ *
+ * The first one set wins. Index names are the core name without the shard.
+ */
+public final class CompressionCodecs
+{
+    private static final Logger                            logger       = Logger.getLogger(CompressionCodecs.class);
+
+    private static final String                            codecPrefix  = "solandra.compression.codec";
+    private static final String                            dictPrefix   = "solandra.compression.dictionary.";
+
+    private static final int                               minLength    = Integer.valueOf(CassandraUtils.properties
+                                                                                .getProperty(
+                                                                                        "solandra.compression.min.length",
+                                                                                        "512"));
+    private static final int                               deflateLevel = Integer.valueOf(CassandraUtils.properties
+                                                                                .getProperty(
+                                                                                        "solandra.compression.deflate.level",
+                                                                                        "6"));
+
+    public static final CompressionCodec                   none         = new NoneCodec();
+    public static final CompressionCodec                   snappy       = new SnappyCodec(minLength);
+    public static final CompressionCodec                   deflate      = new DeflateCodec(minLength, deflateLevel);
+    public static final CompressionCodec                   lz4          = new LZ4Codec(minLength);
+
+    private static final Map<String, CompressionCodec>     dictionaryCodecs;
+    private static final CompressionCodec[]                decoders;
+    private static final CompressionCodec                  defaultCodec;
+
+    // index/field -> codec
+    private static final ConcurrentMap<String, CompressionCodec> fieldCodecs = new MapMaker().makeMap();
+
+    static
+    {
+        dictionaryCodecs = new HashMap<String, CompressionCodec>();
+        for (String property : CassandraUtils.properties.stringPropertyNames())
+        {
+            if (!property.startsWith(dictPrefix))
+                continue;
+
+            String name = property.substring(dictPrefix.length());
+            String path = CassandraUtils.properties.getProperty(property).trim();
+
+            try
+            {
+                byte[] dictionary = readDictionary(path);
+                dictionaryCodecs.put(name, new DictionaryDeflateCodec(name, dictionary, deflateLevel));
+
+                logger.info("Loaded " + dictionary.length + " byte compression dictionary '" + name + "' from " + path);
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException("Unable to load compression dictionary " + path, e);
+            }
+        }
+
+        decoders = new CompressionCodec[DictionaryDeflateCodec.id + 1];
+        decoders[NoneCodec.id] = none;
+        decoders[SnappyCodec.id] = snappy;
+        decoders[DeflateCodec.id] = deflate;
+        decoders[LZ4Codec.id] = lz4;
+        // inflating finds the dictionary from the stream itself
+        decoders[DictionaryDeflateCodec.id] = deflate;
+
+        String name = CassandraUtils.properties.getProperty(codecPrefix);
+        defaultCodec = name == null ? (CassandraUtils.useCompression ? snappy : none) : forName(name);
+    }
+
+    private CompressionCodecs()
+    {
+    }
+
+    public static CompressionCodec getDefault()
+    {
+        return defaultCodec;
+    }
+
+    /**
+     * @return the codec that can decompress values written with the id
+     */
+    public static CompressionCodec forId(byte id) throws IOException
+    {
+        if (id < 0 || id >= decoders.length)
+            throw new IOException("Unknown compression codec id " + id);
+
+        return decoders[id];
+    }
+
+    public static CompressionCodec forName(String name)
+    {
+        name = name.trim();
+
+        if (name.equalsIgnoreCase("none"))
+            return none;
+        if (name.equalsIgnoreCase("snappy"))
+            return snappy;
+        if (name.equalsIgnoreCase("deflate"))
+            return deflate;
+        if (name.equalsIgnoreCase("lz4"))
+            return lz4;
+
+        if (name.startsWith("dictionary:"))
+        {
+            CompressionCodec codec = dictionaryCodecs.get(name.substring("dictionary:".length()));
+            if (codec == null)
+                throw new IllegalStateException("No " + dictPrefix + name.substring("dictionary:".length())
+                        + " configured for codec " + name);
+
+            return codec;
+        }
+
+        throw new IllegalStateException("Unknown compression codec: " + name);
+    }
+
+    /**
+     * @param indexName the index, with or without its shard suffix
+     */
+    public static CompressionCodec forField(String indexName, String fieldName)
+    {
+        String key = indexName + "/" + fieldName;
+        CompressionCodec codec = fieldCodecs.get(key);
+
+        if (codec == null)
+        {
+            int shard = indexName.lastIndexOf('~');
+            String coreName = shard < 0 ? indexName : indexName.substring(0, shard);
+
+            String name = CassandraUtils.properties.getProperty(codecPrefix + "." + coreName + "." + fieldName);
+            if (name == null)
+                name = CassandraUtils.properties.getProperty(codecPrefix + ".*." + fieldName);
+            if (name == null)
+                name = CassandraUtils.properties.getProperty(codecPrefix + "." + coreName);
+
+            codec = name == null ? defaultCodec : forName(name);
+            fieldCodecs.put(key, codec);
+        }
+
+        return codec;
+    }
+
+    static byte[] trim(byte[] buf, int size)
+    {
+        return size == buf.length ? buf : Arrays.copyOf(buf, size);
+    }
+
+    // a file or a classpath resource
+    private static byte[] readDictionary(String path) throws IOException
+    {
+        InputStream in = null;
+
+        File file = new File(path);
+        if (file.exists())
+            in = new FileInputStream(file);
+        else
+            in = CompressionCodecs.class.getClassLoader().getResourceAsStream(path);
+
+        if (in == null)
+            throw new FileNotFoundException(path);
+
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+
+            if (out.size() > DictionaryDeflateCodec.maxDictionary)
+                throw new IOException("Dictionaries over " + DictionaryDeflateCodec.maxDictionary
+                        + " bytes are of no use: " + path);
+
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.compression;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib deflate: slower but a better ratio, for large text fields that are
+ * rarely read.
+ */
+public class DeflateCodec implements CompressionCodec
+{
+    public static final byte                id = 2;
+
+    private final int                       minLength;
+    private final int                       level;
+
+    // deflaters hold native buffers so they are kept per thread
+    private final ThreadLocal<Deflater>     deflater;
+    private static final ThreadLocal<Inflater> inflater = new ThreadLocal<Inflater>() {
+                                                          protected Inflater initialValue()
+                                                          {
+                                                              return new Inflater();
+                                                          }
+                                                      };
+
+    public DeflateCodec(int minLength, final int level)
+    {
+        this.minLength = minLength;
+        this.level = level;
+
+        deflater = new ThreadLocal<Deflater>() {
+            protected Deflater initialValue()
+            {
+                return new Deflater(level);
+            }
+        };
+    }
+
+    public byte id()
+    {
+        return id;
+    }
+
+    public String name()
+    {
+        return "deflate";
+    }
+
+    public int minLength()
+    {
+        return minLength;
+    }
+
+    public byte[] compress(byte[] input, int offset, int length) throws IOException
+    {
+        return deflate(deflater.get(), null, input, offset, length);
+    }
+
+    public byte[] decompress(byte[] input, int offset, int length) throws IOException
+    {
+        return inflate(input, offset, length);
+    }
+
+    protected static byte[] deflate(Deflater d, byte[] dictionary, byte[] input, int offset, int length)
+    {
+        d.reset();
+        if (dictionary != null)
+            d.setDictionary(dictionary);
+
+        d.setInput(input, offset, length);
+        d.finish();
+
+        byte[] out = new byte[Math.max(64, length / 2)];
+        int size = 0;
+        while (!d.finished())
+        {
+            if (size == out.length)
+                out = CompressionCodecs.trim(out, out.length * 2);
+
+            size += d.deflate(out, size, out.length - size);
+        }
+
+        return CompressionCodecs.trim(out, size);
+    }
+
+    protected static byte[] inflate(byte[] input, int offset, int length) throws IOException
+    {
+        Inflater i = inflater.get();
+        i.reset();
+        i.setInput(input, offset, length);
+
+        byte[] out = new byte[Math.max(64, length * 3)];
+        int size = 0;
+
+        try
+        {
+            while (!i.finished())
+            {
+                if (size == out.length)
+                    out = CompressionCodecs.trim(out, out.length * 2);
+
+                int n = i.inflate(out, size, out.length - size);
+                size += n;
+
+                if (n == 0 && i.needsDictionary())
+                {
+                    byte[] dictionary = DictionaryDeflateCodec.getDictionary(i.getAdler());
+                    if (dictionary == null)
+                        throw new IOException("Missing compression dictionary " + Integer.toHexString(i.getAdler()));
+
+                    i.setDictionary(dictionary);
+                }
+                else if (n == 0 && i.needsInput())
+                {
+                    throw new IOException("Truncated deflate value");
+                }
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException(e);
+        }
+
+        return CompressionCodecs.trim(out, size);
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.compression;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Deflate with a preset dictionary, for small values that repeat the same
+ * words (tags, urls, json...) and gain nothing from compressing alone.
+ *
+ * The zlib stream carries the dictionary's checksum, so any loaded
+ * dictionary can read the values it wrote. Dictionaries must be kept for as
+ * long as there is data compressed with them.
+ */
+public class DictionaryDeflateCodec implements CompressionCodec
+{
+    public static final byte                       id            = 4;
+
+    // what deflate can look back over
+    public static final int                        maxDictionary = 32 * 1024;
+
+    private static final ConcurrentMap<Integer, byte[]> dictionaries = new MapMaker().makeMap();
+
+    private final String                           name;
+    private final byte[]                           dictionary;
+    private final ThreadLocal<Deflater>            deflater;
+
+    public DictionaryDeflateCodec(String name, byte[] dictionary, final int level)
+    {
+        this.name = name;
+        this.dictionary = dictionary;
+
+        deflater = new ThreadLocal<Deflater>() {
+            protected Deflater initialValue()
+            {
+                return new Deflater(level);
+            }
+        };
+
+        Adler32 adler = new Adler32();
+        adler.update(dictionary);
+        dictionaries.put((int) adler.getValue(), dictionary);
+    }
+
+    public static byte[] getDictionary(int adler)
+    {
+        return dictionaries.get(adler);
+    }
+
+    public byte id()
+    {
+        return id;
+    }
+
+    public String name()
+    {
+        return "dictionary:" + name;
+    }
+
+    public int minLength()
+    {
+        return 0;
+    }
+
+    public byte[] compress(byte[] input, int offset, int length) throws IOException
+    {
+        return DeflateCodec.deflate(deflater.get(), dictionary, input, offset, length);
+    }
+
+    public byte[] decompress(byte[] input, int offset, int length) throws IOException
+    {
+        return DeflateCodec.inflate(input, offset, length);
+    }
+
+    /**
+     * Builds a dictionary from sample values: the most frequent values are
+     * put last, where deflate finds them with the shortest distances.
+     */
+    public static byte[] train(Iterable<byte[]> samples, int maxSize)
+    {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (byte[] sample : samples)
+        {
+            String key;
+            try
+            {
+                key = new String(sample, "ISO-8859-1");
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                throw new RuntimeException(e);
+            }
+
+            Integer count = counts.get(key);
+            counts.put(key, count == null ? 1 : count + 1);
+        }
+
+        List<Map.Entry<String, Integer>> byCount = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+        Collections.sort(byCount, new Comparator<Map.Entry<String, Integer>>() {
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b)
+            {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+
+        maxSize = Math.min(maxSize, maxDictionary);
+        LinkedList<String> picked = new LinkedList<String>();
+        int size = 0;
+        for (Map.Entry<String, Integer> e : byCount)
+        {
+            // values seen once are unlikely to come again
+            if (e.getValue() < 2 && !picked.isEmpty())
+                break;
+
+            if (size + e.getKey().length() > maxSize)
+                continue;
+
+            picked.addFirst(e.getKey());
+            size += e.getKey().length();
+        }
+
+        byte[] dictionary = new byte[size];
+        int pos = 0;
+        for (String value : picked)
+        {
+            for (int i = 0; i < value.length(); i++)
+                dictionary[pos++] = (byte) value.charAt(i);
+        }
+
+        return dictionary;
+    }
+
+    /**
+     * Trains a dictionary from a file holding one sample value per line
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 2)
+        {
+            System.err.println(DictionaryDeflateCodec.class.getSimpleName() + " <samples-file> <dictionary-file>");
+            System.exit(1);
+        }
+
+        List<byte[]> samples = new ArrayList<byte[]>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(args[0]), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = in.readLine()) != null)
+                samples.add(line.getBytes("UTF-8"));
+        }
+        finally
+        {
+            in.close();
+        }
+
+        byte[] dictionary = train(samples, maxDictionary);
+
+        OutputStream out = new FileOutputStream(args[1]);
+        try
+        {
+            out.write(dictionary);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        System.out.println("Wrote " + dictionary.length + " byte dictionary from " + samples.size() + " samples");
+    }
+}
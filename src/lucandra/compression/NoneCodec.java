@@ -0,0 +1,63 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.compression;
+
+/**
+ * Stores values as they are
+ */
+public class NoneCodec implements CompressionCodec
+{
+    public static final byte id = 0;
+
+    public byte id()
+    {
+        return id;
+    }
+
+    public String name()
+    {
+        return "none";
+    }
+
+    public int minLength()
+    {
+        return Integer.MAX_VALUE;
+    }
+
+    public byte[] compress(byte[] input, int offset, int length)
+    {
+        return copy(input, offset, length);
+    }
+
+    public byte[] decompress(byte[] input, int offset, int length)
+    {
+        return copy(input, offset, length);
+    }
+
+    private static byte[] copy(byte[] input, int offset, int length)
+    {
+        if (offset == 0 && length == input.length)
+            return input;
+
+        byte[] out = new byte[length];
+        System.arraycopy(input, offset, out, 0, length);
+        return out;
+    }
+}
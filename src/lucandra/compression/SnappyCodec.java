@@ -0,0 +1,70 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.compression;
+
+import java.io.IOException;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Google snappy: fast, modest ratio. What solandra.compression always used
+ */
+public class SnappyCodec implements CompressionCodec
+{
+    public static final byte id = 1;
+
+    private final int        minLength;
+
+    public SnappyCodec(int minLength)
+    {
+        this.minLength = minLength;
+    }
+
+    public byte id()
+    {
+        return id;
+    }
+
+    public String name()
+    {
+        return "snappy";
+    }
+
+    public int minLength()
+    {
+        return minLength;
+    }
+
+    public byte[] compress(byte[] input, int offset, int length) throws IOException
+    {
+        byte[] out = new byte[Snappy.maxCompressedLength(length)];
+        int size = Snappy.compress(input, offset, length, out, 0);
+
+        return CompressionCodecs.trim(out, size);
+    }
+
+    public byte[] decompress(byte[] input, int offset, int length) throws IOException
+    {
+        byte[] out = new byte[Snappy.uncompressedLength(input, offset, length)];
+        Snappy.uncompress(input, offset, length, out, 0);
+
+        return out;
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package solandra;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lucandra.CassandraUtils;
+
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.log4j.Logger;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Node wide flushing of buffered writes for all cores.
+ *
+ * A core's writes are handed to the writer threads once more than
+ * solandra.write.buffer.queue.size documents are buffered. A core flush
+ * (write everything, then invalidate the reader caches) runs at most once
+ * per cache invalidation interval. It is scheduled when a core first
+ * buffers a write, so nothing waits longer than the interval to be
+ * visible, and when a commit asks for one.
+ */
+class FlushScheduler
+{
+    private static final Logger                     logger         = Logger.getLogger(FlushScheduler.class);
+
+    static final FlushScheduler                     instance       = new FlushScheduler();
+
+    private static final int                        writeThreshold = Integer.valueOf(CassandraUtils.properties
+                                                                           .getProperty(
+                                                                                   "solandra.write.buffer.queue.size",
+                                                                                   "16"));
+
+    private final ScheduledThreadPoolExecutor       executor;
+    private final ConcurrentMap<String, CoreFlushes> cores         = new MapMaker().makeMap();
+
+    private static final class CoreFlushes
+    {
+        final String        core;
+
+        // documents written since the last hand off to the writers
+        final AtomicInteger buffered    = new AtomicInteger();
+        // when the oldest unflushed write was buffered, 0 if none
+        final AtomicLong    oldestWrite = new AtomicLong();
+        final AtomicBoolean requested   = new AtomicBoolean();
+        final AtomicBoolean scheduled   = new AtomicBoolean();
+        volatile long       lastFlush;
+
+        final AtomicLong    flushes     = new AtomicLong();
+        final AtomicLong    flushNanos  = new AtomicLong();
+        volatile long       maxFlushNanos;
+        volatile long       lastQueueAge;
+        volatile long       maxQueueAge;
+
+        CoreFlushes(String core)
+        {
+            this.core = core;
+        }
+    }
+
+    private FlushScheduler()
+    {
+        int threads = Integer.valueOf(CassandraUtils.properties.getProperty("solandra.flush.threads", "2"));
+
+        executor = new ScheduledThreadPoolExecutor(threads, new NamedThreadFactory("SolandraFlushScheduler"));
+    }
+
+    /**
+     * Notes documents buffered for the core
+     */
+    void written(String core, int docs)
+    {
+        CoreFlushes flushes = get(core);
+
+        int buffered = flushes.buffered.addAndGet(docs);
+
+        // the first write since the last flush schedules the next one
+        if (flushes.oldestWrite.compareAndSet(0, System.currentTimeMillis()))
+            schedule(flushes);
+
+        if (buffered > writeThreshold && flushes.buffered.compareAndSet(buffered, 0))
+        {
+            SolandraIndexWriter.writer.commit(core, false);
+            request(flushes);
+        }
+    }
+
+    /**
+     * Asks for the core's writes to be flushed and caches invalidated
+     */
+    void requestFlush(String core)
+    {
+        request(get(core));
+    }
+
+    private void request(CoreFlushes flushes)
+    {
+        flushes.requested.set(true);
+        schedule(flushes);
+    }
+
+    // only one flush per core is ever scheduled, it picks up whatever
+    // was written or requested until it runs
+    private void schedule(CoreFlushes flushes)
+    {
+        if (!flushes.scheduled.compareAndSet(false, true))
+            return;
+
+        long delay = flushes.lastFlush + CassandraUtils.cacheInvalidationInterval - System.currentTimeMillis();
+
+        executor.schedule(new FlushTask(flushes), Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private class FlushTask implements Runnable
+    {
+        private final CoreFlushes flushes;
+
+        FlushTask(CoreFlushes flushes)
+        {
+            this.flushes = flushes;
+        }
+
+        public void run()
+        {
+            long oldest = flushes.oldestWrite.getAndSet(0);
+            boolean requested = flushes.requested.getAndSet(false);
+
+            if (oldest != 0 || requested)
+            {
+                flushes.buffered.set(0);
+                flush(oldest);
+            }
+
+            // anything written or requested from here on schedules another
+            // flush, what came in while this one ran couldn't
+            flushes.scheduled.set(false);
+
+            if (flushes.oldestWrite.get() != 0 || flushes.requested.get())
+                schedule(flushes);
+        }
+
+        private void flush(long oldest)
+        {
+            long start = System.nanoTime();
+            try
+            {
+                SolandraIndexWriter.flushCore(flushes.core);
+            }
+            catch (Throwable t)
+            {
+                logger.error("Flush of " + flushes.core + " failed, retrying", t);
+
+                flushes.oldestWrite.compareAndSet(0, oldest == 0 ? System.currentTimeMillis() : oldest);
+                flushes.requested.set(true);
+                return;
+            }
+            finally
+            {
+                flushes.lastFlush = System.currentTimeMillis();
+            }
+
+            long took = System.nanoTime() - start;
+
+            flushes.flushes.incrementAndGet();
+            flushes.flushNanos.addAndGet(took);
+            if (took > flushes.maxFlushNanos)
+                flushes.maxFlushNanos = took;
+
+            if (oldest > 0)
+            {
+                flushes.lastQueueAge = flushes.lastFlush - oldest;
+                if (flushes.lastQueueAge > flushes.maxQueueAge)
+                    flushes.maxQueueAge = flushes.lastQueueAge;
+            }
+
+            if (logger.isDebugEnabled())
+                logger.debug("Flushed " + flushes.core + " in " + took / 1000000 + "ms");
+        }
+    }
+
+    private CoreFlushes get(String core)
+    {
+        CoreFlushes flushes = cores.get(core);
+
+        if (flushes == null)
+        {
+            flushes = new CoreFlushes(core);
+            CoreFlushes live = cores.putIfAbsent(core, flushes);
+
+            if (live != null)
+                flushes = live;
+        }
+
+        return flushes;
+    }
+
+    /**
+     * Per core flush counts, latency and how long writes waited to be flushed
+     */
+    NamedList getStatistics()
+    {
+        NamedList lst = new SimpleOrderedMap();
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, CoreFlushes> entry : cores.entrySet())
+        {
+            CoreFlushes flushes = entry.getValue();
+            long count = flushes.flushes.get();
+            long oldest = flushes.oldestWrite.get();
+
+            NamedList core = new SimpleOrderedMap();
+            core.add("flushes", count);
+            core.add("flush_latency_avg_ms", count == 0 ? 0.0f : flushes.flushNanos.get() / count / 1e6f);
+            core.add("flush_latency_max_ms", flushes.maxFlushNanos / 1e6f);
+            core.add("buffered_docs", flushes.buffered.get());
+            core.add("queue_age_ms", oldest == 0 ? 0 : now - oldest);
+            core.add("queue_age_last_flush_ms", flushes.lastQueueAge);
+            core.add("queue_age_max_ms", flushes.maxQueueAge);
+
+            lst.add(entry.getKey(), core);
+        }
+
+        return lst;
+    }
+}
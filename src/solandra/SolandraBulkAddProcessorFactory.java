@@ -0,0 +1,153 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package solandra;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.CommitUpdateCommand;
+import org.apache.solr.update.DeleteUpdateCommand;
+import org.apache.solr.update.DocumentBuilder;
+import org.apache.solr.update.MergeIndexesCommand;
+import org.apache.solr.update.RollbackUpdateCommand;
+import org.apache.solr.update.UpdateHandler;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+
+/**
+ * Collects the adds of an update request and hands them to
+ * {@link SolandraIndexWriter#addDocs(List)} in batches, so ids are reserved
+ * and documents analyzed for many documents at once.
+ *
+ * Must come before solr.RunUpdateProcessorFactory in the chain. Any other
+ * command flushes the pending adds first so request order is kept.
+ */
+public class SolandraBulkAddProcessorFactory extends UpdateRequestProcessorFactory
+{
+    private int batchSize = 1000;
+
+    public void init(NamedList args)
+    {
+        if (args != null && args.get("batchSize") != null)
+            batchSize = Integer.valueOf(args.get("batchSize").toString());
+    }
+
+    public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp,
+            UpdateRequestProcessor next)
+    {
+        UpdateHandler handler = req.getCore().getUpdateHandler();
+
+        // nothing to batch for
+        if (!(handler instanceof SolandraIndexWriter))
+            return next;
+
+        return new BulkAddProcessor((SolandraIndexWriter) handler, req.getSchema(), batchSize, next);
+    }
+
+    private static class BulkAddProcessor extends UpdateRequestProcessor
+    {
+        private final SolandraIndexWriter    writer;
+        private final IndexSchema            schema;
+        private final int                    batchSize;
+        private final List<AddUpdateCommand> pending;
+
+        public BulkAddProcessor(SolandraIndexWriter writer, IndexSchema schema, int batchSize,
+                UpdateRequestProcessor next)
+        {
+            super(next);
+
+            this.writer = writer;
+            this.schema = schema;
+            this.batchSize = batchSize;
+            this.pending = new ArrayList<AddUpdateCommand>(batchSize);
+        }
+
+        public void processAdd(AddUpdateCommand cmd) throws IOException
+        {
+            // loaders reuse the command for every document
+            AddUpdateCommand copy = new AddUpdateCommand();
+            copy.indexedId = cmd.indexedId;
+            // what solr.RunUpdateProcessorFactory would do
+            copy.doc = cmd.doc != null ? cmd.doc : DocumentBuilder.toDocument(cmd.getSolrInputDocument(), schema);
+            copy.solrDoc = cmd.solrDoc;
+            copy.allowDups = cmd.allowDups;
+            copy.overwritePending = cmd.overwritePending;
+            copy.overwriteCommitted = cmd.overwriteCommitted;
+            copy.updateTerm = cmd.updateTerm;
+            copy.commitWithin = cmd.commitWithin;
+
+            pending.add(copy);
+
+            if (pending.size() >= batchSize)
+                flush();
+        }
+
+        public void processDelete(DeleteUpdateCommand cmd) throws IOException
+        {
+            flush();
+            super.processDelete(cmd);
+        }
+
+        public void processMergeIndexes(MergeIndexesCommand cmd) throws IOException
+        {
+            flush();
+            super.processMergeIndexes(cmd);
+        }
+
+        public void processCommit(CommitUpdateCommand cmd) throws IOException
+        {
+            flush();
+            super.processCommit(cmd);
+        }
+
+        public void processRollback(RollbackUpdateCommand cmd) throws IOException
+        {
+            pending.clear();
+            super.processRollback(cmd);
+        }
+
+        public void finish() throws IOException
+        {
+            flush();
+            super.finish();
+        }
+
+        private void flush() throws IOException
+        {
+            if (pending.isEmpty())
+                return;
+
+            try
+            {
+                writer.addDocs(pending);
+            }
+            finally
+            {
+                pending.clear();
+            }
+        }
+    }
+}
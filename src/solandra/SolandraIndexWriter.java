@@ -25,14 +25,11 @@ import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicLong;
 
 import lucandra.CassandraUtils;
@@ -52,6 +49,7 @@ import org.apache.cassandra.utils.FBUtilities;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.log4j.Logger;
+import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.Query;
 import org.apache.solr.client.solrj.SolrServerException;
@@ -71,18 +69,11 @@ import org.apache.solr.update.MergeIndexesCommand;
 import org.apache.solr.update.RollbackUpdateCommand;
 import org.apache.solr.update.UpdateHandler;
 
-import com.google.common.collect.MapMaker;
-
 public class SolandraIndexWriter extends UpdateHandler
 {
-    // To manage cached reads
-    private static final ConcurrentLinkedQueue<String>        flushQueue                      = new ConcurrentLinkedQueue<String>();
-    private final ExecutorService                             flushMonitor                    = Executors
-                                                                                                      .newSingleThreadExecutor();
-
     private final static MultiThreadedHttpConnectionManager   httpConnections                 = new MultiThreadedHttpConnectionManager();
 
-    private final static lucandra.IndexWriter                 writer                          = new lucandra.IndexWriter();
+    final static lucandra.IndexWriter                         writer                          = new lucandra.IndexWriter();
     private final static Logger                               logger                          = Logger.getLogger(SolandraIndexWriter.class);
 
     // stats
@@ -101,96 +92,17 @@ public class SolandraIndexWriter extends UpdateHandler
     AtomicLong                                                numErrors                       = new AtomicLong();
     AtomicLong                                                numErrorsCumulative             = new AtomicLong();
 
-    private static final ConcurrentMap<String, AtomicInteger> bufferedWrites                  = new MapMaker()
-                                                                                                      .makeMap();
-    private static final int                                  writeTreshold                   = Integer
-                                                                                                      .valueOf(CassandraUtils.properties
-                                                                                                              .getProperty(
-                                                                                                                      "solandra.write.buffer.queue.size",
-                                                                                                                      "16"));
-
     public SolandraIndexWriter(SolrCore core)
     {
         super(core);
-
-        try
-        {
-
-            flushMonitor.execute(new Runnable() {
-
-                public void run()
-                {
-                    Map<String, Long> lastCoreFlush = new HashMap<String, Long>();
-                    Long lastBufferFlush = new Long(0);
-
-                    while (true)
-                    {
-                        String core = flushQueue.poll();
-
-                        if (core != null)
-                        {
-
-                            Long lastFlush = lastCoreFlush.get(core);
-                            if (lastFlush == null
-                                    || lastFlush <= (System.currentTimeMillis() - CassandraUtils.cacheInvalidationInterval))
-                            {
-                                try
-                                {
-                                    flush(core);
-                                }
-                                catch (IOException e)
-                                {
-                                    throw new RuntimeException(e);
-                                }
-                                lastCoreFlush.put(core, System.currentTimeMillis());
-                                if (logger.isDebugEnabled())
-                                    logger.debug("Flushed cache: " + core);
-                            }
-                        }
-                        else
-                        {
-
-                            if (lastBufferFlush < System.currentTimeMillis()
-                                    - CassandraUtils.cacheInvalidationInterval)
-                            {
-
-                                // Flush any buffered writes
-                                for (Map.Entry<String, AtomicInteger> entry : bufferedWrites.entrySet())
-                                {
-                                    if (entry.getValue().intValue() > 0)
-                                    {
-                                        writer.commit(entry.getKey(), false);
-                                        entry.getValue().set(0);
-                                    }
-                                }
-                                
-                                lastBufferFlush = System.currentTimeMillis();
-                            }
-                            else
-                            {
-                                try
-                                {
-                                    Thread.sleep(20);
-                                }
-                                catch (InterruptedException e)
-                                {
-                                   
-                                }
-                            }
-                            
-                        }
-                    }
-                }
-            });
-
-        }
-        catch (Exception e)
-        {
-            throw new RuntimeException(e);
-        }
     }
 
     public void flush(String core) throws IOException
+    {
+        flushCore(core);
+    }
+
+    static void flushCore(String core) throws IOException
     {
         // Make sure all writes are in for this core
         writer.commit(core, true);
@@ -211,6 +123,16 @@ public class SolandraIndexWriter extends UpdateHandler
     }
 
     public int addDoc(AddUpdateCommand cmd) throws IOException
+    {
+        return addDoc(cmd, true, null);
+    }
+
+    /**
+     * @param lookup
+     *            whether to look up the key's id, otherwise docId is the id
+     *            already found for it, or null if it is a new document
+     */
+    private int addDoc(AddUpdateCommand cmd, boolean lookup, Long docId) throws IOException
     {
 
         addCommands.incrementAndGet();
@@ -235,10 +157,9 @@ public class SolandraIndexWriter extends UpdateHandler
             SolandraCoreInfo coreInfo = SolandraCoreContainer.coreInfo.get();
             String key = cmd.getIndexedId(schema);
 
-            Long docId = null;
             RowMutation[] rms = null;
             
-            if (!coreInfo.bulk && !cmd.allowDups)
+            if (lookup && !coreInfo.bulk && !cmd.allowDups)
                 docId = IndexManagerService.instance.getId(coreInfo.indexName, key);
 
             boolean isUpdate = false;
@@ -303,6 +224,135 @@ public class SolandraIndexWriter extends UpdateHandler
 
     }
 
+    /**
+     * Adds a batch of documents. The keys are looked up together, new
+     * documents reserve their ids together and are analyzed in parallel,
+     * updates of existing documents are written one at a time.
+     * 
+     * @return the number of documents added
+     */
+    public int addDocs(List<AddUpdateCommand> cmds) throws IOException
+    {
+        if (cmds.isEmpty())
+            return 0;
+
+        // no duplicates allowed
+        if (core.getSchema().getUniqueKeyField() == null || idField == null)
+            throw new IOException("Solandra requires a unique field");
+
+        SolandraCoreInfo coreInfo = SolandraCoreContainer.coreInfo.get();
+
+        // the last add of a key within the batch wins
+        Map<String, AddUpdateCommand> batch = new LinkedHashMap<String, AddUpdateCommand>(cmds.size());
+        int added = 0;
+
+        List<String> cmdKeys = new ArrayList<String>(cmds.size());
+        List<String> lookups = new ArrayList<String>(cmds.size());
+
+        for (AddUpdateCommand cmd : cmds)
+        {
+            String key = cmd.getIndexedId(schema);
+
+            cmdKeys.add(key);
+
+            if (!coreInfo.bulk && !cmd.allowDups)
+                lookups.add(key);
+        }
+
+        // one round of parallel reads finds the existing documents
+        Map<String, Long> existing = lookups.isEmpty() ? Collections.<String, Long> emptyMap()
+                : IndexManagerService.instance.getIds(coreInfo.indexName, lookups);
+
+        for (int i = 0; i < cmds.size(); i++)
+        {
+            AddUpdateCommand cmd = cmds.get(i);
+            String key = cmdKeys.get(i);
+
+            Long docId = cmd.allowDups ? null : existing.get(key);
+
+            if (docId != null)
+            {
+                added += addDoc(cmd, false, docId);
+                continue;
+            }
+
+            batch.remove(key);
+            batch.put(key, cmd);
+        }
+
+        if (batch.isEmpty())
+            return added;
+
+        List<AddUpdateCommand> newDocs = new ArrayList<AddUpdateCommand>(batch.values());
+        List<String> keys = new ArrayList<String>(batch.keySet());
+
+        addCommands.addAndGet(newDocs.size());
+        addCommandsCumulative.addAndGet(newDocs.size());
+
+        boolean success = false;
+
+        try
+        {
+            Map<Integer, List<RowMutation>> idMutations = new TreeMap<Integer, List<RowMutation>>();
+            long[] docIds = IndexManagerService.instance.getNextIds(coreInfo.indexName, keys, idMutations);
+
+            // group by shard
+            Map<Integer, Pair<List<Document>, List<Integer>>> shards = new TreeMap<Integer, Pair<List<Document>, List<Integer>>>();
+
+            for (int i = 0; i < docIds.length; i++)
+            {
+                int shard = CassandraIndexManager.getShardFromDocId(docIds[i]);
+
+                Pair<List<Document>, List<Integer>> shardDocs = shards.get(shard);
+                if (shardDocs == null)
+                {
+                    shardDocs = new Pair<List<Document>, List<Integer>>(new ArrayList<Document>(),
+                            new ArrayList<Integer>());
+                    shards.put(shard, shardDocs);
+                }
+
+                shardDocs.left.add(newDocs.get(i).getLuceneDocument(schema));
+                shardDocs.right.add(CassandraIndexManager.getShardedDocId(docIds[i]));
+            }
+
+            for (Map.Entry<Integer, Pair<List<Document>, List<Integer>>> entry : shards.entrySet())
+            {
+                String indexName = coreInfo.indexName + "~" + entry.getKey();
+                List<Integer> shardedIds = entry.getValue().right;
+
+                int[] docNumbers = new int[shardedIds.size()];
+                for (int i = 0; i < docNumbers.length; i++)
+                    docNumbers[i] = shardedIds.get(i);
+
+                if (logger.isDebugEnabled())
+                    logger.debug("Adding " + docNumbers.length + " docs to " + indexName);
+
+                // each shard is queued and flushed on its own, so its id
+                // bookkeeping goes in with its documents
+                List<RowMutation> rms = idMutations.get(entry.getKey());
+
+                writer.addDocuments(indexName, entry.getValue().left, schema.getAnalyzer(), docNumbers, false,
+                        rms == null ? null : rms.toArray(new RowMutation[] {}));
+
+                // Notify readers
+                tryCommit(indexName, docNumbers.length);
+            }
+
+            success = true;
+            added += newDocs.size();
+        }
+        finally
+        {
+            if (!success)
+            {
+                numErrors.incrementAndGet();
+                numErrorsCumulative.incrementAndGet();
+            }
+        }
+
+        return added;
+    }
+
     public void close() throws IOException
     {
     }
@@ -331,7 +381,7 @@ public class SolandraIndexWriter extends UpdateHandler
         if (blocked)
             flush(indexName);
         else
-            SolandraIndexWriter.flushQueue.add(indexName);
+            FlushScheduler.instance.requestFlush(indexName);
     }
 
     public void delete(DeleteUpdateCommand cmd) throws IOException
@@ -573,6 +623,30 @@ public class SolandraIndexWriter extends UpdateHandler
         lst.add("cumulative_deletesById", deleteByIdCommandsCumulative.get());
         lst.add("cumulative_deletesByQuery", deleteByQueryCommandsCumulative.get());
         lst.add("cumulative_errors", numErrorsCumulative.get());
+
+        long queued = lucandra.IndexWriter.getMutationsQueued();
+        long written = lucandra.IndexWriter.getMutationsWritten();
+        lst.add("mutations_queued", queued);
+        lst.add("mutations_written", written);
+        lst.add("mutation_merge_ratio", written == 0 ? 0.0f : (float) queued / written);
+        lst.add("write_queue_depth", lucandra.IndexWriter.getQueuedMutations());
+        lst.add("write_queue_bytes", lucandra.IndexWriter.getQueuedBytes());
+        lst.add("write_journal_bytes", lucandra.IndexWriter.getJournalBytes());
+        lst.add("term_list_writes_skipped", lucandra.IndexWriter.getTermListWritesSkipped());
+        lst.add("updates_diffed", lucandra.IndexWriter.getDiffUpdates());
+        lst.add("updates_full", lucandra.IndexWriter.getFullUpdates());
+        lst.add("update_fields_unchanged", lucandra.IndexWriter.getUnchangedFieldsSkipped());
+        lst.add("key_filter_checks", IndexManagerService.instance.getKeyFilterChecks());
+        lst.add("key_filter_skipped_reads", IndexManagerService.instance.getKeyFilterSkippedReads());
+        lst.add("key_filter_false_positives", IndexManagerService.instance.getKeyFilterFalsePositives());
+        lst.add("id_reserves_inline", IndexManagerService.instance.getInlineReserves());
+        lst.add("id_reserves_ahead", IndexManagerService.instance.getStandbyReservesUsed());
+        lst.add("term_cache_hits", lucandra.TermCache.getHits());
+        lst.add("term_cache_misses", lucandra.TermCache.getMisses());
+        lst.add("term_cache_evictions", lucandra.TermCache.getEvictions());
+        lst.add("term_cache_bytes", lucandra.TermCache.getTotalBytes());
+        lst.add("term_cache_max_bytes", lucandra.TermCache.getMaxBytes());
+        lst.add("core_flushes", FlushScheduler.instance.getStatistics());
         return lst;
     }
 
@@ -583,27 +657,11 @@ public class SolandraIndexWriter extends UpdateHandler
 
     private void tryCommit(String indexName) throws IOException
     {
-        AtomicInteger times = bufferedWrites.get(indexName);
-
-        if (times == null)
-        {
-            synchronized (indexName.intern())
-            {
-                times = bufferedWrites.get(indexName);
-                if (times == null)
-                {
-                    times = new AtomicInteger(0);
-                    bufferedWrites.putIfAbsent(indexName, times);
-                }
-            }
-        }
-
-        int t = times.incrementAndGet();
+        tryCommit(indexName, 1);
+    }
 
-        if (t > writeTreshold)
-        {
-            commit(indexName, false);
-            times.set(0);
-        }
+    private void tryCommit(String indexName, int docs) throws IOException
+    {
+        FlushScheduler.instance.written(indexName, docs);
     }
 }
@@ -0,0 +1,242 @@
+/**
+ * Copyright T Jake Luciani
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.IColumn;
+import org.junit.Test;
+
+public class LucandraTermInfoTests
+{
+    static final int[] positions = { 0, 3, 200, 201, 70000 };
+    // the third token starts before the second, as synonyms can
+    static final int[] offsets   = { 0, 3, 10, 15, 9, 12, 500, 505, 400000, 400010 };
+
+    @Test
+    public void testRoundTrip()
+    {
+        assertRoundTrip(new LucandraTermInfo(1, positions.length, positions, offsets, (byte) 7));
+        assertRoundTrip(new LucandraTermInfo(1, positions.length, positions, offsets, null));
+        assertRoundTrip(new LucandraTermInfo(1, positions.length, positions, null, (byte) -1));
+        assertRoundTrip(new LucandraTermInfo(1, positions.length, null, offsets, null));
+        assertRoundTrip(new LucandraTermInfo(1, 3, null, null, (byte) 7));
+        assertRoundTrip(new LucandraTermInfo(1, 3, null, null, null));
+        assertRoundTrip(new LucandraTermInfo(1, 0, null, null, null));
+        assertRoundTrip(new LucandraTermInfo(1, 1, new int[] { Integer.MAX_VALUE }, null, null));
+    }
+
+    @Test
+    public void testDocOnly()
+    {
+        LucandraTermInfo info = new LucandraTermInfo(9, 1, null, null, null);
+
+        ByteBuffer bytes = info.serialize();
+        assertEquals(1, bytes.remaining());
+        assertEquals(1, info.serializedSize());
+
+        LucandraTermInfo decoded = new LucandraTermInfo(9, bytes);
+        assertEquals(1, decoded.freq);
+        assertFalse(decoded.hasNorm);
+        assertFalse(decoded.hasPositions);
+        assertFalse(decoded.hasOffsets);
+
+        // anything more than the doc needs the full form
+        assertTrue(new LucandraTermInfo(9, 1, null, null, (byte) 1).serializedSize() > 1);
+        assertTrue(new LucandraTermInfo(9, 1, new int[] { 0 }, null, null).serializedSize() > 1);
+    }
+
+    @Test
+    public void testDeltaIsSmaller()
+    {
+        LucandraTermInfo info = new LucandraTermInfo(1, positions.length, positions, offsets, (byte) 7);
+
+        assertTrue(info.serialize().remaining() < oldFormat(positions, offsets, (byte) 7).remaining());
+    }
+
+    @Test
+    public void testOldFormat()
+    {
+        LucandraTermInfo decoded = new LucandraTermInfo(4, oldFormat(positions, offsets, (byte) 7));
+
+        assertEquals(4, decoded.docId);
+        assertEquals(positions.length, decoded.freq);
+        assertEquals(Byte.valueOf((byte) 7), decoded.norm);
+        assertArrayEquals(positions, decoded.positions);
+        assertArrayEquals(offsets, decoded.offsets);
+
+        decoded = new LucandraTermInfo(4, oldFormat(positions, null, null));
+        assertFalse(decoded.hasNorm);
+        assertFalse(decoded.hasOffsets);
+        assertArrayEquals(positions, decoded.positions);
+    }
+
+    @Test
+    public void testOldMap()
+    {
+        Map<ByteBuffer, List<Number>> data = new HashMap<ByteBuffer, List<Number>>();
+        data.put(CassandraUtils.termFrequencyKeyBytes, Arrays.<Number> asList(positions.length));
+        data.put(CassandraUtils.normsKeyBytes, Arrays.<Number> asList((byte) 7));
+
+        List<Number> p = new ArrayList<Number>();
+        for (int i : positions)
+            p.add(i);
+        data.put(CassandraUtils.positionVectorKeyBytes, p);
+
+        List<Number> o = new ArrayList<Number>();
+        for (int i : offsets)
+            o.add(i);
+        data.put(CassandraUtils.offsetVectorKeyBytes, o);
+
+        LucandraTermInfo info = new LucandraTermInfo(2, data);
+        assertEquals(positions.length, info.freq);
+        assertEquals(Byte.valueOf((byte) 7), info.norm);
+        assertArrayEquals(positions, info.positions);
+        assertArrayEquals(offsets, info.offsets);
+
+        assertRoundTrip(info);
+    }
+
+    @Test
+    public void testPostings()
+    {
+        // columns of every format can be mixed in one term
+        List<IColumn> columns = new ArrayList<IColumn>();
+        columns.add(column(1, new LucandraTermInfo(1, positions.length, positions, offsets, (byte) 7).serialize()));
+        columns.add(column(2, oldFormat(positions, offsets, (byte) 5)));
+        columns.add(column(3, new LucandraTermInfo(3, 1, null, null, null).serialize()));
+        columns.add(column(200, new LucandraTermInfo(200, 2, new int[] { 4, 4000 }, null, null).serialize()));
+
+        TermPostings postings = TermPostings.decode(columns);
+
+        assertEquals(4, postings.size());
+        assertArrayEquals(new int[] { 1, 2, 3, 200 }, postings.docIds);
+        assertArrayEquals(new int[] { positions.length, positions.length, 1, 2 }, postings.freqs);
+
+        assertArrayEquals(positions, positions(postings, 0));
+        assertArrayEquals(positions, positions(postings, 1));
+        assertArrayEquals(new int[] {}, positions(postings, 2));
+        assertArrayEquals(new int[] { 4, 4000 }, positions(postings, 3));
+
+        assertTrue(postings.hasNorm[0]);
+        assertEquals(7, postings.norms[0]);
+        assertTrue(postings.hasNorm[1]);
+        assertEquals(5, postings.norms[1]);
+        assertFalse(postings.hasNorm[2]);
+        assertFalse(postings.hasNorm[3]);
+    }
+
+    @Test
+    public void testPostingsWithoutPositions()
+    {
+        List<IColumn> columns = new ArrayList<IColumn>();
+        columns.add(column(5, new LucandraTermInfo(5, 1, null, null, null).serialize()));
+        columns.add(column(6, new LucandraTermInfo(6, 3, null, null, null).serialize()));
+
+        TermPostings postings = TermPostings.decode(columns);
+
+        assertArrayEquals(new int[] { 1, 3 }, postings.freqs);
+        assertNull(postings.positions);
+        assertNull(postings.norms);
+        assertEquals(0, postings.positionStart(1));
+        assertEquals(0, postings.positionEnd(1));
+    }
+
+    private static void assertRoundTrip(LucandraTermInfo info)
+    {
+        ByteBuffer bytes = info.serialize();
+        assertEquals(info.serializedSize(), bytes.remaining());
+
+        int position = bytes.position();
+        LucandraTermInfo decoded = new LucandraTermInfo(info.docId, bytes);
+        assertEquals(position, bytes.position());
+
+        assertEquals(info.docId, decoded.docId);
+        assertEquals(info.freq, decoded.freq);
+        assertEquals(info.hasNorm, decoded.hasNorm);
+        assertEquals(info.norm, decoded.norm);
+        assertEquals(info.hasPositions, decoded.hasPositions);
+        assertArrayEquals(info.positions, decoded.positions);
+        assertEquals(info.hasOffsets, decoded.hasOffsets);
+        assertArrayEquals(info.offsets, decoded.offsets);
+    }
+
+    // absolute positions and offsets, as written before they were deltas
+    private static ByteBuffer oldFormat(int[] positions, int[] offsets, Byte norm)
+    {
+        ByteBuffer bytes = ByteBuffer.allocate(1024);
+
+        byte flags = 2;
+        if (norm != null)
+            flags |= 1;
+        if (offsets != null)
+            flags |= 4;
+
+        bytes.put(flags);
+        CassandraUtils.writeVInt(positions.length, bytes);
+
+        if (norm != null)
+            bytes.put(norm);
+
+        for (int p : positions)
+            CassandraUtils.writeVInt(p, bytes);
+
+        if (offsets != null)
+        {
+            CassandraUtils.writeVInt(offsets.length, bytes);
+            for (int o : offsets)
+                CassandraUtils.writeVInt(o, bytes);
+        }
+
+        bytes.flip();
+
+        return bytes;
+    }
+
+    private static IColumn column(int docId, ByteBuffer value)
+    {
+        return new Column(ByteBuffer.wrap(CassandraUtils.writeVInt(docId)), value, System.currentTimeMillis());
+    }
+
+    static int[] positions(TermPostings postings, int index)
+    {
+        List<Integer> decoded = new ArrayList<Integer>();
+
+        int position = 0;
+        for (int p = postings.positionStart(index); p < postings.positionEnd(index);)
+        {
+            int gap = postings.positionGap(p);
+            p += CassandraUtils.vIntSize(gap);
+
+            position += gap;
+            decoded.add(position);
+        }
+
+        int[] result = new int[decoded.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = decoded.get(i);
+
+        return result;
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright T Jake Luciani
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.Row;
+import org.apache.cassandra.db.RowMutation;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MutationJournalTests
+{
+    static String indexName = "journal" + System.nanoTime();
+
+    @BeforeClass
+    public static void setUpBeforeClass()
+    {
+        try
+        {
+            CassandraUtils.startupServer();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        // keep away from the segments of anything else
+        File dir = new File(System.getProperty("java.io.tmpdir"), indexName);
+        CassandraUtils.properties.setProperty("solandra.journal.directory", dir.getAbsolutePath());
+    }
+
+    @Before
+    public void setUp()
+    {
+        // nothing from an earlier test is left to replay
+        MutationJournal.replay();
+        assertEquals(0, segments().length);
+    }
+
+    @Test
+    public void testDiscard() throws IOException
+    {
+        MutationJournal journal = new MutationJournal(indexName);
+        assertEquals(0, journal.bytes());
+
+        journal.append(mutation("discard", "a", "1"));
+        long first = journal.position();
+        long firstBytes = journal.bytes();
+        assertTrue(firstBytes > 0);
+
+        journal.append(mutation("discard", "b", "2"));
+        assertTrue(journal.position() > first);
+        long total = journal.bytes();
+        assertTrue(total > firstBytes);
+
+        journal.discard(first);
+        assertEquals(total - firstBytes, journal.bytes());
+
+        // discarding an old position again changes nothing
+        long bytes = journal.bytes();
+        journal.discard(first);
+        assertEquals(bytes, journal.bytes());
+
+        journal.discard(journal.position());
+        assertEquals(0, journal.bytes());
+
+        // everything was written, there is nothing to replay
+        assertEquals(0, MutationJournal.replay());
+    }
+
+    @Test
+    public void testReplay() throws IOException
+    {
+        MutationJournal journal = new MutationJournal(indexName);
+
+        journal.append(mutation("replay", "a", "1"));
+        journal.append(mutation("replay", "b", "2"));
+        journal.append(mutation("replay", "c", "3"));
+
+        assertEquals(1, segments().length);
+
+        assertEquals(3, MutationJournal.replay());
+        assertEquals(0, segments().length);
+
+        assertEquals("1", read("replay", "a"));
+        assertEquals("2", read("replay", "b"));
+        assertEquals("3", read("replay", "c"));
+    }
+
+    @Test
+    public void testReplayTornRecord() throws IOException
+    {
+        MutationJournal journal = new MutationJournal(indexName);
+
+        journal.append(mutation("torn", "a", "1"));
+        long written = journal.position();
+
+        journal.append(mutation("torn", "b", "2"));
+        long torn = journal.position();
+
+        journal.append(mutation("torn", "c", "3"));
+
+        // the first record made it to cassandra, the last one only partly
+        // made it to disk
+        journal.discard(written);
+
+        File[] segments = segments();
+        assertEquals(1, segments.length);
+
+        RandomAccessFile raf = new RandomAccessFile(segments[0], "rw");
+        try
+        {
+            // a byte in the middle of the record's mutations
+            long offset = (int) torn + 8 + 6;
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0xff);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        assertEquals(1, MutationJournal.replay());
+        assertEquals(0, segments().length);
+
+        assertNull(read("torn", "a"));
+        assertEquals("2", read("torn", "b"));
+        assertNull(read("torn", "c"));
+    }
+
+    @Test
+    public void testReplayNewSegments() throws IOException
+    {
+        // a segment left by a journal that was never discarded, and one from
+        // a later run of the same index
+        MutationJournal journal = new MutationJournal(indexName);
+        journal.append(mutation("segments", "a", "1"));
+
+        journal = new MutationJournal(indexName);
+        journal.append(mutation("segments", "a", "2"));
+
+        assertEquals(2, segments().length);
+
+        assertEquals(2, MutationJournal.replay());
+        assertEquals(0, segments().length);
+
+        // replayed oldest first
+        assertEquals("2", read("segments", "a"));
+    }
+
+    private static List<RowMutation> mutation(String key, String column, String value)
+    {
+        Map<ByteBuffer, RowMutation> mutations = new HashMap<ByteBuffer, RowMutation>();
+
+        CassandraUtils.addMutations(mutations, CassandraUtils.docColumnFamily, ByteBufferUtil.bytes(column),
+                rowKey(key), ByteBufferUtil.bytes(value));
+
+        return new ArrayList<RowMutation>(mutations.values());
+    }
+
+    private static String read(String key, String column) throws IOException
+    {
+        ByteBuffer name = ByteBufferUtil.bytes(column);
+
+        List<Row> rows = CassandraUtils.robustRead(rowKey(key), new QueryPath(CassandraUtils.docColumnFamily),
+                Arrays.asList(name), CassandraUtils.consistency);
+
+        if (rows.isEmpty() || rows.get(0).cf == null)
+            return null;
+
+        IColumn col = rows.get(0).cf.getColumn(name);
+        if (col == null || col.isMarkedForDelete())
+            return null;
+
+        return ByteBufferUtil.string(col.value());
+    }
+
+    private static ByteBuffer rowKey(String key)
+    {
+        return CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, key.getBytes());
+    }
+
+    private static File[] segments()
+    {
+        File[] files = MutationJournal.getDirectory().listFiles();
+
+        return files == null ? new File[] {} : files;
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright T Jake Luciani
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import lucandra.compression.CompressionCodecs;
+import lucandra.compression.DeflateCodec;
+import lucandra.compression.NoneCodec;
+import lucandra.serializers.thrift.DocumentMetadata;
+import lucandra.serializers.thrift.ThriftTerm;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.NumericField;
+import org.junit.Test;
+
+public class StoredFieldCodecTests
+{
+    @Test
+    public void testStrings() throws IOException
+    {
+        List<Fieldable> values = new ArrayList<Fieldable>();
+        values.add(new Field("f", "hello world", Store.YES, Index.ANALYZED));
+        values.add(new Field("f", "", Store.YES, Index.ANALYZED));
+        values.add(new Field("f", "caf\u00e9 \u6771\u4eac", Store.YES, Index.ANALYZED));
+
+        List<Fieldable> decoded = roundTrip(values);
+
+        assertEquals(3, decoded.size());
+        assertEquals("hello world", decoded.get(0).stringValue());
+        assertEquals("", decoded.get(1).stringValue());
+        assertEquals("caf\u00e9 \u6771\u4eac", decoded.get(2).stringValue());
+        assertFalse(decoded.get(0).isBinary());
+    }
+
+    @Test
+    public void testBinary() throws IOException
+    {
+        byte[] bytes = new byte[] { 0, 1, -1, 127, -128, 'L', 'S' };
+
+        // only part of the array is the value
+        byte[] padded = new byte[bytes.length + 4];
+        System.arraycopy(bytes, 0, padded, 2, bytes.length);
+
+        List<Fieldable> values = new ArrayList<Fieldable>();
+        values.add(new Field("f", bytes));
+        values.add(new Field("f", padded, 2, bytes.length));
+
+        List<Fieldable> decoded = roundTrip(values);
+
+        assertEquals(2, decoded.size());
+        for (Fieldable f : decoded)
+        {
+            assertTrue(f.isBinary());
+            int offset = f.getBinaryOffset();
+            assertTrue(Arrays.equals(bytes, Arrays.copyOfRange(f.getBinaryValue(), offset, offset
+                    + f.getBinaryLength())));
+        }
+    }
+
+    @Test
+    public void testNumbers() throws IOException
+    {
+        List<Fieldable> values = new ArrayList<Fieldable>();
+        values.add(new NumericField("f").setIntValue(0));
+        values.add(new NumericField("f").setIntValue(-1));
+        values.add(new NumericField("f").setIntValue(Integer.MIN_VALUE));
+        values.add(new NumericField("f").setIntValue(Integer.MAX_VALUE));
+        values.add(new NumericField("f").setLongValue(-300L));
+        values.add(new NumericField("f").setLongValue(Long.MIN_VALUE));
+        values.add(new NumericField("f").setLongValue(Long.MAX_VALUE));
+        values.add(new NumericField("f").setFloatValue(-1.5f));
+        values.add(new NumericField("f").setFloatValue(Float.NaN));
+        values.add(new NumericField("f").setDoubleValue(Math.PI));
+        values.add(new NumericField("f").setDoubleValue(Double.NEGATIVE_INFINITY));
+
+        List<Fieldable> decoded = roundTrip(values);
+
+        assertEquals(values.size(), decoded.size());
+        for (int i = 0; i < values.size(); i++)
+        {
+            NumericField expected = (NumericField) values.get(i);
+            NumericField actual = (NumericField) decoded.get(i);
+
+            assertEquals(expected.getDataType(), actual.getDataType());
+            assertEquals(expected.getNumericValue(), actual.getNumericValue());
+        }
+    }
+
+    @Test
+    public void testMixed() throws IOException
+    {
+        List<Fieldable> values = new ArrayList<Fieldable>();
+        values.add(new Field("f", "text", Store.YES, Index.ANALYZED));
+        values.add(new NumericField("f").setLongValue(42L));
+        values.add(new Field("f", new byte[] { 1, 2, 3 }));
+
+        List<Fieldable> decoded = roundTrip(values);
+
+        assertEquals("text", decoded.get(0).stringValue());
+        assertEquals(42L, ((NumericField) decoded.get(1)).getNumericValue());
+        assertEquals(3, decoded.get(2).getBinaryLength());
+    }
+
+    @Test
+    public void testCompression() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            sb.append("the quick brown fox ");
+
+        List<Fieldable> values = new ArrayList<Fieldable>();
+        values.add(new Field("f", sb.toString(), Store.YES, Index.ANALYZED));
+
+        ByteBuffer plain = StoredFieldCodec.encode(values, CompressionCodecs.none);
+        ByteBuffer compressed = StoredFieldCodec.encode(values, CompressionCodecs.deflate);
+
+        assertEquals(NoneCodec.id, plain.get(plain.position() + 4));
+        assertEquals(DeflateCodec.id, compressed.get(compressed.position() + 4));
+        assertTrue(compressed.remaining() < plain.remaining());
+
+        assertEquals(sb.toString(), StoredFieldCodec.decode("f", plain).get(0).stringValue());
+        assertEquals(sb.toString(), StoredFieldCodec.decode("f", compressed).get(0).stringValue());
+
+        // values under the codec's minimum length are left alone
+        values.clear();
+        values.add(new Field("f", "short", Store.YES, Index.ANALYZED));
+
+        ByteBuffer small = StoredFieldCodec.encode(values, CompressionCodecs.deflate);
+        assertEquals(NoneCodec.id, small.get(small.position() + 4));
+        assertEquals("short", StoredFieldCodec.decode("f", small).get(0).stringValue());
+    }
+
+    @Test
+    public void testOldFormat() throws IOException
+    {
+        List<ThriftTerm> terms = new ArrayList<ThriftTerm>();
+        terms.add(new ThriftTerm("f").setText("old text".getBytes("UTF-8")).setIs_binary(false));
+        terms.add(new ThriftTerm("f").setText(new byte[] { 9, 8, 7 }).setIs_binary(true));
+        terms.add(new ThriftTerm("f").setIntVal(-7));
+        terms.add(new ThriftTerm("f").setLongVal(1L << 40));
+        terms.add(new ThriftTerm("f").setFloatVal(2.5));
+        terms.add(new ThriftTerm("f").setDoubleVal(-0.25));
+
+        ByteBuffer old = IndexWriter.toBytesUsingThrift(new DocumentMetadata(terms));
+
+        assertFalse(StoredFieldCodec.isEncoded(old));
+
+        List<Fieldable> decoded = StoredFieldCodec.decode("f", old);
+
+        assertEquals(6, decoded.size());
+        assertEquals("old text", decoded.get(0).stringValue());
+        assertTrue(decoded.get(1).isBinary());
+        assertEquals(3, decoded.get(1).getBinaryLength());
+        assertEquals(-7, ((NumericField) decoded.get(2)).getNumericValue());
+        assertEquals(1L << 40, ((NumericField) decoded.get(3)).getNumericValue());
+        assertEquals(2.5f, ((NumericField) decoded.get(4)).getNumericValue());
+        assertEquals(-0.25, ((NumericField) decoded.get(5)).getNumericValue());
+    }
+
+    @Test
+    public void testDecodeLeavesColumnUntouched() throws IOException
+    {
+        List<Fieldable> values = new ArrayList<Fieldable>();
+        values.add(new Field("f", "value", Store.YES, Index.ANALYZED));
+
+        // the column is a slice of a bigger buffer, as read from cassandra
+        ByteBuffer encoded = StoredFieldCodec.encode(values, CompressionCodecs.none);
+        ByteBuffer column = ByteBuffer.allocate(encoded.remaining() + 3);
+        column.position(3);
+        column.put(encoded.duplicate());
+        column.position(3);
+
+        assertTrue(StoredFieldCodec.isEncoded(column));
+        assertEquals("value", StoredFieldCodec.decode("f", column).get(0).stringValue());
+        assertEquals(3, column.position());
+    }
+
+    private static List<Fieldable> roundTrip(List<Fieldable> values) throws IOException
+    {
+        ByteBuffer encoded = StoredFieldCodec.encode(values, CompressionCodecs.none);
+
+        assertTrue(StoredFieldCodec.isEncoded(encoded));
+
+        return StoredFieldCodec.decode("f", encoded);
+    }
+}
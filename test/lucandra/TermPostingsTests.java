@@ -0,0 +1,198 @@
+/**
+ * Copyright T Jake Luciani
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.IColumn;
+import org.junit.Test;
+
+public class TermPostingsTests
+{
+    @Test
+    public void testEmpty()
+    {
+        TermPostings postings = postings();
+
+        assertEquals(0, postings.size());
+        assertNull(postings.positions);
+        assertNull(postings.norms);
+        assertEquals(0, TermPostings.unloaded.size());
+    }
+
+    @Test
+    public void testPositionBounds()
+    {
+        List<IColumn> columns = new ArrayList<IColumn>();
+        columns.add(column(new LucandraTermInfo(1, 2, new int[] { 1, 1000 }, null, null)));
+        // a doc of a field without positions between two with them
+        columns.add(column(new LucandraTermInfo(2, 4, null, null, null)));
+        columns.add(column(new LucandraTermInfo(3, 1, new int[] { 300000 }, null, null)));
+
+        TermPostings postings = TermPostings.decode(columns);
+
+        assertEquals(postings.positionEnd(0), postings.positionStart(1));
+        assertEquals(postings.positionStart(1), postings.positionEnd(1));
+        assertEquals(postings.positionEnd(1), postings.positionStart(2));
+        assertEquals(postings.positions.length, postings.positionEnd(2));
+
+        assertArrayEquals(new int[] { 1, 1000 }, LucandraTermInfoTests.positions(postings, 0));
+        assertArrayEquals(new int[] {}, LucandraTermInfoTests.positions(postings, 1));
+        assertArrayEquals(new int[] { 300000 }, LucandraTermInfoTests.positions(postings, 2));
+    }
+
+    @Test
+    public void testWeight()
+    {
+        int[] docs = new int[100];
+        for (int i = 0; i < docs.length; i++)
+            docs[i] = i;
+
+        TermPostings small = postings(1);
+        TermPostings big = postings(docs);
+
+        assertTrue(small.weight() > 0);
+        // at least the doc ids and freqs of every doc
+        assertTrue(big.weight() - small.weight() >= 2 * 4 * 99);
+    }
+
+    @Test
+    public void testAdvanceEdges()
+    {
+        TermPostings empty = postings();
+        assertEquals(0, empty.advance(0, 0));
+        assertEquals(0, empty.advance(0, Integer.MAX_VALUE));
+
+        TermPostings postings = postings(2, 4, 8, 9, 100);
+
+        // already there, or before the current doc
+        assertEquals(0, postings.advance(0, 2));
+        assertEquals(0, postings.advance(0, Integer.MIN_VALUE));
+        assertEquals(3, postings.advance(3, 5));
+
+        // exact hits and the next doc after a gap
+        assertEquals(1, postings.advance(0, 4));
+        assertEquals(2, postings.advance(0, 5));
+        assertEquals(4, postings.advance(0, 100));
+        assertEquals(4, postings.advance(1, 10));
+
+        // past the last doc, or starting there
+        assertEquals(5, postings.advance(0, 101));
+        assertEquals(5, postings.advance(4, Integer.MAX_VALUE));
+        assertEquals(5, postings.advance(5, 0));
+
+        TermPostings one = postings(7);
+        assertEquals(0, one.advance(0, 7));
+        assertEquals(1, one.advance(0, 8));
+    }
+
+    @Test
+    public void testAdvanceAgainstScan()
+    {
+        Random random = new Random(42);
+
+        for (int size : new int[] { 1, 2, 3, 7, 8, 9, 31, 64, 65, 1000 })
+        {
+            int[] docs = new int[size];
+            int doc = random.nextInt(3);
+            for (int i = 0; i < size; i++)
+            {
+                docs[i] = doc;
+                // runs of neighbours and long jumps
+                doc += random.nextBoolean() ? 1 : 1 + random.nextInt(200);
+            }
+
+            TermPostings postings = postings(docs);
+
+            for (int from = 0; from <= size; from++)
+            {
+                for (int t = 0; t < 20; t++)
+                {
+                    int target = random.nextInt(doc + 10);
+
+                    assertEquals("from " + from + " to " + target, scan(docs, from, target), postings.advance(from,
+                            target));
+                }
+
+                if (from < size)
+                {
+                    assertEquals(from, postings.advance(from, docs[from]));
+                    assertEquals(size, postings.advance(from, docs[size - 1] + 1));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAdvanceGallops()
+    {
+        int[] docs = new int[100000];
+        for (int i = 0; i < docs.length; i++)
+            docs[i] = i * 2;
+
+        TermPostings postings = postings(docs);
+
+        // steps that land on, just before and just after a gallop bound
+        for (int skip : new int[] { 1, 2, 3, 4, 5, 15, 16, 17, 1023, 1024, 1025, 65536, 99999 })
+        {
+            assertEquals(skip, postings.advance(0, docs[skip]));
+            assertEquals(skip, postings.advance(0, docs[skip] - 1));
+        }
+
+        // walking the whole list one target at a time
+        int index = 0;
+        for (int target = 0; index < docs.length; target += 777)
+        {
+            index = postings.advance(index, target);
+            assertEquals(scan(docs, 0, target), index);
+        }
+    }
+
+    // the first index at or after from whose doc is at least target
+    private static int scan(int[] docs, int from, int target)
+    {
+        int i = from;
+        while (i < docs.length && docs[i] < target)
+            i++;
+
+        return i;
+    }
+
+    static TermPostings postings(int... docIds)
+    {
+        List<IColumn> columns = new ArrayList<IColumn>();
+        for (int docId : docIds)
+            columns.add(column(new LucandraTermInfo(docId, 1, null, null, null)));
+
+        return TermPostings.decode(columns);
+    }
+
+    private static IColumn column(LucandraTermInfo info)
+    {
+        return new Column(ByteBuffer.wrap(CassandraUtils.writeVInt(info.docId)), info.serialize(), System
+                .currentTimeMillis());
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import lucandra.CassandraUtils;
+import lucandra.LucandraTermInfo;
+import lucandra.TermPostings;
+
+import org.apache.cassandra.db.Column;
+import org.apache.cassandra.db.IColumn;
+
+/**
+ * Intersects the postings of MUST clauses the way a conjunction scorer
+ * does, leapfrogging skipTo calls between the terms, and compares the
+ * linear skipTo LucandraTermDocs used to do with the galloping one.
+ *
+ * Postings are decoded from serialized term info columns, so only the
+ * intersection itself is measured, not the reads.
+ */
+public class IntersectionBenchmark
+{
+    private static int     maxDocs = 1048576;
+    private static int     docs    = 100000;
+    private static int     clauses = 2;
+    private static int     rounds  = 3;
+    private static boolean linear  = true;
+
+    private interface Skipper
+    {
+        /** first index with a doc id at least target, or size */
+        int skipTo(TermPostings postings, int current, int target);
+    }
+
+    // restart from the first doc and step one at a time
+    private static final Skipper legacy = new Skipper() {
+
+        public int skipTo(TermPostings postings, int current, int target)
+        {
+            int i = 0;
+            while (i < postings.size() && postings.docIds[i] < target)
+                i++;
+
+            return i;
+        }
+    };
+
+    private static final Skipper gallop = new Skipper() {
+
+        public int skipTo(TermPostings postings, int current, int target)
+        {
+            return postings.advance(current, target);
+        }
+    };
+
+    private static TermPostings buildPostings(Random random, int numDocs)
+    {
+        List<IColumn> columns = new ArrayList<IColumn>(numDocs);
+
+        // spread the docs evenly with some jitter so clauses overlap partly
+        int stride = Math.max(1, maxDocs / numDocs);
+        for (int i = 0; i < numDocs; i++)
+        {
+            int docId = i * stride + random.nextInt(stride);
+
+            ByteBuffer name = ByteBuffer.wrap(CassandraUtils.writeVInt(docId));
+            LucandraTermInfo termInfo = new LucandraTermInfo(docId, 1, new int[] { random.nextInt(500) }, null, null);
+
+            columns.add(new Column(name, termInfo.serialize()));
+        }
+
+        return TermPostings.decode(columns);
+    }
+
+    private static int intersect(TermPostings[] terms, Skipper skipper)
+    {
+        int[] at = new int[terms.length];
+        int matches = 0;
+
+        int target = 0;
+        while (true)
+        {
+            boolean all = true;
+
+            for (int i = 0; i < terms.length; i++)
+            {
+                at[i] = skipper.skipTo(terms[i], at[i], target);
+
+                if (at[i] == terms[i].size())
+                    return matches;
+
+                int doc = terms[i].docIds[at[i]];
+                if (doc > target)
+                {
+                    target = doc;
+                    all = false;
+                }
+            }
+
+            if (all)
+            {
+                matches++;
+                target++;
+            }
+        }
+    }
+
+    private static void run(String name, Skipper skipper, TermPostings[] terms)
+    {
+        long startTime = System.nanoTime();
+
+        int matches = intersect(terms, skipper);
+
+        long elapsed = System.nanoTime() - startTime;
+
+        System.out.println("\t" + name + ": " + (elapsed / 1000000) + "ms, " + matches + " matches");
+    }
+
+    private static void usage()
+    {
+        System.err.print(IntersectionBenchmark.class.getSimpleName()
+                + " [--docs=<docs-per-term>] [--clauses=<term-count>] [--rounds=<count>] [--linear=<true|false>]\n"
+                + "\tdocs           Number of documents holding each term: Default is " + docs + "\n"
+                + "\tclauses        Number of MUST clauses to intersect: Default is " + clauses + "\n"
+                + "\trounds         Number of timed rounds after warmup: Default is " + rounds + "\n"
+                + "\tlinear         Also time the linear skipTo, which is quadratic: Default is " + linear + "\n");
+
+        System.exit(0);
+    }
+
+    public static void main(String[] args)
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            int eq = args[i].indexOf("=");
+
+            if (!args[i].startsWith("--") || eq < 0)
+                usage();
+
+            String arg = args[i].substring(2, eq);
+            String value = args[i].substring(eq + 1);
+
+            try
+            {
+                if (arg.equalsIgnoreCase("docs"))
+                    docs = Integer.valueOf(value);
+
+                if (arg.equalsIgnoreCase("clauses"))
+                    clauses = Integer.valueOf(value);
+
+                if (arg.equalsIgnoreCase("rounds"))
+                    rounds = Integer.valueOf(value);
+
+                if (arg.equalsIgnoreCase("linear"))
+                    linear = Boolean.valueOf(value);
+            }
+            catch (Throwable t)
+            {
+                usage();
+            }
+        }
+
+        Random random = new Random(42);
+
+        TermPostings[] terms = new TermPostings[clauses];
+        for (int i = 0; i < clauses; i++)
+            terms[i] = buildPostings(random, docs);
+
+        System.out.println("Warming up...");
+        if (linear)
+            run("linear", legacy, terms);
+        run("gallop", gallop, terms);
+
+        for (int i = 0; i < rounds; i++)
+        {
+            System.out.println("Round " + (i + 1) + ":");
+            if (linear)
+                run("linear", legacy, terms);
+            run("gallop", gallop, terms);
+        }
+
+        System.exit(0);
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.benchmarks;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import lucandra.CassandraUtils;
+import lucandra.LucandraTermInfo;
+import lucandra.TermInverter;
+import lucandra.serializers.thrift.ThriftTerm;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.util.Version;
+
+/**
+ * Compares the per token Map based inversion IndexWriter.addDocument used to
+ * do against the reusable {@link TermInverter}.
+ *
+ * Only analysis, inversion and posting serialization are measured, row keys
+ * and mutations are built the same way by both paths.
+ */
+public class InversionBenchmark
+{
+    private static int      numDocs   = 20000;
+    private static int      docLength = 500;
+    private static int      vocabSize = 50000;
+    private static int      rounds    = 3;
+
+    private static final Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_30);
+
+    private interface Inverter
+    {
+        int invert(String field, String text, int docNumber) throws IOException;
+    }
+
+    private static final Inverter legacy = new Inverter() {
+
+        public int invert(String fieldName, String text, int docNumber) throws IOException
+        {
+            TokenStream tokens = analyzer.reusableTokenStream(fieldName, new StringReader(text));
+            tokens.reset();
+
+            OffsetAttribute offsetAttribute = (OffsetAttribute) tokens.addAttribute(OffsetAttribute.class);
+            PositionIncrementAttribute posIncrAttribute = (PositionIncrementAttribute) tokens
+                    .addAttribute(PositionIncrementAttribute.class);
+            CharTermAttribute termAttribute = (CharTermAttribute) tokens.addAttribute(CharTermAttribute.class);
+
+            Map<Term, Map<ByteBuffer, List<Number>>> allTermInformation = new HashMap<Term, Map<ByteBuffer, List<Number>>>();
+            List<ThriftTerm> allIndexedTerms = new ArrayList<ThriftTerm>();
+            int position = 0;
+
+            while (tokens.incrementToken())
+            {
+                Term term = new Term(fieldName, termAttribute.toString());
+
+                ThriftTerm tterm = new ThriftTerm(term.field()).setText(ByteBuffer.wrap(term.text().getBytes("UTF-8")))
+                        .setIs_binary(false);
+                allIndexedTerms.add(tterm);
+
+                Map<ByteBuffer, List<Number>> termInfo = allTermInformation.get(term);
+                if (termInfo == null)
+                {
+                    termInfo = new HashMap<ByteBuffer, List<Number>>();
+                    allTermInformation.put(term, termInfo);
+                }
+
+                List<Number> termFrequency = termInfo.get(CassandraUtils.termFrequencyKeyBytes);
+                if (termFrequency == null)
+                {
+                    termFrequency = new ArrayList<Number>();
+                    termFrequency.add(new Integer(0));
+                    termInfo.put(CassandraUtils.termFrequencyKeyBytes, termFrequency);
+                }
+                termFrequency.set(0, termFrequency.get(0).intValue() + 1);
+
+                position += (posIncrAttribute.getPositionIncrement() - 1);
+                List<Number> positionVector = termInfo.get(CassandraUtils.positionVectorKeyBytes);
+                if (positionVector == null)
+                {
+                    positionVector = new ArrayList<Number>();
+                    termInfo.put(CassandraUtils.positionVectorKeyBytes, positionVector);
+                }
+                positionVector.add(++position);
+
+                List<Number> offsetVector = termInfo.get(CassandraUtils.offsetVectorKeyBytes);
+                if (offsetVector == null)
+                {
+                    offsetVector = new ArrayList<Number>();
+                    termInfo.put(CassandraUtils.offsetVectorKeyBytes, offsetVector);
+                }
+                offsetVector.add(offsetAttribute.startOffset());
+                offsetVector.add(offsetAttribute.endOffset());
+            }
+
+            int bytes = 0;
+            for (Map.Entry<Term, Map<ByteBuffer, List<Number>>> term : allTermInformation.entrySet())
+                bytes += new LucandraTermInfo(docNumber, term.getValue()).serialize().remaining();
+
+            return bytes;
+        }
+    };
+
+    private static final Inverter inverter = new Inverter() {
+
+        public int invert(String fieldName, String text, int docNumber) throws IOException
+        {
+            TokenStream tokens = analyzer.reusableTokenStream(fieldName, new StringReader(text));
+            tokens.reset();
+
+            OffsetAttribute offsetAttribute = (OffsetAttribute) tokens.addAttribute(OffsetAttribute.class);
+            PositionIncrementAttribute posIncrAttribute = (PositionIncrementAttribute) tokens
+                    .addAttribute(PositionIncrementAttribute.class);
+            CharTermAttribute termAttribute = (CharTermAttribute) tokens.addAttribute(CharTermAttribute.class);
+
+            TermInverter termInverter = TermInverter.get();
+            termInverter.reset();
+            int position = 0;
+
+            while (tokens.incrementToken())
+            {
+                position += (posIncrAttribute.getPositionIncrement() - 1);
+                position++;
+
+                termInverter.add(termAttribute.buffer(), termAttribute.length(), position, offsetAttribute
+                        .startOffset(), offsetAttribute.endOffset());
+            }
+
+            List<ThriftTerm> allIndexedTerms = new ArrayList<ThriftTerm>(termInverter.size());
+
+            int bytes = 0;
+            for (int termId = 0; termId < termInverter.size(); termId++)
+            {
+                allIndexedTerms.add(new ThriftTerm(fieldName).setText(
+                        ByteBuffer.wrap(termInverter.term(termId).getBytes("UTF-8"))).setIs_binary(false));
+
+                bytes += termInverter.termInfo(termId, docNumber, null).serialize().remaining();
+            }
+
+            return bytes;
+        }
+    };
+
+    private static String[] buildCorpus()
+    {
+        Random random = new Random(42);
+
+        String[] vocab = new String[vocabSize];
+        for (int i = 0; i < vocabSize; i++)
+            vocab[i] = Integer.toString(i * 7919, 36) + "x";
+
+        String[] docs = new String[numDocs];
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < numDocs; i++)
+        {
+            sb.setLength(0);
+
+            for (int j = 0; j < docLength; j++)
+            {
+                // roughly zipfian
+                int rank = (int) Math.pow(vocabSize, random.nextDouble()) - 1;
+                sb.append(vocab[rank]).append(' ');
+            }
+
+            docs[i] = sb.toString();
+        }
+
+        return docs;
+    }
+
+    private static long allocatedBytes()
+    {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread
+                .currentThread().getId());
+    }
+
+    private static void run(String name, Inverter inv, String[] docs) throws IOException
+    {
+        long startBytes = allocatedBytes();
+        long startTime = System.nanoTime();
+        long serialized = 0;
+
+        for (int i = 0; i < docs.length; i++)
+            serialized += inv.invert("text", docs[i], i);
+
+        long elapsed = System.nanoTime() - startTime;
+        long allocated = allocatedBytes() - startBytes;
+
+        System.out.println("\t" + name + ": " + Math.round(docs.length / (elapsed / 1e9)) + " docs/sec, "
+                + (allocated / docs.length) + " bytes allocated/doc, " + (serialized / docs.length)
+                + " posting bytes/doc");
+    }
+
+    private static void usage()
+    {
+        System.err.print(InversionBenchmark.class.getSimpleName()
+                + " [--docs=<doc-count>] [--length=<tokens-per-doc>] [--vocab=<unique-terms>] [--rounds=<count>]\n"
+                + "\tdocs           Number of documents to invert: Default is " + numDocs + "\n"
+                + "\tlength         Number of tokens per document: Default is " + docLength + "\n"
+                + "\tvocab          Size of the vocabulary documents are drawn from: Default is " + vocabSize + "\n"
+                + "\trounds         Number of timed rounds after warmup: Default is " + rounds + "\n");
+
+        System.exit(0);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            int eq = args[i].indexOf("=");
+
+            if (!args[i].startsWith("--") || eq < 0)
+                usage();
+
+            String arg = args[i].substring(2, eq);
+            String value = args[i].substring(eq + 1);
+
+            try
+            {
+                if (arg.equalsIgnoreCase("docs"))
+                    numDocs = Integer.valueOf(value);
+
+                if (arg.equalsIgnoreCase("length"))
+                    docLength = Integer.valueOf(value);
+
+                if (arg.equalsIgnoreCase("vocab"))
+                    vocabSize = Integer.valueOf(value);
+
+                if (arg.equalsIgnoreCase("rounds"))
+                    rounds = Integer.valueOf(value);
+            }
+            catch (Throwable t)
+            {
+                usage();
+            }
+        }
+
+        String[] docs = buildCorpus();
+
+        System.out.println("Warming up...");
+        run("legacy", legacy, docs);
+        run("inverter", inverter, docs);
+
+        for (int i = 0; i < rounds; i++)
+        {
+            System.out.println("Round " + (i + 1) + ":");
+            run("legacy", legacy, docs);
+            run("inverter", inverter, docs);
+        }
+
+        System.exit(0);
+    }
+}
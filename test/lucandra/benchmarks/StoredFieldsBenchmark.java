@@ -0,0 +1,237 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import lucandra.IndexWriter;
+import lucandra.StoredFieldCodec;
+import lucandra.compression.CompressionCodec;
+import lucandra.compression.CompressionCodecs;
+import lucandra.serializers.thrift.DocumentMetadata;
+import lucandra.serializers.thrift.ThriftTerm;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.document.NumericField;
+
+/**
+ * Compares the thrift+snappy stored field columns IndexWriter used to write
+ * against {@link StoredFieldCodec} with each compression codec: bytes per
+ * document and decode time.
+ *
+ * Every document has a short id, a few numbers, a couple of tags and one
+ * text body, each stored under its own column like IndexWriter does.
+ */
+public class StoredFieldsBenchmark
+{
+    private static int numDocs    = 50000;
+    private static int textLength = 1000;
+    private static int rounds     = 3;
+
+    private interface Codec
+    {
+        ByteBuffer encode(List<Fieldable> values) throws IOException;
+
+        List<Fieldable> decode(String fieldName, ByteBuffer value) throws IOException;
+    }
+
+    private static final Codec legacy = new Codec() {
+
+        public ByteBuffer encode(List<Fieldable> values) throws IOException
+        {
+            DocumentMetadata dm = new DocumentMetadata();
+
+            for (Fieldable field : values)
+            {
+                ThriftTerm tt = new ThriftTerm(field.name());
+
+                if (field instanceof NumericField)
+                {
+                    Number n = ((NumericField) field).getNumericValue();
+                    switch (((NumericField) field).getDataType())
+                    {
+                    case LONG: tt.setLongVal(n.longValue()); break;
+                    case INT: tt.setIntVal(n.intValue()); break;
+                    case FLOAT: tt.setFloatVal(n.floatValue()); break;
+                    case DOUBLE: tt.setDoubleVal(n.doubleValue()); break;
+                    }
+                }
+
+                byte[] value = field.isBinary() ? field.getBinaryValue() : field.stringValue().getBytes("UTF-8");
+                tt.setText(ByteBuffer.wrap(value)).setIs_binary(field.isBinary());
+
+                dm.addToTerms(tt);
+            }
+
+            return IndexWriter.toBytesUsingThrift(dm);
+        }
+
+        public List<Fieldable> decode(String fieldName, ByteBuffer value) throws IOException
+        {
+            return StoredFieldCodec.fromThrift(IndexWriter.fromBytesUsingThrift(value));
+        }
+    };
+
+    private static Codec codec(final CompressionCodec compression)
+    {
+        return new Codec() {
+
+            public ByteBuffer encode(List<Fieldable> values) throws IOException
+            {
+                return StoredFieldCodec.encode(values, compression);
+            }
+
+            public List<Fieldable> decode(String fieldName, ByteBuffer value) throws IOException
+            {
+                return StoredFieldCodec.decode(fieldName, value);
+            }
+        };
+    }
+
+    private static final CompressionCodec[] compressions = { CompressionCodecs.none, CompressionCodecs.snappy,
+            CompressionCodecs.lz4, CompressionCodecs.deflate };
+
+    private static List<List<Fieldable>> buildDoc(Random random, int docNumber)
+    {
+        List<List<Fieldable>> doc = new ArrayList<List<Fieldable>>();
+
+        doc.add(Collections.<Fieldable> singletonList(new Field("id", "doc-" + docNumber, Store.YES,
+                Index.NOT_ANALYZED)));
+        doc.add(Collections.<Fieldable> singletonList(new NumericField("price", Store.YES, true).setIntValue(random
+                .nextInt(10000))));
+        doc.add(Collections.<Fieldable> singletonList(new NumericField("timestamp", Store.YES, true)
+                .setLongValue(1300000000000L + random.nextInt(1000000000))));
+        doc.add(Collections.<Fieldable> singletonList(new NumericField("score", Store.YES, true)
+                .setDoubleValue(random.nextDouble())));
+
+        List<Fieldable> tags = new ArrayList<Fieldable>();
+        for (int i = 0; i < 3; i++)
+            tags.add(new Field("tag", "tag" + random.nextInt(100), Store.YES, Index.NOT_ANALYZED));
+        doc.add(tags);
+
+        StringBuilder sb = new StringBuilder(textLength + 16);
+        while (sb.length() < textLength)
+            sb.append(Integer.toString(random.nextInt(5000), 36)).append(' ');
+        doc.add(Collections.<Fieldable> singletonList(new Field("text", sb.toString(), Store.YES, Index.ANALYZED)));
+
+        return doc;
+    }
+
+    private static void run(String name, Codec c, List<List<List<Fieldable>>> docs) throws IOException
+    {
+        List<ByteBuffer> columns = new ArrayList<ByteBuffer>(docs.size() * 6);
+        List<String> names = new ArrayList<String>(docs.size() * 6);
+        long bytes = 0;
+
+        long startTime = System.nanoTime();
+        for (List<List<Fieldable>> doc : docs)
+        {
+            for (List<Fieldable> values : doc)
+            {
+                ByteBuffer column = c.encode(values);
+                bytes += column.remaining();
+
+                columns.add(column);
+                names.add(values.get(0).name());
+            }
+        }
+        long encodeTime = System.nanoTime() - startTime;
+
+        long fields = 0;
+        startTime = System.nanoTime();
+        for (int i = 0; i < columns.size(); i++)
+            fields += c.decode(names.get(i), columns.get(i).duplicate()).size();
+        long decodeTime = System.nanoTime() - startTime;
+
+        System.out.println("\t" + name + ": " + (bytes / docs.size()) + " bytes/doc, encode "
+                + Math.round(docs.size() / (encodeTime / 1e9)) + " docs/sec, decode "
+                + Math.round(docs.size() / (decodeTime / 1e9)) + " docs/sec (" + (fields / docs.size())
+                + " values/doc)");
+    }
+
+    private static void usage()
+    {
+        System.err.print(StoredFieldsBenchmark.class.getSimpleName()
+                + " [--docs=<doc-count>] [--length=<text-chars>] [--rounds=<count>]\n"
+                + "\tdocs           Number of documents to encode: Default is " + numDocs + "\n"
+                + "\tlength         Characters in each document's text field: Default is " + textLength + "\n"
+                + "\trounds         Number of timed rounds after warmup: Default is " + rounds + "\n");
+
+        System.exit(0);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        for (int i = 0; i < args.length; i++)
+        {
+            int eq = args[i].indexOf("=");
+
+            if (!args[i].startsWith("--") || eq < 0)
+                usage();
+
+            String arg = args[i].substring(2, eq);
+            String value = args[i].substring(eq + 1);
+
+            try
+            {
+                if (arg.equalsIgnoreCase("docs"))
+                    numDocs = Integer.valueOf(value);
+
+                if (arg.equalsIgnoreCase("length"))
+                    textLength = Integer.valueOf(value);
+
+                if (arg.equalsIgnoreCase("rounds"))
+                    rounds = Integer.valueOf(value);
+            }
+            catch (Throwable t)
+            {
+                usage();
+            }
+        }
+
+        Random random = new Random(42);
+        List<List<List<Fieldable>>> docs = new ArrayList<List<List<Fieldable>>>(numDocs);
+        for (int i = 0; i < numDocs; i++)
+            docs.add(buildDoc(random, i));
+
+        System.out.println("Warming up...");
+        run("thrift", legacy, docs);
+        for (CompressionCodec compression : compressions)
+            run("codec/" + compression.name(), codec(compression), docs);
+
+        for (int i = 0; i < rounds; i++)
+        {
+            System.out.println("Round " + (i + 1) + ":");
+            run("thrift", legacy, docs);
+            for (CompressionCodec compression : compressions)
+                run("codec/" + compression.name(), codec(compression), docs);
+        }
+
+        System.exit(0);
+    }
+}
@@ -30,6 +30,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import lucandra.CassandraUtils;
 import lucandra.dht.RandomPartitioner;
 
+import org.apache.cassandra.db.RowMutation;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -222,6 +223,137 @@ public class IndexManagerTests
         }
     }
 
+    // The offsets of a batch are only stored along with its documents, so
+    // reloading the shard info in between must not hand its ids out again
+    @Test
+    public void testNextIdsAcrossReload() throws IOException
+    {
+        String index = String.valueOf(System.nanoTime());
+
+        CassandraIndexManager idx = new CassandraIndexManager(1);
+
+        Set<Long> all = new HashSet<Long>();
+
+        for (int batch = 0; batch < 4; batch++)
+        {
+            List<String> keys = new ArrayList<String>(1000);
+            for (int i = 0; i < 1000; i++)
+                keys.add("b" + batch + "_" + i);
+
+            // leave the bookkeeping unwritten, as if still queued
+            long[] ids = idx.getNextIds(index, keys, new ArrayList<RowMutation>());
+
+            assertEquals(keys.size(), ids.length);
+
+            for (long id : ids)
+                assertTrue(id + " handed out twice", all.add(id));
+
+            idx.reloadShardInfo(index);
+        }
+    }
+
+    // Batches reserved concurrently, with shard info reloads and standby
+    // reserves swapping in along the way, must never share an id
+    @Test
+    public void testConcurrentNextIds() throws Exception
+    {
+        final String index = String.valueOf(System.nanoTime());
+
+        final CassandraIndexManager idx = new CassandraIndexManager(4);
+
+        ExecutorService svc = Executors.newFixedThreadPool(8);
+
+        List<Callable<List<Long>>> callables = new ArrayList<Callable<List<Long>>>();
+        for (int t = 0; t < 8; t++)
+        {
+            final int thread = t;
+
+            callables.add(new Callable<List<Long>>() {
+                public List<Long> call() throws IOException
+                {
+                    List<Long> ids = new ArrayList<Long>();
+
+                    for (int batch = 0; batch < 20; batch++)
+                    {
+                        List<String> keys = new ArrayList<String>(250);
+                        for (int i = 0; i < 250; i++)
+                            keys.add("t" + thread + "_" + batch + "_" + i);
+
+                        List<RowMutation> rowMutations = new ArrayList<RowMutation>();
+
+                        for (long id : idx.getNextIds(index, keys, rowMutations))
+                            ids.add(id);
+
+                        // some batches are written, others still queued
+                        if (batch % 2 == 0)
+                            CassandraUtils.robustInsert(CassandraUtils.consistency, rowMutations
+                                    .toArray(new RowMutation[] {}));
+
+                        if (thread == 0 && batch % 5 == 0)
+                            idx.reloadShardInfo(index);
+                    }
+
+                    return ids;
+                }
+            });
+        }
+
+        Set<Long> all = new HashSet<Long>();
+
+        for (Future<List<Long>> result : svc.invokeAll(callables))
+        {
+            for (Long id : result.get())
+                assertTrue(id + " handed out twice", all.add(id));
+        }
+
+        assertEquals(8 * 20 * 250, all.size());
+
+        svc.shutdown();
+        svc.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    // Slabs are used in the shuffled sequence order, so moving on to a slab
+    // with lower ids must still move the node offset forward
+    @Test
+    public void testNodeOffsetMovesToLowerSlab() throws IOException
+    {
+        String index = String.valueOf(System.nanoTime());
+
+        CassandraIndexManager idx = new CassandraIndexManager(1);
+        String token = idx.getToken();
+
+        // sets up shard 0 for this node
+        idx.getNextIds(index, Arrays.asList("k"), new ArrayList<RowMutation>());
+
+        int slots = CassandraIndexManager.maxDocsPerShard / CassandraIndexManager.reserveSlabSize;
+        int slot = 0;
+        while (slot < slots - 1 && idx.getSlabStart(slot + 1) > idx.getSlabStart(slot))
+            slot++;
+
+        assertTrue("sequence is never lower at its next slab", slot < slots - 1);
+
+        int current = idx.getSlabStart(slot) + 10;
+        int next = idx.getSlabStart(slot + 1) + 5;
+        assertTrue(next < current);
+
+        RowMutation rm = idx.raiseNodeOffset(index, token, 0, current);
+        assertNotNull(rm);
+        CassandraUtils.robustInsert(CassandraUtils.consistency, rm);
+
+        rm = idx.raiseNodeOffset(index, token, 0, next);
+        assertNotNull("offset didn't move to the next slab", rm);
+        assertEquals(next, idx.getNodeOffset(index, 0));
+        CassandraUtils.robustInsert(CassandraUtils.consistency, rm);
+
+        // going back to the earlier slab, or lower within this one, is not
+        assertNull(idx.raiseNodeOffset(index, token, 0, current + 10));
+        assertNull(idx.raiseNodeOffset(index, token, 0, next - 1));
+        assertEquals(next, idx.getNodeOffset(index, 0));
+
+        // the shards row moved too
+        assertEquals(next, new CassandraIndexManager(1).getNodeOffset(index, 0));
+    }
+
     
     //Tests id generations across many nodes and many shards
     //waits for reserves to time out
@@ -0,0 +1,232 @@
+/**
+ * Copyright T Jake Luciani
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra.compression;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+public class CompressionCodecTests
+{
+    static final CompressionCodec[] codecs = { CompressionCodecs.none, CompressionCodecs.snappy,
+            CompressionCodecs.deflate, CompressionCodecs.lz4 };
+
+    @Test
+    public void testRoundTrips() throws IOException
+    {
+        for (CompressionCodec codec : codecs)
+        {
+            for (byte[] input : inputs())
+            {
+                byte[] compressed = codec.compress(input, 0, input.length);
+
+                assertArrayEquals(codec.name(), input, codec.decompress(compressed, 0, compressed.length));
+            }
+        }
+    }
+
+    @Test
+    public void testOffsets() throws IOException
+    {
+        byte[] text = text(2000);
+
+        for (CompressionCodec codec : codecs)
+        {
+            // compress a slice of the input, decompress from the middle of
+            // a bigger buffer
+            byte[] compressed = codec.compress(text, 100, 1500);
+
+            byte[] padded = new byte[compressed.length + 20];
+            System.arraycopy(compressed, 0, padded, 7, compressed.length);
+
+            assertArrayEquals(codec.name(), Arrays.copyOfRange(text, 100, 1600), codec.decompress(padded, 7,
+                    compressed.length));
+        }
+    }
+
+    @Test
+    public void testCompresses() throws IOException
+    {
+        byte[] text = text(4000);
+
+        for (CompressionCodec codec : codecs)
+        {
+            if (codec == CompressionCodecs.none)
+                continue;
+
+            assertTrue(codec.name(), codec.compress(text, 0, text.length).length < text.length / 2);
+        }
+    }
+
+    @Test
+    public void testForId() throws IOException
+    {
+        for (CompressionCodec codec : codecs)
+            assertSame(codec, CompressionCodecs.forId(codec.id()));
+
+        // dictionary values are inflated by plain deflate
+        assertSame(CompressionCodecs.deflate, CompressionCodecs.forId(DictionaryDeflateCodec.id));
+
+        try
+        {
+            CompressionCodecs.forId((byte) (DictionaryDeflateCodec.id + 1));
+            fail("unknown id");
+        }
+        catch (IOException e)
+        {
+        }
+
+        try
+        {
+            CompressionCodecs.forId((byte) -1);
+            fail("negative id");
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    @Test
+    public void testForName()
+    {
+        assertSame(CompressionCodecs.none, CompressionCodecs.forName("none"));
+        assertSame(CompressionCodecs.snappy, CompressionCodecs.forName("Snappy"));
+        assertSame(CompressionCodecs.deflate, CompressionCodecs.forName(" deflate "));
+        assertSame(CompressionCodecs.lz4, CompressionCodecs.forName("LZ4"));
+
+        try
+        {
+            CompressionCodecs.forName("zip");
+            fail("unknown codec");
+        }
+        catch (IllegalStateException e)
+        {
+        }
+
+        try
+        {
+            CompressionCodecs.forName("dictionary:notconfigured");
+            fail("unknown dictionary");
+        }
+        catch (IllegalStateException e)
+        {
+        }
+    }
+
+    @Test
+    public void testDictionary() throws IOException
+    {
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for (int i = 0; i < 50; i++)
+        {
+            samples.add("{\"type\":\"article\",\"status\":\"published\",\"lang\":\"en\"}".getBytes("UTF-8"));
+            samples.add("{\"type\":\"comment\",\"status\":\"pending\",\"lang\":\"en\"}".getBytes("UTF-8"));
+        }
+
+        byte[] dictionary = DictionaryDeflateCodec.train(samples, 1024);
+        assertTrue(dictionary.length > 0);
+        assertTrue(dictionary.length <= 1024);
+
+        CompressionCodec codec = new DictionaryDeflateCodec("test", dictionary, Deflater.DEFAULT_COMPRESSION);
+        assertEquals(DictionaryDeflateCodec.id, codec.id());
+        assertEquals("dictionary:test", codec.name());
+
+        byte[] value = samples.get(0);
+        byte[] compressed = codec.compress(value, 0, value.length);
+        byte[] plain = CompressionCodecs.deflate.compress(value, 0, value.length);
+
+        assertTrue(compressed.length < plain.length);
+
+        // a reader only knows the codec id, the dictionary is found by the
+        // checksum deflate stores in the stream
+        CompressionCodec decoder = CompressionCodecs.forId(codec.id());
+        assertArrayEquals(value, decoder.decompress(compressed, 0, compressed.length));
+    }
+
+    @Test
+    public void testMissingDictionary() throws IOException
+    {
+        byte[] dictionary = "a dictionary no codec was built with".getBytes("UTF-8");
+        byte[] value = "a value compressed with a dictionary".getBytes("UTF-8");
+
+        Deflater d = new Deflater();
+        byte[] compressed = DeflateCodec.deflate(d, dictionary, value, 0, value.length);
+        d.end();
+
+        try
+        {
+            CompressionCodecs.forId(DictionaryDeflateCodec.id).decompress(compressed, 0, compressed.length);
+            fail("missing dictionary");
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    @Test
+    public void testTruncatedDeflate() throws IOException
+    {
+        byte[] text = text(2000);
+        byte[] compressed = CompressionCodecs.deflate.compress(text, 0, text.length);
+
+        try
+        {
+            CompressionCodecs.deflate.decompress(compressed, 0, compressed.length / 2);
+            fail("truncated value");
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    private static List<byte[]> inputs()
+    {
+        List<byte[]> inputs = new ArrayList<byte[]>();
+
+        inputs.add(new byte[] { 42 });
+        inputs.add(text(100));
+        inputs.add(text(100000));
+
+        // random bytes get bigger, outputs must grow past their first guess
+        byte[] random = new byte[5000];
+        new Random(1).nextBytes(random);
+        inputs.add(random);
+
+        return inputs;
+    }
+
+    private static byte[] text(int length)
+    {
+        String words = "the quick brown fox jumps over the lazy dog ";
+
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++)
+            text[i] = (byte) words.charAt(i % words.length());
+
+        return text;
+    }
+}
@@ -15,6 +15,8 @@ import org.junit.Test;
 public class DeleteTests extends SolandraTestRunner
 {
     static String indexName = String.valueOf(System.nanoTime());
+    // kept apart, testMatchAll counts every document
+    static String pagedIndexName = String.valueOf(System.nanoTime() + 1);
 
     // Set test schema
     static String schemaXml = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
@@ -42,6 +44,9 @@ public class DeleteTests extends SolandraTestRunner
     {
         addSchema(indexName, schemaXml);
         getSolrClient(indexName);
+
+        addSchema(pagedIndexName, schemaXml);
+        getSolrClient(pagedIndexName);
     }
     
     @Test
@@ -79,6 +84,58 @@ public class DeleteTests extends SolandraTestRunner
     }
     
     
+    @Test
+    public void testDeleteByQueryPages() throws Exception
+    {
+        CommonsHttpSolrServer client = getSolrClient(pagedIndexName);
+
+        // more matches than one page of solandra.delete.page.size (1024)
+        int matching = 2500;
+
+        List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+        for (int i = 0; i < matching; i++)
+        {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("url", "http://paged/" + i);
+            doc.addField("title", "paged");
+            doc.addField("price", i);
+
+            docs.add(doc);
+
+            if (docs.size() == 500)
+            {
+                client.add(docs);
+                docs.clear();
+            }
+        }
+
+        for (int i = 0; i < 10; i++)
+        {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("url", "http://kept/" + i);
+            doc.addField("title", "kept");
+
+            docs.add(doc);
+        }
+
+        client.add(docs);
+        client.commit(true, true);
+
+        SolrQuery q = new SolrQuery().setQuery("title:paged");
+        assertEquals(matching, client.query(q).getResults().getNumFound());
+
+        client.deleteByQuery("title:paged");
+        client.commit(true, true);
+
+        // every page was deleted, the last partial one too
+        assertEquals(0, client.query(q).getResults().getNumFound());
+        assertEquals(0, client.query(new SolrQuery().setQuery("price:[0 TO " + matching + "]")).getResults()
+                .getNumFound());
+
+        QueryResponse r = client.query(new SolrQuery().setQuery("title:kept"));
+        assertEquals(10, r.getResults().getNumFound());
+    }
+
     private SolrInputDocument createDoc(boolean extra)
     {
         SolrInputDocument doc = new SolrInputDocument();
@@ -0,0 +1,142 @@
+package solandra;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ScoringTests extends SolandraTestRunner
+{
+    static String indexName = String.valueOf(System.nanoTime());
+
+    // Set test schema
+    static String schemaXml = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+            + "<schema name=\"wikipedia\" version=\"1.1\">\n"
+            + "<types>\n"
+            + "<fieldType name=\"text\" class=\"solr.TextField\">\n"
+            + "<analyzer><tokenizer class=\"solr.StandardTokenizerFactory\"/></analyzer>\n"
+            + "</fieldType>\n"
+            + "<fieldType name=\"string\" class=\"solr.StrField\"/>\n"
+            + "</types>\n"
+            + "<fields>\n"
+            + "<field name=\"url\" type=\"string\" indexed=\"true\" stored=\"true\"/>\n"
+            + "<field name=\"title\" type=\"text\" indexed=\"true\"  stored=\"true\"/>\n"
+            + "<field name=\"tag\" type=\"text\" indexed=\"true\"  stored=\"true\" omitNorms=\"true\"/>\n"
+            + "<field name=\"keyword\" type=\"text\" indexed=\"true\"  stored=\"true\" omitNorms=\"true\" omitTermFreqAndPositions=\"true\"/>\n"
+            + "</fields>\n" + "<uniqueKey>url</uniqueKey>\n" + "<defaultSearchField>title</defaultSearchField>\n"
+            + "</schema>\n";
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        addSchema(indexName, schemaXml);
+        getSolrClient(indexName);
+    }
+
+    @Test
+    public void testNormsAfterReload() throws Exception
+    {
+        CommonsHttpSolrServer client = getSolrClient(indexName);
+
+        List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+        docs.add(createDoc("http://short", "apple", "apple"));
+        docs.add(createDoc("http://long", "apple banana cherry date elder fig grape",
+                "apple banana cherry date elder fig grape"));
+
+        client.add(docs);
+        client.commit(true, true);
+
+        // the shorter field has the bigger length norm
+        SolrDocumentList first = search(client, "title:apple");
+        assertEquals(2, first.getNumFound());
+        assertEquals("http://short", first.get(0).getFieldValue("url"));
+        assertTrue(score(first, 0) > score(first, 1));
+
+        // without norms the length doesn't matter
+        SolrDocumentList noNorms = search(client, "tag:apple");
+        assertEquals(2, noNorms.getNumFound());
+        assertEquals(score(noNorms, 0), score(noNorms, 1), 0.0001f);
+
+        // a commit reloads the reader, the norms are read again
+        client.add(createDoc("http://other", "banana", "banana"));
+        client.commit(true, true);
+
+        SolrDocumentList reloaded = search(client, "title:apple");
+        assertEquals(2, reloaded.getNumFound());
+        assertEquals("http://short", reloaded.get(0).getFieldValue("url"));
+        assertEquals("http://long", reloaded.get(1).getFieldValue("url"));
+
+        // the idf changed with the number of documents, the norms didn't
+        assertEquals(score(first, 0) / score(first, 1), score(reloaded, 0) / score(reloaded, 1), 0.0001f);
+
+        noNorms = search(client, "tag:apple");
+        assertEquals(score(noNorms, 0), score(noNorms, 1), 0.0001f);
+    }
+
+    @Test
+    public void testOmitTermFreqs() throws Exception
+    {
+        CommonsHttpSolrServer client = getSolrClient(indexName);
+
+        List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+        for (String words : new String[] { "kiwi", "kiwi kiwi kiwi", "kiwi lemon", "lemon" })
+        {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("url", "http://keyword/" + words);
+            doc.addField("keyword", words);
+
+            docs.add(doc);
+        }
+
+        client.add(docs);
+        client.commit(true, true);
+
+        // only the docs are written, they still match
+        assertEquals(3, search(client, "keyword:kiwi").getNumFound());
+        assertEquals(3, search(client, "keyword:lemon").getNumFound());
+        assertEquals(1, search(client, "+keyword:kiwi +keyword:lemon").getNumFound());
+        assertEquals(2, search(client, "keyword:kiwi -keyword:lemon").getNumFound());
+        assertEquals(4, search(client, "keyword:ki* keyword:lem*").getNumFound());
+
+        // every match counts as a single occurrence
+        SolrDocumentList kiwi = search(client, "keyword:kiwi");
+        for (int i = 1; i < kiwi.size(); i++)
+            assertEquals(score(kiwi, 0), score(kiwi, i), 0.0001f);
+
+        SolrDocumentList stored = client.query(
+                new SolrQuery().setQuery("+keyword:kiwi -keyword:lemon").setFields("keyword").addSortField("url",
+                        SolrQuery.ORDER.asc)).getResults();
+        assertEquals("kiwi", stored.get(0).getFieldValue("keyword"));
+        assertEquals("kiwi kiwi kiwi", stored.get(1).getFieldValue("keyword"));
+    }
+
+    private static SolrDocumentList search(CommonsHttpSolrServer client, String query) throws Exception
+    {
+        SolrQuery q = new SolrQuery().setQuery(query).setFields("url", "score");
+
+        return client.query(q).getResults();
+    }
+
+    private static float score(SolrDocumentList docs, int i)
+    {
+        return (Float) docs.get(i).getFieldValue("score");
+    }
+
+    private static SolrInputDocument createDoc(String url, String title, String tag)
+    {
+        SolrInputDocument doc = new SolrInputDocument();
+
+        doc.addField("url", url);
+        doc.addField("title", title);
+        doc.addField("tag", tag);
+
+        return doc;
+    }
+}
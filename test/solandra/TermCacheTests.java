@@ -0,0 +1,91 @@
+package solandra;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lucandra.TermCache;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TermCacheTests extends SolandraTestRunner
+{
+    static String indexName = String.valueOf(System.nanoTime());
+    static long   maxBytes  = TermCache.getMaxBytes();
+
+    // Set test schema
+    static String schemaXml = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+            + "<schema name=\"wikipedia\" version=\"1.1\">\n"
+            + "<types>\n"
+            + "<fieldType name=\"text\" class=\"solr.TextField\">\n"
+            + "<analyzer><tokenizer class=\"solr.StandardTokenizerFactory\"/></analyzer>\n"
+            + "</fieldType>\n"
+            + "<fieldType name=\"string\" class=\"solr.StrField\"/>\n"
+            + "</types>\n"
+            + "<fields>\n"
+            + "<field name=\"url\" type=\"string\" indexed=\"true\" stored=\"true\"/>\n"
+            + "<field name=\"text\" type=\"text\" indexed=\"true\"  stored=\"true\"/>\n"
+            + "</fields>\n" + "<uniqueKey>url</uniqueKey>\n" + "<defaultSearchField>text</defaultSearchField>\n"
+            + "</schema>\n";
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        addSchema(indexName, schemaXml);
+        getSolrClient(indexName);
+    }
+
+    @AfterClass
+    public static void restore()
+    {
+        TermCache.setMaxBytes(maxBytes);
+    }
+
+    @Test
+    public void testPrefixQueryWithEvictions() throws Exception
+    {
+        CommonsHttpSolrServer client = getSolrClient(indexName);
+
+        // one distinct term per doc, w0000 to w1499
+        List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+        for (int i = 0; i < 1500; i++)
+        {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("url", "http://cache/" + i);
+            doc.addField("text", String.format("w%04d common", i));
+
+            docs.add(doc);
+        }
+
+        client.add(docs);
+        client.commit(true, true);
+
+        // far too small for the terms a prefix walks
+        TermCache.setMaxBytes(4096);
+
+        long evictions = TermCache.getEvictions();
+
+        assertEquals(1500, count(client, "text:w*"));
+        assertEquals(1000, count(client, "text:w0*"));
+        assertEquals(500, count(client, "text:w1*"));
+        assertEquals(100, count(client, "text:w10*"));
+        assertEquals(1, count(client, "text:w1234"));
+
+        assertTrue(TermCache.getEvictions() > evictions);
+
+        // evicted ranges are read again and give the same answers
+        assertEquals(1500, count(client, "text:w*"));
+        assertEquals(500, count(client, "+text:w1* +text:common"));
+    }
+
+    private static long count(CommonsHttpSolrServer client, String query) throws Exception
+    {
+        return client.query(new SolrQuery().setQuery(query)).getResults().getNumFound();
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright T Jake Luciani
+ * 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package solandra;
+
+import static org.junit.Assert.*;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+// Updates only rewrite the fields that changed, see solandra.update.diff
+public class UpdateTests extends SolandraTestRunner
+{
+    static String indexName = String.valueOf(System.nanoTime());
+
+    // Set test schema
+    static String schemaXml = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+            + "<schema name=\"wikipedia\" version=\"1.1\">\n"
+            + "<types>\n"
+            + "<fieldType name=\"tint\" class=\"solr.TrieIntField\" precisionStep=\"8\" omitNorms=\"true\" positionIncrementGap=\"0\"/>\n"
+            + "<fieldType name=\"text\" class=\"solr.TextField\">\n"
+            + "<analyzer><tokenizer class=\"solr.StandardTokenizerFactory\"/></analyzer>\n"
+            + "</fieldType>\n"
+            + "<fieldType name=\"string\" class=\"solr.StrField\"/>\n"
+            + "</types>\n"
+            + "<fields>\n"
+            + "<field name=\"url\" type=\"string\" indexed=\"true\" stored=\"true\"/>\n"
+            + "<field name=\"text\"  type=\"text\" indexed=\"true\"  stored=\"true\" termVectors=\"true\" termPositions=\"true\" termOffsets=\"true\"/>\n"
+            + "<field name=\"title\" type=\"text\" indexed=\"true\"  stored=\"true\"/>\n"
+            + "<field name=\"price\" type=\"tint\" indexed=\"true\"  stored=\"true\"/>\n"
+            + "</fields>\n" + "<uniqueKey>url</uniqueKey>\n" + "<defaultSearchField>title</defaultSearchField>\n"
+            + "</schema>\n";
+
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        addSchema(indexName, schemaXml);
+        getSolrClient(indexName);
+    }
+
+    @Test
+    public void testUpdateOneField() throws Exception
+    {
+        CommonsHttpSolrServer client = getSolrClient(indexName);
+
+        client.add(createDoc("http://update/1", "alpha beta", "gamma delta", 5));
+        client.add(createDoc("http://update/2", "alpha beta", "gamma", 7));
+        client.commit(true, true);
+
+        assertEquals(2, count(client, "title:beta"));
+
+        // only the title changes
+        client.add(createDoc("http://update/1", "alpha epsilon", "gamma delta", 5));
+        client.commit(true, true);
+
+        assertEquals(2, count(client, "*:*"));
+
+        // the terms the title no longer has are gone, the others stay
+        assertEquals(1, count(client, "title:beta"));
+        assertEquals(1, count(client, "title:epsilon"));
+        assertEquals(2, count(client, "title:alpha"));
+        assertEquals("http://update/2", first(client, "title:beta").getFieldValue("url"));
+
+        // untouched fields still match
+        assertEquals(1, count(client, "text:delta"));
+        assertEquals(2, count(client, "text:gamma"));
+        assertEquals(1, count(client, "price:5"));
+        assertEquals(1, count(client, "+title:epsilon +text:delta +price:5"));
+
+        // and their stored values come back with the changed one
+        SolrDocument doc = first(client, "title:epsilon");
+        assertEquals("http://update/1", doc.getFieldValue("url"));
+        assertEquals("alpha epsilon", doc.getFieldValue("title"));
+        assertEquals("gamma delta", doc.getFieldValue("text"));
+        assertEquals(5, doc.getFieldValue("price"));
+    }
+
+    @Test
+    public void testUpdateRemovesField() throws Exception
+    {
+        CommonsHttpSolrServer client = getSolrClient(indexName);
+
+        client.add(createDoc("http://update/3", "zeta", "eta theta", 9));
+        client.commit(true, true);
+
+        assertEquals(1, count(client, "text:theta"));
+
+        // the same title and price, no text
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("url", "http://update/3");
+        doc.addField("title", "zeta");
+        doc.addField("price", 9);
+
+        client.add(doc);
+        client.commit(true, true);
+
+        assertEquals(0, count(client, "text:theta"));
+        assertEquals(0, count(client, "text:eta"));
+        assertEquals(1, count(client, "title:zeta"));
+        assertEquals(1, count(client, "price:9"));
+
+        SolrDocument stored = first(client, "title:zeta");
+        assertNull(stored.getFieldValue("text"));
+        assertEquals(9, stored.getFieldValue("price"));
+    }
+
+    @Test
+    public void testUpdateUnchanged() throws Exception
+    {
+        CommonsHttpSolrServer client = getSolrClient(indexName);
+
+        client.add(createDoc("http://update/4", "iota", "kappa", 11));
+        client.commit(true, true);
+
+        // nothing changed, nothing is rewritten
+        client.add(createDoc("http://update/4", "iota", "kappa", 11));
+        client.commit(true, true);
+
+        assertEquals(1, count(client, "title:iota"));
+        assertEquals(1, count(client, "+text:kappa +price:11"));
+        assertEquals("iota", first(client, "text:kappa").getFieldValue("title"));
+    }
+
+    private static long count(CommonsHttpSolrServer client, String query) throws Exception
+    {
+        return client.query(new SolrQuery().setQuery(query)).getResults().getNumFound();
+    }
+
+    private static SolrDocument first(CommonsHttpSolrServer client, String query) throws Exception
+    {
+        QueryResponse r = client.query(new SolrQuery().setQuery(query).addField("*"));
+
+        assertTrue(query, r.getResults().getNumFound() > 0);
+
+        return r.getResults().get(0);
+    }
+
+    private static SolrInputDocument createDoc(String url, String title, String text, int price)
+    {
+        SolrInputDocument doc = new SolrInputDocument();
+
+        doc.addField("url", url);
+        doc.addField("title", title);
+        doc.addField("text", text);
+        doc.addField("price", price);
+
+        return doc;
+    }
+}